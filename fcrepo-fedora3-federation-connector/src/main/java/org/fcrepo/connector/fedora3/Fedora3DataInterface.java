@@ -16,7 +16,9 @@
 
 package org.fcrepo.connector.fedora3;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * An base class that encapsulates the logic to access content from a fedora 3
@@ -45,12 +47,119 @@ public interface Fedora3DataInterface {
      */
     public List<String> getObjectPids(long offset, int pageSize);
 
+    /**
+     * Gets a page of object pids that exist in the repository and sort after
+     * the given pid.  Unlike getObjectPids() no preceding objects are read
+     * out and discarded, so callers walking through the repository should
+     * prefer this method, passing the last pid of the previous page.  An
+     * implementation may still gather and sort the objects that follow the
+     * given pid before applying the page size, so the cost of a page may
+     * depend on the size of the repository and on where the page falls.
+     * @param lastPid the last pid seen by the caller (which needn't exist) or
+     *                null to get the first page
+     */
+    public List<String> getObjectPidsAfter(String lastPid, int pageSize);
+
+    /**
+     * Gets the pid of each content model in the repository mapped to the
+     * number of objects that have that model (through
+     * fedora-model:hasModel).  Models with no objects are omitted.
+     */
+    public Map<String, Long> getContentModelCounts();
+
+    /**
+     * Gets the pids of the content models of the object with the given pid,
+     * in pid order.
+     */
+    public List<String> getContentModels(String pid);
+
+    /**
+     * Gets a page of the pids of objects that have the given content model
+     * and sort after the given pid.  Like getObjectPidsAfter() no preceding
+     * objects are read out and discarded, but an implementation may gather
+     * and sort the objects of the model before applying the page size, so
+     * the cost of a page may depend on the size of the model and on where
+     * the page falls.
+     * @param model the pid of the content model
+     * @param lastPid the last pid seen by the caller (which needn't exist) or
+     *                null to get the first page
+     */
+    public List<String> getObjectPidsWithModelAfter(String model,
+            String lastPid, int pageSize);
+
+    /**
+     * Gets an iterator over the pids of every object in the repository in
+     * the same order as getObjectPids().  Implementations should stream the
+     * pids rather than hold them in memory so that this is suitable for
+     * walking over the entire repository.
+     */
+    public PidIterator iterateObjectPids();
+
+    /**
+     * Gets the position of the object with the given pid in the order used
+     * by getObjectPids().
+     * @return the position, or a negative value if there is no such object
+     */
+    public long getObjectPosition(String pid);
+
+    /**
+     * Gets the pids of the objects at each of the given positions (in the
+     * order used by getObjectPids()).  This allows, for example, the first
+     * and last pid of every group in a range to be fetched at once.
+     * @param positions positions in ascending order (repeats are allowed),
+     *                  each of which must be less than getSize()
+     * @return a list with the pid for each position
+     */
+    public List<String> getObjectPidsAt(long[] positions);
+
     /**
      * Gets the size (total number of objects) of the underlying fedora 3
      * repository.
      */
     public long getSize();
 
+    /**
+     * Gets the most recent modification date of any object in the underlying
+     * fedora 3 repository, or null if it can't be determined.  Along with
+     * getSize() this allows information derived from the repository to be
+     * checked for staleness.
+     */
+    public Date getLastModifiedDate();
+
+    /**
+     * Gets the earliest modification date of any object in the underlying
+     * fedora 3 repository (that is, of the object least recently modified),
+     * or null if it can't be determined.
+     */
+    public Date getFirstModifiedDate();
+
+    /**
+     * Gets the most recent modification date of the object with the given
+     * pid, or null if there is no such object.  Unlike getObjectByPid(),
+     * this needn't read the object's profile or list its datastreams.
+     */
+    public Date getObjectModifiedDate(String pid);
+
+    /**
+     * Gets the pids, in pid order, of the objects whose most recent
+     * modification falls in the given range.
+     * @param start the earliest modification date (inclusive)
+     * @param end the latest modification date (exclusive)
+     */
+    public List<String> getObjectPidsModifiedBetween(Date start, Date end);
+
+    /**
+     * Gets an iterator over every relationship with the given predicate from
+     * one object to another (such as isMemberOfCollection), as asserted in
+     * the RELS-EXT datastreams of the objects.  Like iterateObjectPids(),
+     * implementations should stream the relationships.
+     * @param predicate the URI of the relationship
+     * @param modifiedSince if not null, only the relationships of objects
+     *                      modified at or after this date are included
+     */
+    public RelationshipIterator iterateRelationships(String predicate,
+            Date modifiedSince);
+
     /**
      * Gets information about a given datastream for a given pid.
      */
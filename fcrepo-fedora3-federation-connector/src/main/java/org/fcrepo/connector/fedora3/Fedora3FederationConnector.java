@@ -16,7 +16,14 @@
 
 package org.fcrepo.connector.fedora3;
 
+import org.fcrepo.connector.fedora3.cache.BoundedCache;
+import org.fcrepo.connector.fedora3.cache.CachingFedora3DataImpl;
+import org.fcrepo.connector.fedora3.cache.ContentCachingFedora3DataImpl;
+import org.fcrepo.connector.fedora3.index.DigestStoreFedora3DataImpl;
+import org.fcrepo.connector.fedora3.index.IndexedFedora3DataImpl;
+import org.fcrepo.connector.fedora3.organizers.CollectionOrganizer;
 import org.fcrepo.connector.fedora3.organizers.GroupingOrganizer;
+import org.fcrepo.connector.fedora3.rest.FOXMLFedora3DataImpl;
 import org.fcrepo.connector.fedora3.rest.RESTFedora3DataImpl;
 import org.fcrepo.jcr.FedoraJcrTypes;
 import org.fcrepo.kernel.utils.ContentDigest;
@@ -36,6 +43,7 @@ import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -64,6 +72,7 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
     private static final String F3_OBJ_CREATED_DATE = "f3:objCreatedDate";
     private static final String F3_OBJ_LAST_MODIFIED_DATE
         = "f3:objLastModifiedDate";
+    private static final String F3_MEMBER_OF = "f3:memberOf";
 
     private static final String F3_DSID = "f3:dsid";
     private static final String F3_DS_CONTROL_GROUP = "f3:dsCongtrolGroup";
@@ -80,6 +89,12 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
         = "f3:dsContentDigestType";
     private static final String F3_DS_CONTENT_DIGEST = "f3:dsCongtentDigest";
 
+    /**
+     * The key given to the superclass of each Fedora3DatastreamBinaryValue,
+     * whose real key isn't known until the content has been hashed.
+     */
+    private static final BinaryKey UNKNOWN_KEY = new BinaryKey(new byte[20]);
+
     protected Fedora3DataInterface f3;
 
     /**
@@ -104,13 +119,89 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
      */
     protected String password;
 
+    /**
+     * Set by reflection to the value in the ModeShape repository configuration
+     * json file, this determines whether the profiles of all datastreams on
+     * an object are fetched from the fedora 3 repository in a single request
+     * (supported by fedora 3.6 and later).  Defaults to true.
+     */
+    protected boolean bundleDatastreamProfiles = true;
+
+    /**
+     * Set by reflection to the value in the ModeShape repository configuration
+     * json file, this determines whether the object and datastream records
+     * are built from a single parse of the FOXML export of each object rather
+     * than from the object and datastream profiles.  Defaults to false.
+     */
+    protected boolean parseFoxml = false;
+
+    /**
+     * Set by reflection to the value in the ModeShape repository configuration
+     * json file, this is the largest number of consecutive pids that will be
+     * read from a single resource index query to find the first and last pid
+     * of each of a group's children at once.  Defaults to 100000.
+     */
+    protected long boundaryScanLimit = 100000;
+
+    /**
+     * Set by reflection to the value in the ModeShape repository configuration
+     * json file, this is the number of seconds for which the number of
+     * objects in the underlying fedora repository is cached before it's
+     * counted again to find newly ingested objects.  Zero or less disables
+     * recounting.  Defaults to 300.
+     */
+    protected long sizeRefreshSeconds = 300;
+
+    /**
+     * Set by reflection to the value in the ModeShape repository configuration
+     * json file, this is the number of paths resolved to ids (and ids to
+     * paths) that are cached.  The caches are replaced whenever the
+     * organizer reports a change to its organization.  Defaults to 10000.
+     */
+    protected int pathCacheSize = 10000;
+
     /**
      * The RepositoyrOrganizer that determines how the objects in the
      * underlying fedora repository are represented.  This is set by reflection
      * to the object specified in the ModeShape repository configuration json
      * file.
      */
-    protected GroupingOrganizer organizer;
+    protected RepositoryOrganizer organizer;
+
+    /**
+     * An optional local index of the pids in the underlying fedora repository
+     * from which pages of pids are read rather than from the resource index.
+     * When present, this is set by reflection to the object specified in the
+     * ModeShape repository configuration json file.
+     */
+    protected IndexedFedora3DataImpl pidIndex;
+
+    /**
+     * An optional local store of the digests computed for the content of
+     * datastreams.  When present, this is set by reflection to the object
+     * specified in the ModeShape repository configuration json file.
+     */
+    protected DigestStoreFedora3DataImpl digestStore;
+
+    /**
+     * An optional cache on the local disk of the content of datastreams.
+     * When present, this is set by reflection to the object specified in the
+     * ModeShape repository configuration json file.
+     */
+    protected ContentCachingFedora3DataImpl contentCache;
+
+    /**
+     * An optional cache of the object and datastream records fetched from
+     * the underlying fedora repository.  When present, this is set by
+     * reflection to the object specified in the ModeShape repository
+     * configuration json file.
+     */
+    protected CachingFedora3DataImpl cache;
+
+    /**
+     * The path caches for the current generation of the organization.
+     */
+    private volatile PathCaches pathCaches;
 
     /**
      * {@inheritDoc}
@@ -134,8 +225,15 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
 
         try {
             if (fedoraUrl != null && username != null && password != null) {
-                f3 = new RESTFedora3DataImpl(fedoraUrl, username,
-                        password);
+                RESTFedora3DataImpl rest = parseFoxml
+                        ? new FOXMLFedora3DataImpl(fedoraUrl, username,
+                                password)
+                        : new RESTFedora3DataImpl(fedoraUrl, username,
+                                password);
+                rest.setBundleDatastreamProfiles(bundleDatastreamProfiles);
+                rest.setBoundaryScanLimit(boundaryScanLimit);
+                rest.setSizeRefreshSeconds(sizeRefreshSeconds);
+                f3 = rest;
             } else {
                 throw new RepositoryException("Requred parameters missing, "
                         + "ensure that \"fedoraUrl\", \"username\" and "
@@ -145,10 +243,51 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
             throw new RepositoryException("Error starting fedora connector!",
                     t);
         }
+        if (pidIndex != null) {
+            pidIndex.initialize(f3);
+            f3 = pidIndex;
+        }
+        // the digest store wraps the content cache so that digests are
+        // computed from cached content, except by the digest crawl, which
+        // reads beneath the cache so as not to evict the content being read
+        Fedora3DataInterface uncached = f3;
+        if (contentCache != null) {
+            contentCache.initialize(f3);
+            f3 = contentCache;
+        }
+        if (digestStore != null) {
+            digestStore.setCrawlSource(uncached);
+            digestStore.initialize(f3);
+            f3 = digestStore;
+        }
+        if (cache != null) {
+            cache.initialize(f3);
+            f3 = cache;
+        }
         organizer.initialize(f3);
         LOGGER.trace("Initialized");
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Saves the organizer's tree of groups so that it needn't be rebuilt on
+     * the next startup and writes any stored digests to the disk.
+     */
+    public void shutdown() {
+        if (organizer instanceof GroupingOrganizer) {
+            try {
+                ((GroupingOrganizer) organizer).saveSnapshot();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to save the organizer snapshot!", e);
+            }
+        }
+        if (digestStore != null) {
+            digestStore.close();
+        }
+        super.shutdown();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -181,6 +320,7 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
             FedoraObjectRecord o = f3.getObjectByPid(id.getPid());
             writer.setPrimaryType(JcrConstants.NT_FOLDER);
             addObjectProperties(writer, o);
+            addCollectionProperties(writer, idStr);
             addObjectChildren(writer, o);
             writer.setParent(organizer.getParentForId(idStr));
             return writer.document();
@@ -241,6 +381,21 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
         addOptionalProperty(writer, JCR_LASTMODIFIED, o.getModificationDate());
     }
 
+    /**
+     * Adds the pids of every collection the given object belongs to when
+     * objects are organized by collection, since the object's node is placed
+     * under only one of them.
+     */
+    private void addCollectionProperties(DocumentWriter writer, String idStr) {
+        if (organizer instanceof CollectionOrganizer) {
+            List<String> c
+                = ((CollectionOrganizer) organizer).getCollections(idStr);
+            if (!c.isEmpty()) {
+                addOptionalProperty(writer, F3_MEMBER_OF, c);
+            }
+        }
+    }
+
     /**
      * Adds the Fedora 3 datastream mixin type and Fedora 3 datastream
      * properties for the given datastream.  This method also adds the fedora 4
@@ -286,20 +441,27 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
     private void addDatastreamContentProperties(DocumentWriter writer,
             FedoraDatastreamRecord ds) {
         writer.addMixinType(FEDORA_BINARY);
-        try {
-            BinaryValue binary = new Fedora3DatastreamBinaryValue(ds);
-            writer.addProperty(JcrConstants.JCR_DATA, binary);
-            LOGGER.trace("{} size: {}", ds.getId(), binary.getSize());
-            LOGGER.trace("{} hash: {}", ds.getId(), binary.getHexHash());
-            writer.addProperty(CONTENT_DIGEST, ContentDigest.
-                    asURI("SHA-1", binary.getHexHash()));
-            writer.addProperty(CONTENT_SIZE, binary.getSize());
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
+        FedoraDatastreamVersionRecord dsVer = ds.getCurrentVersion();
+        BinaryValue binary = new Fedora3DatastreamBinaryValue(ds);
+        writer.addProperty(JcrConstants.JCR_DATA, binary);
+        LOGGER.trace("{} size: {}", ds.getId(), binary.getSize());
+        writer.addProperty(CONTENT_SIZE, binary.getSize());
+        // the digest is only included when fedora 3 has recorded it or it
+        // was computed earlier and stored, because computing it would
+        // require reading all of the content
+        if ("SHA-1".equalsIgnoreCase(dsVer.getContentDigestType())
+                && dsVer.getContentDigest() != null) {
+            writer.addProperty(CONTENT_DIGEST, ContentDigest.asURI("SHA-1",
+                    dsVer.getContentDigest().toLowerCase()));
+        } else if (digestStore != null) {
+            byte[] stored = digestStore.getStore().get(ds.getPid(),
+                    ds.getId(), dsVer.getVersionId(), dsVer.getCreatedDate());
+            if (stored != null) {
+                writer.addProperty(CONTENT_DIGEST, ContentDigest.asURI(
+                        "SHA-1", new BinaryKey(stored).toString()));
+            }
         }
-        writer.addProperty(JcrConstants.JCR_MIME_TYPE,
-                ds.getCurrentVersion().getMimeType());
-
+        writer.addProperty(JcrConstants.JCR_MIME_TYPE, dsVer.getMimeType());
     }
 
     /**
@@ -346,27 +508,31 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
      * other nodes are made up of any number of organizational node paths
      * concatenated together followed by an object, datastream or content ID.
      *
-     * This method uses that to determine the id of the node at the given path.
+     * This method uses that to determine the id of the node at the given path,
+     * skipping over each leading organizational node id in turn.  Resolved
+     * paths are cached.
      */
     protected String getIdFromPath(String path) {
-        int nextBreak = path.indexOf('/', 1);
-        if (nextBreak == -1) {
-            return path;
-        } else {
-            String nextChunk = path.substring(0, nextBreak);
-            if (organizer.isOrganizationalNode(nextChunk)) {
-                String result = getIdFromPath(path.substring(nextBreak));
-                return result;
-            } else {
-                return path;
+        BoundedCache<String, String> idsByPath = getPathCaches().idsByPath;
+        String id = idsByPath.get(path);
+        if (id == null) {
+            int start = 0;
+            int nextBreak;
+            while ((nextBreak = path.indexOf('/', start + 1)) != -1
+                    && organizer.isOrganizationalNode(
+                            path.substring(start, nextBreak))) {
+                start = nextBreak;
             }
+            id = path.substring(start);
+            idsByPath.put(path, id);
         }
+        return id;
     }
 
     @Override
     public Collection<String> getDocumentPathsById(String id) {
         LOGGER.info("getDocumentPathsById {}", id);
-        return Collections.singletonList(buildPath(id, id));
+        return Collections.singletonList(getPath(getPathCaches(), id));
     }
 
     /**
@@ -375,18 +541,63 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
      * other nodes are made up of any number of organizational node paths
      * concatenated together followed by an object, datastream or content ID.
      *
-     * This method uses that to build a path from an ID.
+     * This method uses that to build a path from an ID, prefixing the given
+     * path with the path of the parent of the node with the given id.
      */
     protected String buildPath(String path, String currentId) {
+        PathCaches caches = getPathCaches();
         String parentId = organizer.getParentForId(currentId);
-        if (parentId == null) {
-            return path;
-        } else {
-            return buildPath(parentId + path, parentId);
-        }
+        return parentId == null ? path : getPath(caches, parentId) + path;
     }
 
+    /**
+     * Gets the path of the node with the given id, walking up the parents
+     * only as far as the nearest one whose path is cached and caching the
+     * path of each node on the way back down.
+     */
+    private String getPath(PathCaches caches, String id) {
+        BoundedCache<String, String> pathsById = caches.pathsById;
+        List<String> uncached = new ArrayList<String>();
+        String path = null;
+        String current = id;
+        while (current != null && (path = pathsById.get(current)) == null) {
+            uncached.add(current);
+            current = organizer.getParentForId(current);
+        }
+        StringBuilder b = new StringBuilder(path == null ? "" : path);
+        for (int i = uncached.size() - 1; i >= 0; i --) {
+            b.append(uncached.get(i));
+            pathsById.put(uncached.get(i), b.toString());
+        }
+        return b.toString();
+    }
 
+    /**
+     * Gets the path caches for the organizer's current generation, replacing
+     * them if the organizer reports that its organization has changed.  The
+     * generation is read before anything is resolved, so a resolution that
+     * overlaps a change can only populate the caches it began with, which
+     * are no longer used.
+     */
+    private PathCaches getPathCaches() {
+        long generation = organizer.getGeneration();
+        PathCaches caches = pathCaches;
+        if (caches != null && caches.generation == generation) {
+            return caches;
+        }
+        synchronized (this) {
+            caches = pathCaches;
+            if (caches == null || caches.generation != generation) {
+                if (caches != null) {
+                    LOGGER.debug("Replacing the path caches for generation {}"
+                            + " of the organization.", generation);
+                }
+                caches = new PathCaches(generation, pathCacheSize);
+                pathCaches = caches;
+            }
+            return caches;
+        }
+    }
 
     /**
      * Checks if a document with the given id exists.
@@ -414,28 +625,85 @@ public class Fedora3FederationConnector extends ReadOnlyConnector
         ID id = new ID(idStr);
         FedoraDatastreamRecord ds = f3.getDatastream(id.getPid(),
                 id.getDSID());
-        try {
-            return new Fedora3DatastreamBinaryValue(ds);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        return new Fedora3DatastreamBinaryValue(ds);
+    }
+
+    /**
+     * The ids resolved from paths and the paths built for ids for a single
+     * generation of the organization.
+     */
+    private static class PathCaches {
+
+        private final long generation;
+
+        private final BoundedCache<String, String> idsByPath;
+
+        private final BoundedCache<String, String> pathsById;
+
+        public PathCaches(long generation, int size) {
+            this.generation = generation;
+            idsByPath = new BoundedCache<String, String>(size, 0, true);
+            pathsById = new BoundedCache<String, String>(size, 0, true);
         }
     }
 
+    /**
+     * An ExternalBinaryValue for the content of a datastream whose key (the
+     * SHA-1 hash of the content) is only determined when it is first needed,
+     * since that may require reading all of the content.
+     */
     public class Fedora3DatastreamBinaryValue extends ExternalBinaryValue {
 
         private static final long serialVersionUID = 1L;
 
         private FedoraDatastreamRecord ds;
 
-        Fedora3DatastreamBinaryValue(FedoraDatastreamRecord ds)
-            throws Exception {
-            super(new BinaryKey(ds.getCurrentVersion().getSha1()),
-                    Fedora3FederationConnector.this.getSourceName(),
+        private volatile BinaryKey key;
+
+        Fedora3DatastreamBinaryValue(FedoraDatastreamRecord ds) {
+            // the superclass requires a key, but it is never exposed
+            super(UNKNOWN_KEY, Fedora3FederationConnector.this.getSourceName(),
                     ID.contentID(ds.getPid(), ds.getId()).getId(),
                     ds.getCurrentVersion().getContentLength(), null, null);
             this.ds = ds;
         }
 
+        /**
+         * Gets the key for this binary value, which is computed from the
+         * SHA-1 hash of the content the first time it's requested.
+         */
+        public BinaryKey getKey() {
+            if (key == null) {
+                try {
+                    key = new BinaryKey(ds.getCurrentVersion().getSha1());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] getHash() {
+            return getKey().toBytes();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getHexHash() {
+            return getKey().toString();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int hashCode() {
+            return getKey().hashCode();
+        }
+
         /**
          * Gets the InputStream for the content.
          */
@@ -17,7 +17,6 @@
 package org.fcrepo.connector.fedora3;
 
 import org.fcrepo.jcr.FedoraJcrTypes;
-import org.modeshape.common.text.Jsr283Encoder;
 import org.modeshape.jcr.api.JcrConstants;
 
 /**
@@ -47,13 +46,63 @@ import org.modeshape.jcr.api.JcrConstants;
  */
 public class ID implements FedoraJcrTypes {
 
-    private String id;
+    /**
+     * The characters that can't appear in a JCR name, each of which is
+     * encoded (as by {@link org.modeshape.common.text.Jsr283Encoder}) as the
+     * character at the same offset from ENCODED_BASE.
+     */
+    private static final String RESERVED = "*/:[]|";
+
+    private static final char ENCODED_BASE = '\uF000';
+
+    /**
+     * The encoded form of ':', the one reserved character every pid has.
+     */
+    private static final char ENCODED_COLON = (char) (ENCODED_BASE + ':');
+
+    private final String id;
+
+    /**
+     * The number of "/" separated parts of the id (not counting trailing
+     * empty parts), which determines the kind of node it identifies.
+     */
+    private final int parts;
+
+    /**
+     * The end of the first part of the id and the end of the second part.
+     */
+    private final int firstEnd;
+
+    private final int secondEnd;
+
+    private String pid;
+
+    private String dsid;
 
     /**
      * A constructor that accepts a known id.
      */
     public ID(String id) {
         this.id = id;
+        int end = id.length();
+        while (end > 0 && id.charAt(end - 1) == '/') {
+            end --;
+        }
+        int first = id.indexOf('/');
+        if (first == -1 || first >= end) {
+            first = end;
+        }
+        int second = first < end ? id.indexOf('/', first + 1) : -1;
+        if (second == -1 || second >= end) {
+            second = end;
+        }
+        int count = end == 0 ? (id.length() == 0 ? 1 : 0) : 1;
+        for (int i = first; i != -1 && i < end; i = id.indexOf('/', i + 1)) {
+            count ++;
+        }
+        this.parts = count;
+        this.firstEnd = first;
+        this.secondEnd = second;
     }
 
     /**
@@ -120,7 +169,7 @@ public class ID implements FedoraJcrTypes {
      * Determines if the id is for a fedora 3 object.
      */
     public boolean isObjectID() {
-        return id.split("/").length == 1;
+        return parts == 1;
     }
 
     /**
@@ -134,10 +183,10 @@ public class ID implements FedoraJcrTypes {
     public String getPid() {
         if (isRootID()) {
             return null;
-        } else {
-            String[] path = id.split("/");
-            return new Jsr283Encoder().decode(path[0]);
+        } else if (pid == null) {
+            pid = decode(id.substring(0, firstEnd));
         }
+        return pid;
     }
 
     /**
@@ -146,26 +195,26 @@ public class ID implements FedoraJcrTypes {
      * content.
      */
     public String getDSID() {
-        String[] path = id.split("/");
-        if (path.length < 2) {
+        if (parts < 2) {
             return null;
-        } else {
-            return new Jsr283Encoder().decode(path[1]);
+        } else if (dsid == null) {
+            dsid = decode(id.substring(firstEnd + 1, secondEnd));
         }
+        return dsid;
     }
 
     /**
      * Determines if the id is for a fedora 3 datastream.
      */
     public boolean isDatastreamID() {
-        return id.split("/").length == 2;
+        return parts == 2;
     }
 
     /**
      * Determines if the id is for a fedora 3 datastream content node.
      */
     public boolean isContentID() {
-        return id.split("/").length == 3;
+        return parts == 3;
     }
 
     /**
@@ -178,7 +227,7 @@ public class ID implements FedoraJcrTypes {
      * with the given pid.
      */
     public static ID objectID(String pid) {
-        return new ID(new Jsr283Encoder().encode(pid));
+        return new ID(encode(pid));
     }
 
     /**
@@ -187,8 +236,7 @@ public class ID implements FedoraJcrTypes {
      * pid.
      */
     public static ID datastreamID(String pid, String datastream) {
-        return new ID(new Jsr283Encoder().encode(pid) + "/"
-                + new Jsr283Encoder().encode(datastream));
+        return new ID(encode(pid) + "/" + encode(datastream));
     }
 
     /**
@@ -197,8 +245,75 @@ public class ID implements FedoraJcrTypes {
      * given pid.
      */
     public static ID contentID(String pid, String datastream) {
-        return new ID(new Jsr283Encoder().encode(pid) + "/"
-                + new Jsr283Encoder().encode(datastream) + "/"
+        return new ID(encode(pid) + "/" + encode(datastream) + "/"
                 + JcrConstants.JCR_CONTENT);
     }
+
+    /**
+     * Encodes the characters of the given pid or dsid that can't appear in a
+     * JCR name.  The given string is returned as is (without allocation) if
+     * it has none of those characters.  A value whose only such characters
+     * are colons, as in every valid pid, is encoded with a single
+     * String.replace().
+     */
+    static String encode(String value) {
+        boolean colon = false;
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if (c == ':') {
+                colon = true;
+            } else if (c < 128 && RESERVED.indexOf(c) >= 0) {
+                return encodeAll(value);
+            }
+        }
+        return colon ? value.replace(':', ENCODED_COLON) : value;
+    }
+
+    private static String encodeAll(String value) {
+        char[] encoded = null;
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if (c < 128 && RESERVED.indexOf(c) >= 0) {
+                if (encoded == null) {
+                    encoded = value.toCharArray();
+                }
+                encoded[i] = (char) (ENCODED_BASE + c);
+            }
+        }
+        return encoded == null ? value : new String(encoded);
+    }
+
+    /**
+     * Reverses encode().  The given string is returned as is (without
+     * allocation) if it has no encoded characters, and with a single
+     * String.replace() if its only encoded characters are colons.
+     */
+    static String decode(String value) {
+        boolean colon = false;
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if (c == ENCODED_COLON) {
+                colon = true;
+            } else if (c >= ENCODED_BASE && c < ENCODED_BASE + 128
+                    && RESERVED.indexOf(c - ENCODED_BASE) >= 0) {
+                return decodeAll(value);
+            }
+        }
+        return colon ? value.replace(ENCODED_COLON, ':') : value;
+    }
+
+    private static String decodeAll(String value) {
+        char[] decoded = null;
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if (c >= ENCODED_BASE && c < ENCODED_BASE + 128
+                    && RESERVED.indexOf(c - ENCODED_BASE) >= 0) {
+                if (decoded == null) {
+                    decoded = value.toCharArray();
+                }
+                decoded[i] = (char) (c - ENCODED_BASE);
+            }
+        }
+        return decoded == null ? value : new String(decoded);
+    }
 }
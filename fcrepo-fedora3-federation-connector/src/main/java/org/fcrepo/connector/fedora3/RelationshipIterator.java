@@ -0,0 +1,32 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator over relationships between objects in a fedora 3 repository,
+ * each of which is returned as an array of the subject pid followed by the
+ * object pid.  Like a PidIterator, callers that stop iterating before
+ * reaching the end must call close(), and the iterator is closed
+ * automatically once the last relationship has been read.
+ */
+public interface RelationshipIterator extends Iterator<String[]>, Closeable {
+
+}
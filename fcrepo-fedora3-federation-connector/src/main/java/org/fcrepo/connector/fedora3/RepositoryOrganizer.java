@@ -54,4 +54,14 @@ public interface RepositoryOrganizer {
      */
     public boolean isOrganizationalNode(String id);
 
+    /**
+     * Gets a number that changes whenever the nodes already returned by this
+     * organizer may have moved, disappeared or gained different children
+     * (for example because objects were added to the repository), so that
+     * callers may cache what they derive from the organization until it
+     * changes.  Implementations should check for such changes, subject to
+     * their own refresh intervals, each time this is called.
+     */
+    public long getGeneration();
+
 }
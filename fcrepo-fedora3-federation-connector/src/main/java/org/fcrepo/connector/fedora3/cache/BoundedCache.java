@@ -0,0 +1,147 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A simple thread-safe cache that holds no more than a fixed number of
+ * entries, each of which expires a fixed amount of time after it was added.
+ * When full, the least recently used entry (or, if access ordering is
+ * disabled, the oldest entry) is evicted to make room for a new one.
+ */
+public class BoundedCache<K, V> {
+
+    private final long timeToLiveMs;
+
+    private final LinkedHashMap<K, CacheEntry<V>> map;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * A constructor that accepts all of the configuration for this cache.
+     * @param maxEntries the maximum number of entries to hold at once
+     * @param timeToLiveMs the number of milliseconds after which an entry is
+     *                     considered stale, or a value less than one if
+     *                     entries should never expire
+     * @param accessOrder true if the least recently used entry should be
+     *                    evicted when the cache is full, false if the least
+     *                    recently added entry should be evicted
+     */
+    public BoundedCache(final int maxEntries, long timeToLiveMs,
+            boolean accessOrder) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.timeToLiveMs = timeToLiveMs;
+        this.map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f,
+                accessOrder) {
+
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached value for the given key or null if there is no value
+     * or the value has expired.
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> e = map.get(key);
+        if (e == null) {
+            misses ++;
+            return null;
+        } else if (timeToLiveMs > 0 && now() - e.created > timeToLiveMs) {
+            map.remove(key);
+            misses ++;
+            return null;
+        } else {
+            hits ++;
+            return e.value;
+        }
+    }
+
+    /**
+     * Adds (or replaces) the value for the given key.
+     */
+    public synchronized void put(K key, V value) {
+        map.put(key, new CacheEntry<V>(value, now()));
+    }
+
+    /**
+     * Removes any value for the given key.
+     */
+    public synchronized void remove(K key) {
+        map.remove(key);
+    }
+
+    /**
+     * Removes all values from the cache.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Gets the number of entries currently held, some of which may have
+     * expired but not yet been evicted.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Gets the number of calls to get() that returned a value.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of calls to get() that returned null.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the current time in milliseconds.  This is only separated into a
+     * protected method so that unit tests may control the passage of time.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static class CacheEntry<V> {
+
+        private final V value;
+
+        private final long created;
+
+        public CacheEntry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.cache;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.slf4j.Logger;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A Fedora3DataInterface implementation that wraps another and caches the
+ * object and datastream records it returns.  Because the underlying fedora 3
+ * repository is expected to be unchanging while exposed through fedora 4,
+ * records are held until they expire or are evicted to make room for more
+ * recently used records.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "cache" section of the connector configuration in the ModeShape repository
+ * configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "cache" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.cache.CachingFedora3DataImpl",
+ *        "maxEntries" : 5000,
+ *        "timeToLiveSeconds" : 600,
+ *        "evictionPolicy" : "LRU"
+ *    }
+ *  }
+ * </pre>
+ */
+public class CachingFedora3DataImpl implements Fedora3DataInterface {
+
+    private static final Logger LOGGER
+        = getLogger(CachingFedora3DataImpl.class);
+
+    /**
+     * Evicts the least recently used record when the cache is full.
+     */
+    public static final String LRU = "LRU";
+
+    /**
+     * Evicts the least recently added record when the cache is full.
+     */
+    public static final String FIFO = "FIFO";
+
+    private int maxEntries = 1000;
+
+    private long timeToLiveSeconds = 300;
+
+    private String evictionPolicy = LRU;
+
+    private Fedora3DataInterface f3;
+
+    private BoundedCache<String, Object> cache;
+
+    /**
+     * Provides the Fedora3DataInterface whose records will be cached by this
+     * implementation.  This must be called once after configuration and
+     * before any other method.
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        f3 = fedora;
+        cache = new BoundedCache<String, Object>(maxEntries,
+                timeToLiveSeconds * 1000,
+                LRU.equalsIgnoreCase(evictionPolicy));
+        LOGGER.debug("Caching up to {} records for {} seconds with {}"
+                + " eviction.", maxEntries, timeToLiveSeconds, evictionPolicy);
+    }
+
+    /**
+     * Sets the maximum number of object and datastream records that will be
+     * held at once.
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the number of seconds a record may be served from the cache before
+     * it is fetched again.  A value of zero or less indicates that records
+     * never expire.
+     */
+    public void setTimeToLiveSeconds(long seconds) {
+        this.timeToLiveSeconds = seconds;
+    }
+
+    /**
+     * Sets the policy used to pick which record is evicted when the cache is
+     * full; either "LRU" or "FIFO".
+     */
+    public void setEvictionPolicy(String policy) {
+        if (!LRU.equalsIgnoreCase(policy) && !FIFO.equalsIgnoreCase(policy)) {
+            throw new IllegalArgumentException("Unknown eviction policy \""
+                    + policy + "\"!");
+        }
+        this.evictionPolicy = policy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraObjectRecord getObjectByPid(String pid) {
+        String key = ID.objectID(pid).getId();
+        FedoraObjectRecord o = (FedoraObjectRecord) cache.get(key);
+        if (o == null) {
+            o = f3.getObjectByPid(pid);
+            if (o != null) {
+                cache.put(key, o);
+            }
+        }
+        return o;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Objects whose records are cached are known to exist, otherwise this
+     * call is passed through to the wrapped implementation.
+     */
+    public boolean doesObjectExist(String pid) {
+        return cache.get(ID.objectID(pid).getId()) != null
+                || f3.doesObjectExist(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPids(long offset, int pageSize) {
+        return f3.getObjectPids(offset, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsAfter(String lastPid, int pageSize) {
+        return f3.getObjectPidsAfter(lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getContentModels(String pid) {
+        return f3.getContentModels(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getContentModelCounts() {
+        return f3.getContentModelCounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsWithModelAfter(String model,
+            String lastPid, int pageSize) {
+        return f3.getObjectPidsWithModelAfter(model, lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PidIterator iterateObjectPids() {
+        return f3.iterateObjectPids();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getObjectPosition(String pid) {
+        return f3.getObjectPosition(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsAt(long[] positions) {
+        return f3.getObjectPidsAt(positions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSize() {
+        return f3.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getLastModifiedDate() {
+        return f3.getLastModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getFirstModifiedDate() {
+        return f3.getFirstModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The date is read from the object's record if it is cached, otherwise
+     * this call is passed through to the wrapped implementation.
+     */
+    public Date getObjectModifiedDate(String pid) {
+        FedoraObjectRecord o
+            = (FedoraObjectRecord) cache.get(ID.objectID(pid).getId());
+        return o != null ? o.getModificationDate()
+                : f3.getObjectModifiedDate(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsModifiedBetween(Date start, Date end) {
+        return f3.getObjectPidsModifiedBetween(start, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public RelationshipIterator iterateRelationships(String predicate,
+            Date modifiedSince) {
+        return f3.iterateRelationships(predicate, modifiedSince);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraDatastreamRecord getDatastream(String pid, String dsid) {
+        String key = ID.datastreamID(pid, dsid).getId();
+        FedoraDatastreamRecord ds = (FedoraDatastreamRecord) cache.get(key);
+        if (ds == null) {
+            ds = f3.getDatastream(pid, dsid);
+            if (ds != null) {
+                cache.put(key, ds);
+            }
+        }
+        return ds;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Datastreams whose records are cached are known to exist, otherwise this
+     * call is passed through to the wrapped implementation.
+     */
+    public boolean doesDatastreamExist(String pid, String dsid) {
+        return cache.get(ID.datastreamID(pid, dsid).getId()) != null
+                || f3.doesDatastreamExist(pid, dsid);
+    }
+
+}
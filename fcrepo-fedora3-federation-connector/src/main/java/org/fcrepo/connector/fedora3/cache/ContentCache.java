@@ -0,0 +1,429 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.cache;
+
+import org.modeshape.common.util.SecureHash;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A cache of the content of datastream versions in files in a local
+ * directory, which holds no more than a fixed number of bytes, and no
+ * single entry larger than a smaller limit, so that reading one large file
+ * can't evict everything else.  When full,
+ * the least recently used content (or, if access ordering is disabled, the
+ * oldest content) is evicted to make room for new content.
+ *
+ * Content is added to the cache as it is read: the stream returned by
+ * {@link #fill} copies the content to a temporary file, which is renamed
+ * into the cache only once the content has been read to the end (and found
+ * to be as long as expected, when that is known), so the cache never holds
+ * partial content.  Cached content is read directly from
+ * its file.  The files in the directory are indexed again when the cache is
+ * next opened, so the cache survives restarts.
+ */
+public class ContentCache {
+
+    private static final Logger LOGGER = getLogger(ContentCache.class);
+
+    private static final String SUFFIX = ".content";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final long maxEntryBytes;
+
+    private final boolean accessOrder;
+
+    /**
+     * The length of each cached file, by name, in eviction order.
+     */
+    private final LinkedHashMap<String, Long> files;
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Opens the cache in the given directory (creating the directory if
+     * necessary) and indexes any content already cached there.
+     * @param directory the directory in which the content files are kept
+     * @param maxBytes the maximum number of bytes of content to hold at once
+     * @param accessOrder true if the least recently used content should be
+     *                    evicted when the cache is full, false if the least
+     *                    recently added content should be evicted
+     */
+    public ContentCache(File directory, long maxBytes, boolean accessOrder)
+        throws IOException {
+        this(directory, maxBytes, maxBytes, accessOrder);
+    }
+
+    /**
+     * Opens the cache in the given directory (creating the directory if
+     * necessary) and indexes any content already cached there.
+     * @param directory the directory in which the content files are kept
+     * @param maxBytes the maximum number of bytes of content to hold at once
+     * @param maxEntryBytes the maximum number of bytes of content to hold
+     *                      for a single entry; larger content is never
+     *                      cached
+     * @param accessOrder true if the least recently used content should be
+     *                    evicted when the cache is full, false if the least
+     *                    recently added content should be evicted
+     */
+    public ContentCache(File directory, long maxBytes, long maxEntryBytes,
+            boolean accessOrder) throws IOException {
+        if (maxBytes < 1 || maxEntryBytes < 1 || maxEntryBytes > maxBytes) {
+            throw new IllegalArgumentException();
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory + "!");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.accessOrder = accessOrder;
+        this.files = new LinkedHashMap<String, Long>(16, 0.75f, accessOrder);
+
+        File[] existing = directory.listFiles();
+        Arrays.sort(existing, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long c = a.lastModified() - b.lastModified();
+                return c < 0 ? -1 : (c > 0 ? 1 : 0);
+            }
+        });
+        for (File f : existing) {
+            if (f.getName().endsWith(SUFFIX) && f.length() > maxEntryBytes) {
+                // cached before the entry limit was lowered
+                f.delete();
+            } else if (f.getName().endsWith(SUFFIX)) {
+                files.put(f.getName(), f.length());
+                bytes += f.length();
+            } else if (f.getName().endsWith(".tmp")) {
+                // left by content that was being read during a shutdown
+                f.delete();
+            }
+        }
+        evict();
+        LOGGER.debug("Opened cache of {} files ({} bytes) in {}.",
+                files.size(), bytes, directory);
+    }
+
+    /**
+     * Gets the name of the file that holds the content of the given
+     * datastream version.
+     */
+    public static String getName(String pid, String dsid, String versionId,
+            Date createdDate) {
+        String id = pid + "\n" + dsid + "\n" + versionId + "\n"
+                + (createdDate == null ? "" : createdDate.getTime());
+        try {
+            return SecureHash.asHexString(SecureHash.getHash(
+                    SecureHash.Algorithm.SHA_1, id.getBytes(UTF8))) + SUFFIX;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets a stream from which the cached content with the given name may
+     * be read or null if it isn't cached.
+     */
+    public synchronized InputStream get(String name) {
+        Long length = files.get(name);
+        if (length == null) {
+            misses ++;
+            return null;
+        }
+        File f = new File(directory, name);
+        try {
+            InputStream in = new FileInputStream(f);
+            if (accessOrder) {
+                // so that the order of use is known after a restart
+                f.setLastModified(System.currentTimeMillis());
+            }
+            hits ++;
+            return in;
+        } catch (FileNotFoundException e) {
+            files.remove(name);
+            bytes -= length;
+            misses ++;
+            return null;
+        }
+    }
+
+    /**
+     * Gets a stream that reads the given content and adds it to the cache
+     * with the given name once it has been read to the end.  If the content
+     * can't be written to the cache it is still read.
+     */
+    public InputStream fill(String name, InputStream content)
+        throws IOException {
+        return fill(name, content, -1);
+    }
+
+    /**
+     * Gets a stream that reads the given content and adds it to the cache
+     * with the given name once it has been read to the end, as long as that
+     * was the given number of bytes.  Content whose stream ended early (as a
+     * dropped connection may appear to) is never cached.
+     * @param length the expected length of the content, or a negative
+     *               number if it isn't known
+     */
+    public InputStream fill(String name, InputStream content, long length)
+        throws IOException {
+        File tmp = File.createTempFile("content", ".tmp", directory);
+        return new FillingInputStream(content, name, tmp, length);
+    }
+
+    /**
+     * Gets the maximum number of bytes of content held at once.
+     */
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the maximum number of bytes of content held for a single entry.
+     */
+    public long getMaxEntrySize() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Gets the number of bytes of content in the cache.
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of requests for content that was cached.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests for content that wasn't cached.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Moves a completely read temporary file into the cache under the given
+     * name.
+     */
+    private synchronized void add(String name, File tmp) {
+        long length = tmp.length();
+        if (length > maxEntryBytes) {
+            tmp.delete();
+            return;
+        }
+        File f = new File(directory, name);
+        Long replaced = files.remove(name);
+        if (replaced != null) {
+            bytes -= replaced;
+        }
+        if (f.exists() && !f.delete()) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(f)) {
+            LOGGER.warn("Unable to add {} to the content cache!", f);
+            tmp.delete();
+            return;
+        }
+        files.put(name, length);
+        bytes += length;
+        evict();
+    }
+
+    /**
+     * Removes the least recently used (or added) content until the cache is
+     * no larger than its maximum size.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            // open streams may still read a deleted file
+            new File(directory, e.getKey()).delete();
+            bytes -= e.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * An InputStream that copies the content it reads to a temporary file
+     * and adds that file to the cache when the content has been read to the
+     * end and the stream is closed.
+     */
+    private class FillingInputStream extends FilterInputStream {
+
+        private final String name;
+
+        private final File tmp;
+
+        private OutputStream out;
+
+        private boolean complete;
+
+        private final long expected;
+
+        private long copied;
+
+        private final byte[] single = new byte[1];
+
+        public FillingInputStream(InputStream in, String name, File tmp,
+                long expected) throws IOException {
+            super(in);
+            this.name = name;
+            this.tmp = tmp;
+            this.expected = expected;
+            this.out = new FileOutputStream(tmp);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                single[0] = (byte) b;
+                copy(single, 0, 1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1) {
+                complete = true;
+            } else {
+                copy(b, off, count);
+            }
+            return count;
+        }
+
+        /**
+         * Reads (rather than skips) the skipped content so that it is
+         * copied.
+         */
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+            long skipped = 0;
+            while (skipped < n) {
+                int count = read(buffer, 0,
+                        (int) Math.min(buffer.length, n - skipped));
+                if (count == -1) {
+                    break;
+                }
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void mark(int readlimit) {
+        }
+
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        private void copy(byte[] b, int off, int len) {
+            if (out == null) {
+                return;
+            }
+            if (copied + len > maxEntryBytes) {
+                LOGGER.debug("Not caching {}: larger than {} bytes.", name,
+                        maxEntryBytes);
+                abandon();
+                return;
+            }
+            try {
+                out.write(b, off, len);
+                copied += len;
+            } catch (IOException e) {
+                LOGGER.warn("Unable to cache content in " + tmp + "!", e);
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.trace("Unable to close " + tmp + ".", e);
+            }
+            out = null;
+            tmp.delete();
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (out != null) {
+                    if (complete && expected >= 0 && copied != expected) {
+                        LOGGER.warn("Not caching {}: read {} of {} bytes.",
+                                name, copied, expected);
+                        abandon();
+                    } else if (complete) {
+                        try {
+                            out.close();
+                            out = null;
+                            add(name, tmp);
+                        } catch (IOException e) {
+                            LOGGER.warn("Unable to cache content in " + tmp
+                                    + "!", e);
+                            tmp.delete();
+                        }
+                    } else {
+                        abandon();
+                    }
+                }
+            }
+        }
+    }
+}
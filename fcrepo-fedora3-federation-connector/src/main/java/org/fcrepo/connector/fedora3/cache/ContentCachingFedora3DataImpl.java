@@ -0,0 +1,454 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.cache;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.modeshape.common.util.SecureHash;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A Fedora3DataInterface implementation that wraps another and keeps the
+ * content of recently read datastream versions in a {@link ContentCache} on
+ * the local disk, so that the content of popular datastreams is read from
+ * fedora 3 only once.  Only the content of managed and inline XML
+ * datastreams, which can't change without creating a new version, is
+ * cached.  Digests that must be computed from the content are computed
+ * from the cached content, so this should wrap any
+ * DigestStoreFedora3DataImpl rather than be wrapped by it.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "contentCache" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "contentCache" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.cache.ContentCachingFedora3DataImpl",
+ *        "directory" : "/var/cache/fcrepo/fedora3-content",
+ *        "maxMegabytes" : 10240,
+ *        "maxEntryMegabytes" : 512,
+ *        "evictionPolicy" : "LRU"
+ *    }
+ *  }
+ * </pre>
+ */
+public class ContentCachingFedora3DataImpl implements Fedora3DataInterface {
+
+    private static final Logger LOGGER
+        = getLogger(ContentCachingFedora3DataImpl.class);
+
+    private String directory;
+
+    private long maxMegabytes = 1024;
+
+    private long maxEntryMegabytes = -1;
+
+    private String evictionPolicy = CachingFedora3DataImpl.LRU;
+
+    private Fedora3DataInterface f3;
+
+    private ContentCache cache;
+
+    /**
+     * Provides the Fedora3DataInterface whose content will be cached by this
+     * implementation and opens the cache.  This must be called once after
+     * configuration and before any other method.
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        if (directory == null) {
+            throw new IllegalStateException("\"directory\" must be set!");
+        }
+        if (maxEntryMegabytes > maxMegabytes) {
+            throw new IllegalStateException("\"maxEntryMegabytes\" must not"
+                    + " exceed \"maxMegabytes\"!");
+        }
+        f3 = fedora;
+        long maxBytes = maxMegabytes * 1024 * 1024;
+        long maxEntryBytes = maxEntryMegabytes < 0 ? maxBytes / 10
+                : maxEntryMegabytes * 1024 * 1024;
+        try {
+            cache = new ContentCache(new File(directory), maxBytes,
+                    maxEntryBytes,
+                    CachingFedora3DataImpl.LRU.equalsIgnoreCase(
+                            evictionPolicy));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LOGGER.debug("Caching up to {}MB of content (and {} bytes per entry)"
+                + " in {} with {} eviction.", new Object[] { maxMegabytes,
+                maxEntryBytes, directory, evictionPolicy });
+    }
+
+    /**
+     * Sets the path of the directory in which content is cached.
+     */
+    public void setDirectory(String path) {
+        this.directory = path;
+    }
+
+    /**
+     * Sets the maximum number of megabytes of content that will be held at
+     * once.
+     */
+    public void setMaxMegabytes(long maxMegabytes) {
+        if (maxMegabytes < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxMegabytes = maxMegabytes;
+    }
+
+    /**
+     * Sets the maximum number of megabytes of content that will be held for
+     * a single datastream version; larger content is always read from
+     * fedora 3.  This defaults to a tenth of the maximum size of the cache,
+     * so that reading one large file can't evict all the other content.
+     */
+    public void setMaxEntryMegabytes(long maxEntryMegabytes) {
+        if (maxEntryMegabytes < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxEntryMegabytes = maxEntryMegabytes;
+    }
+
+    /**
+     * Sets the policy used to pick which content is evicted when the cache
+     * is full; either "LRU" or "FIFO".
+     */
+    public void setEvictionPolicy(String policy) {
+        if (!CachingFedora3DataImpl.LRU.equalsIgnoreCase(policy)
+                && !CachingFedora3DataImpl.FIFO.equalsIgnoreCase(policy)) {
+            throw new IllegalArgumentException("Unknown eviction policy \""
+                    + policy + "\"!");
+        }
+        this.evictionPolicy = policy;
+    }
+
+    /**
+     * Gets the cache of content.
+     */
+    public ContentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraObjectRecord getObjectByPid(String pid) {
+        return f3.getObjectByPid(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesObjectExist(String pid) {
+        return f3.doesObjectExist(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPids(long offset, int pageSize) {
+        return f3.getObjectPids(offset, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsAfter(String lastPid, int pageSize) {
+        return f3.getObjectPidsAfter(lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getContentModels(String pid) {
+        return f3.getContentModels(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getContentModelCounts() {
+        return f3.getContentModelCounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsWithModelAfter(String model,
+            String lastPid, int pageSize) {
+        return f3.getObjectPidsWithModelAfter(model, lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PidIterator iterateObjectPids() {
+        return f3.iterateObjectPids();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getObjectPosition(String pid) {
+        return f3.getObjectPosition(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsAt(long[] positions) {
+        return f3.getObjectPidsAt(positions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSize() {
+        return f3.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getLastModifiedDate() {
+        return f3.getLastModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getFirstModifiedDate() {
+        return f3.getFirstModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getObjectModifiedDate(String pid) {
+        return f3.getObjectModifiedDate(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsModifiedBetween(Date start, Date end) {
+        return f3.getObjectPidsModifiedBetween(start, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public RelationshipIterator iterateRelationships(String predicate,
+            Date modifiedSince) {
+        return f3.iterateRelationships(predicate, modifiedSince);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The content of the versions of the returned record is read from the
+     * cache when it has been cached.
+     */
+    public FedoraDatastreamRecord getDatastream(String pid, String dsid) {
+        FedoraDatastreamRecord ds = f3.getDatastream(pid, dsid);
+        if (ds == null || !("M".equals(ds.getControlGroup())
+                || "X".equals(ds.getControlGroup()))) {
+            return ds;
+        }
+        return new CachedContentDatastreamRecord(ds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesDatastreamExist(String pid, String dsid) {
+        return f3.doesDatastreamExist(pid, dsid);
+    }
+
+    /**
+     * A FedoraDatastreamRecord that wraps the versions of another in
+     * CachedContentVersionRecords.
+     */
+    private class CachedContentDatastreamRecord
+            implements FedoraDatastreamRecord {
+
+        private FedoraDatastreamRecord ds;
+
+        private List<FedoraDatastreamVersionRecord> history;
+
+        public CachedContentDatastreamRecord(FedoraDatastreamRecord ds) {
+            this.ds = ds;
+        }
+
+        public String getPid() {
+            return ds.getPid();
+        }
+
+        public String getId() {
+            return ds.getId();
+        }
+
+        public String getControlGroup() {
+            return ds.getControlGroup();
+        }
+
+        public String getState() {
+            return ds.getState();
+        }
+
+        public boolean getVersionable() {
+            return ds.getVersionable();
+        }
+
+        public synchronized List<FedoraDatastreamVersionRecord> getHistory() {
+            if (history == null) {
+                history = new ArrayList<FedoraDatastreamVersionRecord>();
+                for (FedoraDatastreamVersionRecord v : ds.getHistory()) {
+                    history.add(new CachedContentVersionRecord(this, v));
+                }
+            }
+            return history;
+        }
+
+        public FedoraDatastreamVersionRecord getCurrentVersion() {
+            return new CachedContentVersionRecord(this,
+                    ds.getCurrentVersion());
+        }
+    }
+
+    /**
+     * A FedoraDatastreamVersionRecord that reads its content from the cache
+     * when it has been cached and adds it to the cache otherwise.
+     */
+    private class CachedContentVersionRecord
+            implements FedoraDatastreamVersionRecord {
+
+        private FedoraDatastreamRecord ds;
+
+        private FedoraDatastreamVersionRecord v;
+
+        public CachedContentVersionRecord(FedoraDatastreamRecord ds,
+                FedoraDatastreamVersionRecord v) {
+            this.ds = ds;
+            this.v = v;
+        }
+
+        public String getVersionId() {
+            return v.getVersionId();
+        }
+
+        public String getLabel() {
+            return v.getLabel();
+        }
+
+        public Date getCreatedDate() {
+            return v.getCreatedDate();
+        }
+
+        public String getMimeType() {
+            return v.getMimeType();
+        }
+
+        public String getFormatURI() {
+            return v.getFormatURI();
+        }
+
+        public List<String> getAltIDs() {
+            return v.getAltIDs();
+        }
+
+        public String getContentDigestType() {
+            return v.getContentDigestType();
+        }
+
+        public String getContentDigest() {
+            return v.getContentDigest();
+        }
+
+        public long getContentLength() {
+            return v.getContentLength();
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Cached content is read from its file, otherwise the content is
+         * read from the wrapped record and cached as it is read (unless it
+         * is too large to be cached).
+         */
+        public InputStream getStream() throws Exception {
+            if (v.getContentLength() > cache.getMaxEntrySize()) {
+                return v.getStream();
+            }
+            String name = ContentCache.getName(ds.getPid(), ds.getId(),
+                    v.getVersionId(), v.getCreatedDate());
+            InputStream in = cache.get(name);
+            if (in != null) {
+                LOGGER.trace("Read {} {} {} from the content cache.",
+                        ds.getPid(), ds.getId(), v.getVersionId());
+                return in;
+            }
+            // fedora 3 records a reliable size only for managed content
+            long length = v.getContentLength();
+            return cache.fill(name, v.getStream(),
+                    "M".equals(ds.getControlGroup()) && length > 0
+                            ? length : -1);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Unless fedora 3 has recorded a SHA-1 checksum or the content is
+         * too large to be cached, the digest is computed from the content
+         * read through the cache, so that content which is hashed and then
+         * read (or the reverse) is only fetched from fedora 3 once.
+         */
+        public byte[] getSha1() throws Exception {
+            if (("SHA-1".equalsIgnoreCase(v.getContentDigestType())
+                    && v.getContentDigest() != null)
+                    || v.getContentLength() > cache.getMaxEntrySize()) {
+                return v.getSha1();
+            }
+            InputStream in = getStream();
+            try {
+                return SecureHash.getHash(SecureHash.Algorithm.SHA_1, in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
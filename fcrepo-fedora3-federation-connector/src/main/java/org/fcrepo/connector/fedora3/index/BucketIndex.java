@@ -0,0 +1,259 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A list of pids partitioned into a fixed number of numbered buckets, stored
+ * in a file and accessed through a read-only memory mapping.  The file
+ * consists of a header, a table of offsets (one per bucket plus one marking
+ * the end) and a region in which the pids of each bucket are packed together
+ * (each preceded by its length in bytes), so that the pids in any bucket may
+ * be read without reading any other bucket.
+ *
+ * <pre>
+ *   int    magic number ("BKTX")
+ *   int    format version
+ *   int    number of buckets (b)
+ *   int    unused
+ *   long   number of pids
+ *   long[] b + 1 offsets into the pid region
+ *   byte[] the pid region
+ * </pre>
+ *
+ * As with the {@link PidIndex}, the file may be no larger than 2GB.
+ */
+public class BucketIndex {
+
+    private static final Logger LOGGER = getLogger(BucketIndex.class);
+
+    private static final int MAGIC = 0x424B5458;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 24;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Determines the bucket to which a pid belongs.
+     */
+    public interface BucketFunction {
+
+        /**
+         * Gets the number (from zero to one less than the number of buckets)
+         * of the bucket to which the given pid belongs.
+         */
+        public int getBucket(String pid);
+    }
+
+    private File file;
+
+    private MappedByteBuffer buffer;
+
+    private int bucketCount;
+
+    private long size;
+
+    private int pidRegionStart;
+
+    /**
+     * Writes an index of the given pids, partitioned by the given function
+     * into the given number of buckets, to the given file (replacing any
+     * existing file) and opens it.  Within each bucket the pids retain the
+     * order in which they were provided.  The pids are streamed through a
+     * temporary file so that the memory used doesn't depend on the number of
+     * pids.
+     */
+    public static BucketIndex build(Iterator<String> pids, BucketFunction f,
+            int bucketCount, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        File dir = file.getAbsoluteFile().getParentFile();
+        File pidsFile = File.createTempFile("bucketed-pids", ".tmp", dir);
+        File indexFile = File.createTempFile("bucket-index", ".tmp", dir);
+        try {
+            // first pass: note the bucket of each pid and size each bucket
+            long[] offsets = new long[bucketCount + 1];
+            long count = 0;
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(pidsFile)));
+            try {
+                while (pids.hasNext()) {
+                    String pid = pids.next();
+                    byte[] bytes = pid.getBytes(UTF8);
+                    if (bytes.length > 255) {
+                        throw new IllegalArgumentException("Pid " + pid
+                                + " is too long!");
+                    }
+                    int bucket = f.getBucket(pid);
+                    out.writeInt(bucket);
+                    out.writeByte(bytes.length);
+                    out.write(bytes);
+                    offsets[bucket + 1] += bytes.length + 1;
+                    count ++;
+                }
+            } finally {
+                out.close();
+            }
+            for (int i = 1; i < offsets.length; i ++) {
+                offsets[i] += offsets[i - 1];
+            }
+            int regionStart = HEADER_LENGTH + (bucketCount + 1) * 8;
+            if (regionStart + offsets[bucketCount] > Integer.MAX_VALUE) {
+                throw new IOException("Too many pids to index in " + file
+                        + "!");
+            }
+
+            // second pass: copy each pid to the next free spot in its bucket
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+            try {
+                MappedByteBuffer b = raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0,
+                        regionStart + offsets[bucketCount]);
+                b.putInt(MAGIC);
+                b.putInt(VERSION);
+                b.putInt(bucketCount);
+                b.putInt(0);
+                b.putLong(count);
+                for (long offset : offsets) {
+                    b.putLong(offset);
+                }
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(pidsFile)));
+                try {
+                    byte[] bytes = new byte[255];
+                    for (long i = 0; i < count; i ++) {
+                        int bucket = in.readInt();
+                        int length = in.readUnsignedByte();
+                        in.readFully(bytes, 0, length);
+                        b.position(regionStart + (int) offsets[bucket]);
+                        b.put((byte) length);
+                        b.put(bytes, 0, length);
+                        offsets[bucket] += length + 1;
+                    }
+                } finally {
+                    in.close();
+                }
+                b.force();
+            } finally {
+                raf.close();
+            }
+            // readers of the old file keep their mapping of it
+            Files.move(indexFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.debug("Built index of {} pids in {} buckets in {}ms.",
+                    count, bucketCount, (System.currentTimeMillis() - start));
+            return new BucketIndex(file);
+        } finally {
+            pidsFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Opens an existing index file.
+     */
+    public BucketIndex(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to be mapped!");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a bucket index!");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is an unsupported version!");
+        }
+        bucketCount = buffer.getInt(8);
+        size = buffer.getLong(16);
+        pidRegionStart = HEADER_LENGTH + (bucketCount + 1) * 8;
+    }
+
+    /**
+     * Gets the file containing this index.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of pids in this index.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of buckets in this index.
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * Gets the pids in the given bucket.
+     */
+    public List<String> getPids(int bucket) {
+        if (bucket < 0 || bucket >= bucketCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(bucket));
+        }
+        int offsetIndex = HEADER_LENGTH + bucket * 8;
+        int start = pidRegionStart + (int) buffer.getLong(offsetIndex);
+        int end = pidRegionStart + (int) buffer.getLong(offsetIndex + 8);
+        ByteBuffer b = buffer.duplicate();
+        b.position(start);
+        List<String> pids = new ArrayList<String>();
+        byte[] bytes = new byte[255];
+        while (b.position() < end) {
+            int length = b.get() & 0xFF;
+            b.get(bytes, 0, length);
+            pids.add(new String(bytes, 0, length, UTF8));
+        }
+        return pids;
+    }
+}
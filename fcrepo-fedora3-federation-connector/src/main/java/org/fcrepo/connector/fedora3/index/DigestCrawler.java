@@ -0,0 +1,494 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Walks every object in the repository (in pid order) and computes the
+ * digest of the current version of each of its managed datastreams that
+ * has neither a SHA-1 checksum recorded by fedora 3 nor a digest in the
+ * {@link DigestStore}, so that no request need wait while content is
+ * hashed.  Objects are crawled by a fixed number of daemon threads, which
+ * also limits the number of concurrent requests made to fedora 3.
+ *
+ * The pid before which every object has been crawled is saved to a
+ * checkpoint file every "reportSeconds" and when the crawl ends, and a
+ * later crawl resumes after it.  Objects whose digests couldn't be computed
+ * are saved with the checkpoint and retried by the next crawl.  Once every
+ * object has been crawled, the time at which that crawl began is saved in
+ * place of the pid, and later crawls visit only the objects modified since
+ * then, which picks up new objects and new versions of datastreams.
+ * Progress and throughput are logged at the same interval.
+ */
+public class DigestCrawler implements Runnable {
+
+    private static final Logger LOGGER = getLogger(DigestCrawler.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String MANAGED = "M";
+
+    private static final String AFTER = "after ";
+
+    private static final String BEGAN = "began ";
+
+    private static final String SINCE = "since ";
+
+    private static final String RETRY = "retry ";
+
+    private Fedora3DataInterface f3;
+
+    private DigestStore store;
+
+    private File checkpointFile;
+
+    private int threads;
+
+    private long reportMillis = 60000;
+
+    private volatile boolean stopped;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * The pids submitted to be crawled that haven't finished.
+     */
+    private TreeSet<String> pending = new TreeSet<String>();
+
+    /**
+     * Finished pids that follow the first pending pid.
+     */
+    private TreeSet<String> finished = new TreeSet<String>();
+
+    /**
+     * The pid through which every object has been crawled.
+     */
+    private String checkpoint;
+
+    /**
+     * The time at which the current crawl (or the one it resumes) began.
+     */
+    private long began;
+
+    /**
+     * The time at which the last complete crawl began, or -1 if no crawl
+     * has completed.
+     */
+    private long since = -1;
+
+    /**
+     * The pids whose digests couldn't be computed, to be retried.
+     */
+    private TreeSet<String> failed = new TreeSet<String>();
+
+    private AtomicLong objects = new AtomicLong();
+
+    private AtomicLong datastreams = new AtomicLong();
+
+    private AtomicLong hashed = new AtomicLong();
+
+    private AtomicLong bytes = new AtomicLong();
+
+    private AtomicLong failures = new AtomicLong();
+
+    /**
+     * A constructor for a crawler that computes digests through the given
+     * Fedora3DataInterface, whose datastream records must store the digests
+     * they compute in the given store.
+     */
+    public DigestCrawler(Fedora3DataInterface f3, DigestStore store,
+            int threads, File checkpointFile) {
+        if (threads < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.f3 = f3;
+        this.store = store;
+        this.threads = threads;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Sets the number of seconds between progress reports and checkpoints.
+     */
+    public void setReportSeconds(long seconds) {
+        this.reportMillis = seconds * 1000;
+    }
+
+    /**
+     * Stops the crawl after the objects that are being crawled have
+     * finished.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Waits up to the given number of milliseconds for the crawl to end.
+     * @return true if the crawl ended
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        return done.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the pid through which every object has been crawled, or null if
+     * none has or the crawl is complete.
+     */
+    public synchronized String getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Gets the pids whose digests couldn't be computed and will be retried.
+     */
+    public synchronized List<String> getFailedPids() {
+        return new ArrayList<String>(failed);
+    }
+
+    /**
+     * Gets the number of digests computed.
+     */
+    public long getHashedCount() {
+        return hashed.get();
+    }
+
+    /**
+     * Retries the pids that failed before and then crawls every object after
+     * the saved checkpoint or, if the last crawl completed, every object
+     * modified since it began.
+     */
+    public void run() {
+        try {
+            crawlAll();
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private void crawlAll() {
+        long start = System.currentTimeMillis();
+        List<String> retries;
+        synchronized (this) {
+            readCheckpoint();
+            retries = new ArrayList<String>(failed);
+            failed.clear();
+            if (checkpoint == null || began == 0) {
+                began = start;
+            }
+        }
+        Iterator<String> pids;
+        PidIterator walk = null;
+        if (since >= 0) {
+            LOGGER.info("Crawling digests of objects modified since {}.",
+                    new Date(since));
+            pids = f3.getObjectPidsModifiedBetween(new Date(since),
+                    new Date(began)).iterator();
+        } else {
+            if (checkpoint != null) {
+                LOGGER.info("Resuming digest crawl after {}.", checkpoint);
+            }
+            walk = f3.iterateObjectPids();
+            pids = walk;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory());
+        final Semaphore permits = new Semaphore(threads * 2);
+        long lastReport = start;
+        boolean complete = false;
+        try {
+            for (String pid : retries) {
+                if (stopped) {
+                    break;
+                }
+                permits.acquire();
+                submit(pool, permits, pid, true);
+            }
+            String resumeAfter = checkpoint;
+            while (!stopped && pids.hasNext()) {
+                String pid = pids.next();
+                if (resumeAfter != null && pid.compareTo(resumeAfter) <= 0) {
+                    continue;
+                }
+                permits.acquire();
+                synchronized (this) {
+                    pending.add(pid);
+                }
+                submit(pool, permits, pid, false);
+                if (System.currentTimeMillis() - lastReport > reportMillis) {
+                    report(start);
+                    lastReport = System.currentTimeMillis();
+                }
+            }
+            complete = !stopped;
+            pool.shutdown();
+            while (!pool.awaitTermination(reportMillis,
+                    TimeUnit.MILLISECONDS)) {
+                report(start);
+            }
+        } catch (InterruptedException e) {
+            complete = false;
+            LOGGER.warn("Digest crawl interrupted.");
+        } finally {
+            pool.shutdownNow();
+            if (walk != null) {
+                try {
+                    walk.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to close pid iterator!", e);
+                }
+            }
+        }
+        if (complete) {
+            synchronized (this) {
+                checkpoint = null;
+                since = began;
+            }
+        }
+        report(start);
+        LOGGER.info("Digest crawl {} after {}s.",
+                complete ? "finished" : "stopped",
+                (System.currentTimeMillis() - start) / 1000);
+    }
+
+    /**
+     * Submits the given pid to be crawled by the pool.
+     * @param retry true if the pid failed in an earlier crawl, in which case
+     *              it has no part in the checkpoint
+     */
+    private void submit(ExecutorService pool, final Semaphore permits,
+            final String pid, final boolean retry) {
+        pool.execute(new Runnable() {
+            public void run() {
+                boolean succeeded = false;
+                try {
+                    crawl(pid);
+                    succeeded = true;
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                    LOGGER.warn("Unable to compute digests for "
+                            + pid + "!", e);
+                } finally {
+                    finish(pid, succeeded, retry);
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the missing digests of the managed datastreams of the given
+     * object.
+     */
+    private void crawl(String pid) {
+        FedoraObjectRecord o = f3.getObjectByPid(pid);
+        for (String dsid : o.listDatastreamIds()) {
+            FedoraDatastreamRecord ds = f3.getDatastream(pid, dsid);
+            if (!MANAGED.equals(ds.getControlGroup())) {
+                continue;
+            }
+            datastreams.incrementAndGet();
+            FedoraDatastreamVersionRecord v = ds.getCurrentVersion();
+            if (("SHA-1".equalsIgnoreCase(v.getContentDigestType())
+                    && v.getContentDigest() != null)
+                    || store.get(pid, dsid, v.getVersionId(),
+                            v.getCreatedDate()) != null) {
+                continue;
+            }
+            try {
+                v.getSha1();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            hashed.incrementAndGet();
+            bytes.addAndGet(Math.max(0, v.getContentLength()));
+        }
+        objects.incrementAndGet();
+    }
+
+    /**
+     * Notes that the given pid has been crawled, recording it for retry if
+     * it failed, and (unless it was itself a retry) advances the checkpoint
+     * to the last pid that precedes every pending pid.
+     */
+    private synchronized void finish(String pid, boolean succeeded,
+            boolean retry) {
+        if (!succeeded) {
+            failed.add(pid);
+        }
+        if (retry) {
+            return;
+        }
+        pending.remove(pid);
+        finished.add(pid);
+        String through = pending.isEmpty()
+                ? finished.last() : finished.lower(pending.first());
+        if (through != null) {
+            checkpoint = through;
+            finished.headSet(through, true).clear();
+        }
+    }
+
+    /**
+     * Logs progress and throughput and saves the checkpoint.
+     */
+    private void report(long start) {
+        double seconds = Math.max(1,
+                System.currentTimeMillis() - start) / 1000.0;
+        LOGGER.info("Digest crawl: {} objects, {} managed datastreams, {}"
+                + " digests computed ({} MB, {} MB/s, {} objects/s), {}"
+                + " failures.", objects.get(), datastreams.get(),
+                hashed.get(), bytes.get() / (1024 * 1024),
+                String.format("%.1f", bytes.get() / (1024 * 1024) / seconds),
+                String.format("%.1f", objects.get() / seconds),
+                failures.get());
+        saveCheckpoint();
+    }
+
+    /**
+     * Reads the checkpoint file, which holds a line for each of the pid
+     * through which the current crawl has progressed ("after"), the time it
+     * began ("began"), the time the last complete crawl began ("since") and
+     * each pid to retry ("retry").  A file holding only a pid is read as the
+     * pid through which the crawl has progressed.
+     */
+    private void readCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(checkpointFile), UTF8));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith(AFTER)) {
+                        checkpoint = line.substring(AFTER.length());
+                    } else if (line.startsWith(BEGAN)) {
+                        began = Long.parseLong(line.substring(BEGAN.length()));
+                    } else if (line.startsWith(SINCE)) {
+                        since = Long.parseLong(line.substring(SINCE.length()));
+                    } else if (line.startsWith(RETRY)) {
+                        failed.add(line.substring(RETRY.length()));
+                    } else if (line.length() > 0) {
+                        checkpoint = line;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read checkpoint " + checkpointFile
+                    + ", starting from the first object.", e);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to read checkpoint " + checkpointFile
+                    + ", starting from the first object.", e);
+        }
+    }
+
+    /**
+     * Writes any digests in the store to the disk and then the checkpoint
+     * to a temporary file that atomically replaces the checkpoint file, so
+     * the checkpoint never claims digests that could be lost and a
+     * partially written checkpoint is never read.
+     */
+    public void saveCheckpoint() {
+        StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            if (checkpoint != null) {
+                text.append(AFTER).append(checkpoint).append('\n');
+                text.append(BEGAN).append(began).append('\n');
+            }
+            if (since >= 0) {
+                text.append(SINCE).append(since).append('\n');
+            }
+            for (String pid : failed) {
+                text.append(RETRY).append(pid).append('\n');
+            }
+        }
+        store.force();
+        try {
+            File dir = checkpointFile.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile("digest-checkpoint", ".tmp", dir);
+            try {
+                Writer w = new OutputStreamWriter(new FileOutputStream(tmp),
+                        UTF8);
+                try {
+                    w.write(text.toString());
+                } finally {
+                    w.close();
+                }
+                Files.move(tmp.toPath(), checkpointFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save checkpoint " + checkpointFile + "!", e);
+        }
+    }
+
+    /**
+     * Creates the daemon threads of the crawl, so that a crawl in progress
+     * never keeps the JVM from exiting.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "fedora3-digest-crawler-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A persistent store of the SHA-1 digests of datastream versions, held in a
+ * file that is accessed through a read-write memory mapping.  The file is a
+ * hash table (with linear probing) of fixed-width slots, each of which holds
+ * a 128 bit key identifying a datastream version (derived from its pid,
+ * dsid, version id and creation date) and the digest of its content.
+ *
+ * <pre>
+ *   int    magic number ("DGST")
+ *   int    format version
+ *   int    log2 of the number of slots (s)
+ *   int    unused
+ *   long   number of digests
+ *   slots  2^s slots of a 16 byte key (zero when empty) and a 20 byte digest
+ * </pre>
+ *
+ * When the table becomes three quarters full it is copied into a new file
+ * with twice as many slots, which is renamed over the old one.  Because a
+ * digest is written to the mapping as soon as it is stored, it survives a
+ * restart of the JVM even if {@link #close} is never called.
+ */
+public class DigestStore {
+
+    private static final Logger LOGGER = getLogger(DigestStore.class);
+
+    private static final int MAGIC = 0x44475354;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 24;
+
+    private static final int DIGEST_LENGTH = 20;
+
+    private static final int SLOT_LENGTH = 16 + DIGEST_LENGTH;
+
+    private static final int MIN_SLOT_BITS = 16;
+
+    private static final int MAX_SLOT_BITS = 30;
+
+    /**
+     * The slots are mapped in several buffers, each of which holds this
+     * many slots, because a single buffer may be no larger than 2GB.
+     */
+    private static final int BUFFER_SLOT_BITS = 24;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    private MappedByteBuffer header;
+
+    private MappedByteBuffer[] buffers;
+
+    private int slotBits;
+
+    private long size;
+
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Opens the store in the given file, creating an empty store if the file
+     * doesn't exist.
+     */
+    public DigestStore(File file) throws IOException {
+        this.file = file;
+        if (!file.exists()) {
+            create(file, MIN_SLOT_BITS);
+        }
+        open();
+    }
+
+    /**
+     * Creates an empty store with 2^slotBits slots in the given file.
+     */
+    private static void create(File file, int slotBits) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(HEADER_LENGTH + ((long) SLOT_LENGTH << slotBits));
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(slotBits);
+            raf.writeInt(0);
+            raf.writeLong(0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void open() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel c = raf.getChannel();
+            if (c.size() < HEADER_LENGTH) {
+                throw new IOException(file + " is not a digest store!");
+            }
+            header = c.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a digest store!");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException(file + " is an unsupported version!");
+            }
+            slotBits = header.getInt(8);
+            size = header.getLong(16);
+            long slots = 1L << slotBits;
+            if (c.size() != HEADER_LENGTH + slots * SLOT_LENGTH) {
+                throw new IOException(file + " is truncated!");
+            }
+            int bufferSlots = 1 << Math.min(slotBits, BUFFER_SLOT_BITS);
+            buffers = new MappedByteBuffer[(int) (slots / bufferSlots)];
+            for (int i = 0; i < buffers.length; i ++) {
+                buffers[i] = c.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_LENGTH + (long) i * bufferSlots * SLOT_LENGTH,
+                        (long) bufferSlots * SLOT_LENGTH);
+            }
+        } finally {
+            raf.close();
+        }
+        LOGGER.debug("Opened store of {} digests at {}.", size, file);
+    }
+
+    /**
+     * Gets the file containing this store.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of digests in this store.
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the stored SHA-1 digest of the content of the given datastream
+     * version, or null if none has been stored.
+     */
+    public byte[] get(String pid, String dsid, String versionId,
+            Date createdDate) {
+        long[] key = getKey(pid, dsid, versionId, createdDate);
+        lock.readLock().lock();
+        try {
+            long slot = find(key[0], key[1]);
+            if (isEmpty(slot)) {
+                return null;
+            }
+            byte[] digest = new byte[DIGEST_LENGTH];
+            ByteBuffer b = getBuffer(slot).duplicate();
+            b.position(getOffset(slot) + 16);
+            b.get(digest);
+            return digest;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the SHA-1 digest of the content of the given datastream
+     * version, replacing any that was previously stored.
+     */
+    public void put(String pid, String dsid, String versionId,
+            Date createdDate, byte[] digest) throws IOException {
+        if (digest.length != DIGEST_LENGTH) {
+            throw new IllegalArgumentException("A SHA-1 digest must be "
+                    + DIGEST_LENGTH + " bytes!");
+        }
+        long[] key = getKey(pid, dsid, versionId, createdDate);
+        lock.writeLock().lock();
+        try {
+            long slot = find(key[0], key[1]);
+            if (isEmpty(slot)) {
+                if ((size + 1) * 4 > (3L << slotBits)) {
+                    grow();
+                    slot = find(key[0], key[1]);
+                }
+                size ++;
+                header.putLong(16, size);
+            }
+            write(slot, key[0], key[1], digest);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes any changes to the disk.  The store may not be used after it
+     * has been closed.
+     */
+    public void close() {
+        force();
+    }
+
+    /**
+     * Writes any changes to the disk, after which every digest stored so far
+     * will survive a crash.
+     */
+    public void force() {
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer b : buffers) {
+                b.force();
+            }
+            header.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot holding the given key or, if the key isn't stored, the
+     * empty slot in which it would be stored.
+     */
+    private long find(long k1, long k2) {
+        long mask = (1L << slotBits) - 1;
+        long slot = k1 & mask;
+        while (true) {
+            ByteBuffer b = getBuffer(slot);
+            int offset = getOffset(slot);
+            long s1 = b.getLong(offset);
+            long s2 = b.getLong(offset + 8);
+            if ((s1 == 0 && s2 == 0) || (s1 == k1 && s2 == k2)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean isEmpty(long slot) {
+        ByteBuffer b = getBuffer(slot);
+        int offset = getOffset(slot);
+        return b.getLong(offset) == 0 && b.getLong(offset + 8) == 0;
+    }
+
+    private MappedByteBuffer getBuffer(long slot) {
+        return buffers[(int) (slot >>> BUFFER_SLOT_BITS)];
+    }
+
+    private int getOffset(long slot) {
+        return (int) (slot & ((1 << BUFFER_SLOT_BITS) - 1)) * SLOT_LENGTH;
+    }
+
+    /**
+     * Copies every digest into a new file with twice as many slots, which
+     * then atomically replaces the current file so that a crash leaves one
+     * complete store or the other.
+     */
+    private void grow() throws IOException {
+        if (slotBits == MAX_SLOT_BITS) {
+            throw new IOException(file + " can hold no more digests!");
+        }
+        long start = System.currentTimeMillis();
+        File dir = file.getAbsoluteFile().getParentFile();
+        File newFile = File.createTempFile("digests", ".tmp", dir);
+        try {
+            create(newFile, slotBits + 1);
+            DigestStore larger = new DigestStore(newFile);
+            long slots = 1L << slotBits;
+            byte[] digest = new byte[DIGEST_LENGTH];
+            for (long slot = 0; slot < slots; slot ++) {
+                if (!isEmpty(slot)) {
+                    ByteBuffer b = getBuffer(slot).duplicate();
+                    int offset = getOffset(slot);
+                    b.position(offset + 16);
+                    b.get(digest);
+                    larger.insert(b.getLong(offset), b.getLong(offset + 8),
+                            digest);
+                }
+            }
+            larger.close();
+            Files.move(newFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            newFile.delete();
+        }
+        open();
+        LOGGER.debug("Grew store of {} digests to {} slots in {}ms.", size,
+                (1L << slotBits), (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Adds a digest under a key that isn't yet stored to a store that isn't
+     * yet shared and has room for it.
+     */
+    private void insert(long k1, long k2, byte[] digest) {
+        write(find(k1, k2), k1, k2, digest);
+        size ++;
+        header.putLong(16, size);
+    }
+
+    /**
+     * Writes the given key and digest to the given slot.  The key is written
+     * last so that a slot is never left with a key but only part of its
+     * digest.
+     */
+    private void write(long slot, long k1, long k2, byte[] digest) {
+        ByteBuffer b = getBuffer(slot);
+        int offset = getOffset(slot);
+        for (int i = 0; i < DIGEST_LENGTH; i ++) {
+            b.put(offset + 16 + i, digest[i]);
+        }
+        b.putLong(offset, k1);
+        b.putLong(offset + 8, k2);
+    }
+
+    /**
+     * Gets the 128 bit key (as two longs, which are never both zero) for the
+     * given datastream version.  The key is the first 128 bits of the SHA-1
+     * hash of the version's identifying values.
+     */
+    static long[] getKey(String pid, String dsid, String versionId,
+            Date createdDate) {
+        String id = pid + "\n" + dsid + "\n" + versionId + "\n"
+                + (createdDate == null ? "" : createdDate.getTime());
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(
+                    id.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer b = ByteBuffer.wrap(hash);
+        long[] key = new long[] { b.getLong(), b.getLong() };
+        if (key[0] == 0 && key[1] == 0) {
+            key[1] = 1;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,478 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A Fedora3DataInterface implementation that wraps another and keeps the
+ * SHA-1 digests computed for the content of datastream versions in a
+ * {@link DigestStore} on the local disk, so that the content of a version is
+ * read to compute its digest at most once, even across restarts.  Versions
+ * for which fedora 3 has recorded a SHA-1 checksum need no store and are
+ * passed through.
+ *
+ * When "crawlThreads" is set, a {@link DigestCrawler} with that many threads
+ * is started in the background to compute the digests of every managed
+ * datastream ahead of any request for them.  Its progress is saved in
+ * "checkpointFile" (by default the "storeFile" with ".checkpoint" appended)
+ * so that after a restart it resumes where it stopped or, once it has
+ * completed, visits only the objects modified since.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "digestStore" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "digestStore" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.index.DigestStoreFedora3DataImpl",
+ *        "storeFile" : "/var/lib/fcrepo/fedora3-digests.db",
+ *        "crawlThreads" : 4
+ *    }
+ *  }
+ * </pre>
+ */
+public class DigestStoreFedora3DataImpl implements Fedora3DataInterface {
+
+    private static final Logger LOGGER
+        = getLogger(DigestStoreFedora3DataImpl.class);
+
+    /**
+     * The longest time close() waits for a digest crawl to stop.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 30000;
+
+    private String storeFile;
+
+    private int crawlThreads = 0;
+
+    private String checkpointFile;
+
+    private Fedora3DataInterface f3;
+
+    private DigestStore store;
+
+    private DigestCrawler crawler;
+
+    /**
+     * The Fedora3DataInterface from which the crawl reads content, if other
+     * than the one whose digests are stored.
+     */
+    private Fedora3DataInterface crawlSource;
+
+    /**
+     * Provides the Fedora3DataInterface whose datastream digests will be
+     * stored by this implementation and opens (or creates) the store.  This
+     * must be called once after configuration and before any other method.
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        if (storeFile == null) {
+            throw new IllegalStateException("\"storeFile\" must be set!");
+        }
+        f3 = fedora;
+        try {
+            store = new DigestStore(new File(storeFile));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (crawlThreads > 0) {
+            crawler = new DigestCrawler(getCrawlView(), store, crawlThreads,
+                    new File(checkpointFile != null
+                            ? checkpointFile : storeFile + ".checkpoint"));
+            Thread t = new Thread(crawler, "fedora3-digest-crawler");
+            t.setDaemon(true);
+            t.start();
+            LOGGER.info("Started digest crawl with {} threads.",
+                    crawlThreads);
+        }
+    }
+
+    /**
+     * Sets the path of the file in which the digests are stored.
+     */
+    public void setStoreFile(String path) {
+        this.storeFile = path;
+    }
+
+    /**
+     * Sets the number of threads with which digests are computed in the
+     * background (and thus the number of concurrent requests made to fedora
+     * 3 for content), or zero (the default) to only compute digests when
+     * they are needed.
+     */
+    public void setCrawlThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.crawlThreads = threads;
+    }
+
+    /**
+     * Sets the Fedora3DataInterface from which the background computation of
+     * digests reads content, which must expose the same objects as the one
+     * this is initialized with.  The connector sets it to the interface
+     * beneath any content cache, so that a crawl of every datastream doesn't
+     * fill the cache and evict the content that's actually being read.  This
+     * must be set before initialization.
+     */
+    public void setCrawlSource(Fedora3DataInterface source) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "The crawl source must be set before initialization!");
+        }
+        this.crawlSource = source;
+    }
+
+    /**
+     * Gets the Fedora3DataInterface crawled for digests: this one, or else
+     * a view of the crawl source that stores the digests it computes in the
+     * same store.
+     */
+    private Fedora3DataInterface getCrawlView() {
+        if (crawlSource == null || crawlSource == f3) {
+            return this;
+        }
+        DigestStoreFedora3DataImpl view = new DigestStoreFedora3DataImpl();
+        view.f3 = crawlSource;
+        view.store = store;
+        return view;
+    }
+
+    /**
+     * Sets the path of the file in which the progress of the background
+     * computation of digests is saved.
+     */
+    public void setCheckpointFile(String path) {
+        this.checkpointFile = path;
+    }
+
+    /**
+     * Gets the store of digests.
+     */
+    public DigestStore getStore() {
+        return store;
+    }
+
+    /**
+     * Stops any background computation of digests, waiting up to
+     * CLOSE_TIMEOUT_MILLIS for the digests being computed, and then writes
+     * the stored digests to the disk followed by the progress of the crawl.
+     */
+    public void close() {
+        if (crawler != null) {
+            crawler.stop();
+            try {
+                if (!crawler.awaitTermination(CLOSE_TIMEOUT_MILLIS)) {
+                    LOGGER.warn("Digest crawl still running after {}ms.",
+                            CLOSE_TIMEOUT_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        store.close();
+        if (crawler != null) {
+            crawler.saveCheckpoint();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraObjectRecord getObjectByPid(String pid) {
+        return f3.getObjectByPid(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesObjectExist(String pid) {
+        return f3.doesObjectExist(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPids(long offset, int pageSize) {
+        return f3.getObjectPids(offset, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsAfter(String lastPid, int pageSize) {
+        return f3.getObjectPidsAfter(lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getContentModels(String pid) {
+        return f3.getContentModels(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getContentModelCounts() {
+        return f3.getContentModelCounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsWithModelAfter(String model,
+            String lastPid, int pageSize) {
+        return f3.getObjectPidsWithModelAfter(model, lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PidIterator iterateObjectPids() {
+        return f3.iterateObjectPids();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getObjectPosition(String pid) {
+        return f3.getObjectPosition(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsAt(long[] positions) {
+        return f3.getObjectPidsAt(positions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSize() {
+        return f3.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getLastModifiedDate() {
+        return f3.getLastModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getFirstModifiedDate() {
+        return f3.getFirstModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getObjectModifiedDate(String pid) {
+        return f3.getObjectModifiedDate(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsModifiedBetween(Date start, Date end) {
+        return f3.getObjectPidsModifiedBetween(start, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public RelationshipIterator iterateRelationships(String predicate,
+            Date modifiedSince) {
+        return f3.iterateRelationships(predicate, modifiedSince);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The returned record gets the digests of its versions from the store
+     * when they've been stored and stores them when they're computed.
+     */
+    public FedoraDatastreamRecord getDatastream(String pid, String dsid) {
+        FedoraDatastreamRecord ds = f3.getDatastream(pid, dsid);
+        return ds == null ? null : new StoredDigestDatastreamRecord(ds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesDatastreamExist(String pid, String dsid) {
+        return f3.doesDatastreamExist(pid, dsid);
+    }
+
+    /**
+     * A FedoraDatastreamRecord that wraps the versions of another in
+     * StoredDigestVersionRecords.
+     */
+    private class StoredDigestDatastreamRecord
+            implements FedoraDatastreamRecord {
+
+        private FedoraDatastreamRecord ds;
+
+        private List<FedoraDatastreamVersionRecord> history;
+
+        public StoredDigestDatastreamRecord(FedoraDatastreamRecord ds) {
+            this.ds = ds;
+        }
+
+        public String getPid() {
+            return ds.getPid();
+        }
+
+        public String getId() {
+            return ds.getId();
+        }
+
+        public String getControlGroup() {
+            return ds.getControlGroup();
+        }
+
+        public String getState() {
+            return ds.getState();
+        }
+
+        public boolean getVersionable() {
+            return ds.getVersionable();
+        }
+
+        public synchronized List<FedoraDatastreamVersionRecord> getHistory() {
+            if (history == null) {
+                history = new ArrayList<FedoraDatastreamVersionRecord>();
+                for (FedoraDatastreamVersionRecord v : ds.getHistory()) {
+                    history.add(new StoredDigestVersionRecord(this, v));
+                }
+            }
+            return history;
+        }
+
+        public FedoraDatastreamVersionRecord getCurrentVersion() {
+            return new StoredDigestVersionRecord(this,
+                    ds.getCurrentVersion());
+        }
+    }
+
+    /**
+     * A FedoraDatastreamVersionRecord that checks the store before computing
+     * the digest of its content and stores it afterward.
+     */
+    private class StoredDigestVersionRecord
+            implements FedoraDatastreamVersionRecord {
+
+        private FedoraDatastreamRecord ds;
+
+        private FedoraDatastreamVersionRecord v;
+
+        public StoredDigestVersionRecord(FedoraDatastreamRecord ds,
+                FedoraDatastreamVersionRecord v) {
+            this.ds = ds;
+            this.v = v;
+        }
+
+        public String getVersionId() {
+            return v.getVersionId();
+        }
+
+        public String getLabel() {
+            return v.getLabel();
+        }
+
+        public Date getCreatedDate() {
+            return v.getCreatedDate();
+        }
+
+        public String getMimeType() {
+            return v.getMimeType();
+        }
+
+        public String getFormatURI() {
+            return v.getFormatURI();
+        }
+
+        public List<String> getAltIDs() {
+            return v.getAltIDs();
+        }
+
+        public String getContentDigestType() {
+            return v.getContentDigestType();
+        }
+
+        public String getContentDigest() {
+            return v.getContentDigest();
+        }
+
+        public long getContentLength() {
+            return v.getContentLength();
+        }
+
+        public InputStream getStream() throws Exception {
+            return v.getStream();
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * A digest recorded by fedora 3 is returned by the wrapped record,
+         * otherwise the digest is read from the store or, failing that,
+         * computed by the wrapped record and stored.
+         */
+        public byte[] getSha1() throws Exception {
+            if ("SHA-1".equalsIgnoreCase(v.getContentDigestType())
+                    && v.getContentDigest() != null) {
+                return v.getSha1();
+            }
+            byte[] sha1 = store.get(ds.getPid(), ds.getId(),
+                    v.getVersionId(), v.getCreatedDate());
+            if (sha1 == null) {
+                sha1 = v.getSha1();
+                store.put(ds.getPid(), ds.getId(), v.getVersionId(),
+                        v.getCreatedDate(), sha1);
+                LOGGER.trace("Stored SHA-1 for {} {} {}.", ds.getPid(),
+                        ds.getId(), v.getVersionId());
+            }
+            return sha1;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A Fedora3DataInterface implementation that wraps another and answers
+ * queries about the list of pids in the repository from a {@link PidIndex}
+ * on the local disk.  The index is built from a single pass over the pids of
+ * the wrapped implementation the first time it is needed and reused after a
+ * restart as long as the repository size is unchanged.  Whenever the size
+ * reported by the wrapped implementation changes, the index is rebuilt by a
+ * background thread while the previous index continues to answer queries,
+ * and the new one replaces it once it is complete.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "pidIndex" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "pidIndex" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.index.IndexedFedora3DataImpl",
+ *        "indexFile" : "/var/lib/fcrepo/fedora3-pids.idx"
+ *    }
+ *  }
+ * </pre>
+ */
+public class IndexedFedora3DataImpl implements Fedora3DataInterface {
+
+    private static final Logger LOGGER
+        = getLogger(IndexedFedora3DataImpl.class);
+
+    private String indexFile;
+
+    private Fedora3DataInterface f3;
+
+    private volatile PidIndex index;
+
+    /**
+     * The size reported by the wrapped implementation when the index was
+     * built.
+     */
+    private volatile long indexedSize;
+
+    /**
+     * Set while a background thread is rebuilding the index.
+     */
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private volatile Thread rebuilder;
+
+    /**
+     * Provides the Fedora3DataInterface whose pids will be indexed by this
+     * implementation and opens (or builds) the index.  This must be called
+     * once after configuration and before any other method.
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        if (indexFile == null) {
+            throw new IllegalStateException("\"indexFile\" must be set!");
+        }
+        f3 = fedora;
+        File file = new File(indexFile);
+        if (file.exists()) {
+            try {
+                index = new PidIndex(file);
+            } catch (IOException e) {
+                LOGGER.warn("Rebuilding unreadable index at " + file + ".",
+                        e);
+                build(f3.getSize());
+                return;
+            }
+            indexedSize = index.size();
+            if (indexedSize == f3.getSize()) {
+                LOGGER.debug("Opened index of {} pids at {}.",
+                        index.size(), file);
+                return;
+            }
+            LOGGER.info("Rebuilding stale index at {} ({} pids while"
+                    + " the repository has {}).", file, index.size(),
+                    f3.getSize());
+            rebuild();
+            return;
+        }
+        build(f3.getSize());
+    }
+
+    /**
+     * Builds the index from the pids of the wrapped implementation, which had
+     * the given size beforehand.  The new index is written to a separate file
+     * and renamed over the old one, so readers of the old index are
+     * unaffected, and it replaces the old one only once it is complete.
+     */
+    private void build(long size) {
+        try {
+            PidIterator pids = f3.iterateObjectPids();
+            try {
+                index = PidIndex.build(pids, new File(indexFile));
+            } finally {
+                pids.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        indexedSize = size;
+    }
+
+    /**
+     * Starts a background thread to rebuild the index unless one is already
+     * running.  Until it completes, the current index is used.
+     */
+    private void rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    build(f3.getSize());
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to rebuild index at " + indexFile
+                            + "!", e);
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        }, "fedora3-pid-indexer");
+        t.setDaemon(true);
+        rebuilder = t;
+        t.start();
+    }
+
+    /**
+     * Waits for a rebuild of the index that is in progress, if any, to
+     * complete.
+     */
+    void awaitRebuild() throws InterruptedException {
+        Thread t = rebuilder;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * Sets the path of the file in which the pid index is stored.
+     */
+    public void setIndexFile(String path) {
+        this.indexFile = path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraObjectRecord getObjectByPid(String pid) {
+        return f3.getObjectByPid(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesObjectExist(String pid) {
+        return f3.doesObjectExist(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Pids are read from the local index.
+     */
+    public List<String> getObjectPids(long offset, int pageSize) {
+        return index.getPids(offset, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Pids are read from the local index.
+     */
+    public List<String> getObjectPidsAfter(String lastPid, int pageSize) {
+        PidIndex index = this.index;
+        long position = 0;
+        if (lastPid != null) {
+            position = index.positionOf(lastPid);
+            position = position < 0 ? -(position + 1) : position + 1;
+        }
+        return index.getPids(position, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The local index holds no content models, so this is passed through to
+     * the wrapped implementation.
+     */
+    public List<String> getContentModels(String pid) {
+        return f3.getContentModels(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The local index holds no content models, so this is passed through to
+     * the wrapped implementation.
+     */
+    public Map<String, Long> getContentModelCounts() {
+        return f3.getContentModelCounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The local index holds no content models, so this is passed through to
+     * the wrapped implementation.
+     */
+    public List<String> getObjectPidsWithModelAfter(String model,
+            String lastPid, int pageSize) {
+        return f3.getObjectPidsWithModelAfter(model, lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Pids are read from the local index.
+     */
+    public PidIterator iterateObjectPids() {
+        final PidIndex index = this.index;
+        return new PidIterator() {
+
+            private long position = 0;
+
+            public boolean hasNext() {
+                return position < index.size();
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return index.getPid(position ++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+                position = index.size();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The position is found by a binary search of the local index.
+     */
+    public long getObjectPosition(String pid) {
+        long position = index.positionOf(pid);
+        return position < 0 ? -1 : position;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Pids are read from the local index.
+     */
+    public List<String> getObjectPidsAt(long[] positions) {
+        PidIndex index = this.index;
+        List<String> pids = new ArrayList<String>();
+        for (long position : positions) {
+            pids.add(index.getPid(position));
+        }
+        return pids;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If the size of the wrapped implementation has changed since the index
+     * was built, a rebuild of the index is started in the background and the
+     * size of the current index is returned until it completes.
+     */
+    public long getSize() {
+        long size = f3.getSize();
+        if (size != indexedSize && !rebuilding.get()) {
+            LOGGER.info("Rebuilding index at {} ({} pids while the"
+                    + " repository has {}).", indexFile, index.size(),
+                    size);
+            rebuild();
+        }
+        return index.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getLastModifiedDate() {
+        return f3.getLastModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getFirstModifiedDate() {
+        return f3.getFirstModifiedDate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Date getObjectModifiedDate(String pid) {
+        return f3.getObjectModifiedDate(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getObjectPidsModifiedBetween(Date start, Date end) {
+        return f3.getObjectPidsModifiedBetween(start, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public RelationshipIterator iterateRelationships(String predicate,
+            Date modifiedSince) {
+        return f3.iterateRelationships(predicate, modifiedSince);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraDatastreamRecord getDatastream(String pid, String dsid) {
+        return f3.getDatastream(pid, dsid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesDatastreamExist(String pid, String dsid) {
+        return f3.doesDatastreamExist(pid, dsid);
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A sorted list of pids stored in a file and accessed through a read-only
+ * memory mapping.  The file consists of a header, a table of fixed-width
+ * offsets (one per pid plus one marking the end) and a region of packed UTF-8
+ * encoded pids, so that the pid at any position may be read without reading
+ * any other pid and the position of a pid may be found by binary search.
+ *
+ * <pre>
+ *   int    magic number ("PIDX")
+ *   int    format version
+ *   long   number of pids (n)
+ *   long[] n + 1 offsets into the pid region
+ *   byte[] the pid region
+ * </pre>
+ *
+ * Because the file is mapped in a single buffer, it may be no larger than
+ * 2GB (roughly 70 million typical pids).
+ */
+public class PidIndex {
+
+    private static final Logger LOGGER = getLogger(PidIndex.class);
+
+    private static final int MAGIC = 0x50494458;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    private MappedByteBuffer buffer;
+
+    private long size;
+
+    private int pidRegionStart;
+
+    /**
+     * Writes an index of the given pids, which must be in ascending order,
+     * to the given file (replacing any existing file) and opens it.  The pids
+     * are streamed through temporary files so that the memory used doesn't
+     * depend on the number of pids.
+     */
+    public static PidIndex build(Iterator<String> pids, File file)
+        throws IOException {
+        long start = System.currentTimeMillis();
+        File dir = file.getAbsoluteFile().getParentFile();
+        File offsetsFile = File.createTempFile("pid-offsets", ".tmp", dir);
+        File pidsFile = File.createTempFile("pids", ".tmp", dir);
+        File indexFile = File.createTempFile("pid-index", ".tmp", dir);
+        try {
+            long count = 0;
+            DataOutputStream offsets = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(offsetsFile)));
+            BufferedOutputStream packed = new BufferedOutputStream(
+                    new FileOutputStream(pidsFile));
+            try {
+                long offset = 0;
+                String last = null;
+                while (pids.hasNext()) {
+                    String pid = pids.next();
+                    if (last != null && last.compareTo(pid) >= 0) {
+                        throw new IllegalArgumentException("Pids must be"
+                                + " unique and sorted (" + pid + " follows "
+                                + last + ")!");
+                    }
+                    byte[] bytes = pid.getBytes(UTF8);
+                    offsets.writeLong(offset);
+                    packed.write(bytes);
+                    offset += bytes.length;
+                    last = pid;
+                    count ++;
+                }
+                offsets.writeLong(offset);
+            } finally {
+                offsets.close();
+                packed.close();
+            }
+
+            FileOutputStream fos = new FileOutputStream(indexFile);
+            DataOutputStream out = new DataOutputStream(fos);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(count);
+                out.flush();
+                append(offsetsFile, fos.getChannel());
+                append(pidsFile, fos.getChannel());
+            } finally {
+                out.close();
+            }
+            // readers of the old file keep their mapping of it
+            Files.move(indexFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.debug("Built index of {} pids in {}ms.", count,
+                    (System.currentTimeMillis() - start));
+            return new PidIndex(file);
+        } finally {
+            offsetsFile.delete();
+            pidsFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static void append(File source, FileChannel dest)
+        throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel c = in.getChannel();
+            long position = 0;
+            long length = c.size();
+            while (position < length) {
+                position += c.transferTo(position, length - position, dest);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens an existing index file.  The header is checked against the
+     * length of the file, so a truncated or otherwise damaged index fails
+     * here with an IOException rather than later, in a query.
+     */
+    public PidIndex(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to be mapped!");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a pid index!");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is an unsupported version!");
+        }
+        size = buffer.getLong(8);
+        long regionStart = HEADER_LENGTH + (size + 1) * 8;
+        if (size < 0 || size > (buffer.limit() - HEADER_LENGTH) / 8
+                || regionStart > buffer.limit()) {
+            throw new IOException(file + " is truncated (" + size
+                    + " pids in " + buffer.limit() + " bytes)!");
+        }
+        pidRegionStart = (int) regionStart;
+        long regionLength = buffer.getLong(HEADER_LENGTH + (int) (size * 8));
+        if (buffer.getLong(HEADER_LENGTH) != 0
+                || regionLength != buffer.limit() - pidRegionStart) {
+            throw new IOException(file + " is truncated (" + regionLength
+                    + " bytes of pids expected, "
+                    + (buffer.limit() - pidRegionStart) + " found)!");
+        }
+    }
+
+    /**
+     * Gets the file containing this index.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of pids in this index.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets the pid at the given position.
+     */
+    public String getPid(long position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(position));
+        }
+        int offsetIndex = HEADER_LENGTH + (int) (position * 8);
+        int start = pidRegionStart + (int) buffer.getLong(offsetIndex);
+        int end = pidRegionStart + (int) buffer.getLong(offsetIndex + 8);
+        byte[] bytes = new byte[end - start];
+        ByteBuffer b = buffer.duplicate();
+        b.position(start);
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Gets up to count pids starting at the given position.
+     */
+    public List<String> getPids(long position, int count) {
+        List<String> pids = new ArrayList<String>();
+        for (long i = position; i < size && i < position + count; i ++) {
+            pids.add(getPid(i));
+        }
+        return pids;
+    }
+
+    /**
+     * Gets the position of the given pid using a binary search.  If the pid
+     * isn't in the index, the result is (-(insertion point) - 1) where the
+     * insertion point is the position of the first pid greater than the
+     * given pid, or size() if there is no such pid.
+     */
+    public long positionOf(String pid) {
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int c = getPid(mid).compareTo(pid);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
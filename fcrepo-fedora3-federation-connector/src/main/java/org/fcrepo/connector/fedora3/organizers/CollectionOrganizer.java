@@ -0,0 +1,506 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.fcrepo.connector.fedora3.RepositoryOrganizer;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Organizes the objects in the fedora 3 repository by the collections they
+ * belong to (through isMemberOfCollection, or another configured
+ * relationship).  The root lists a node like "collection demo:c1" (the pid
+ * being encoded) for each collection that isn't itself in a collection, and
+ * each collection node lists the collection object followed by its members,
+ * where members that are themselves collections are listed as collection
+ * nodes.  Each node is listed only under the node getParentForId returns.
+ *
+ * Every relationship is read into memory from a single streaming resource
+ * index query the first time it's needed, after which every node is answered
+ * from memory.  When the repository changes, only the relationships of the
+ * objects modified in the meantime are read again.  An object in several
+ * collections is listed only in the first of them, and a collection in a
+ * cycle of collections is listed only at the root; the collections it
+ * belongs to are available from getCollections instead.  Objects that are
+ * in no collection and aren't collections themselves have no place in this
+ * organization.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "organizer" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "organizer" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.organizers.CollectionOrganizer",
+ *        "refreshSeconds" : 60
+ *    }
+ *  }
+ * </pre>
+ */
+public class CollectionOrganizer implements RepositoryOrganizer {
+
+    private static final Logger LOGGER = getLogger(CollectionOrganizer.class);
+
+    /**
+     * The relationship by which objects are placed in collections by default.
+     */
+    public static final String IS_MEMBER_OF_COLLECTION
+        = "info:fedora/fedora-system:def/relations-external"
+            + "#isMemberOfCollection";
+
+    private static final String PREFIX = "collection ";
+
+    private static final String[] NONE = new String[0];
+
+    private Fedora3DataInterface f3;
+
+    private String predicate = IS_MEMBER_OF_COLLECTION;
+
+    private long refreshMillis = 60000;
+
+    private volatile long refreshed;
+
+    /**
+     * Incremented each time the relationships held are changed.
+     */
+    private volatile long generation;
+
+    /**
+     * The most recent modification in the repository that is reflected in
+     * the relationships held.
+     */
+    private Date loadedThrough;
+
+    /**
+     * The members of each collection, in pid order.
+     */
+    private Map<String, String[]> members;
+
+    /**
+     * The collections of each member, in pid order.
+     */
+    private Map<String, String[]> collections;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * {@inheritDoc}
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        f3 = fedora;
+    }
+
+    /**
+     * Sets the URI of the relationship from a member to its collection.
+     * Defaults to IS_MEMBER_OF_COLLECTION.
+     */
+    public void setPredicate(String predicate) {
+        this.predicate = predicate;
+    }
+
+    /**
+     * Sets the number of seconds after which the repository is checked for
+     * modified objects whose relationships must be read again.  Defaults to
+     * 60.
+     */
+    public void setRefreshSeconds(long seconds) {
+        refreshMillis = seconds * 1000;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getChildrenForId(String id) {
+        refresh();
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<String>();
+            if (ID.ROOT_ID.getId().equals(id)) {
+                List<String> top = new ArrayList<String>();
+                for (String collection : members.keySet()) {
+                    if (getParentCollection(collection) == null) {
+                        top.add(collection);
+                    }
+                }
+                Collections.sort(top);
+                for (String collection : top) {
+                    result.add(getId(collection));
+                }
+                return result;
+            }
+            String collection = parse(id);
+            String[] m = collection == null ? null : members.get(collection);
+            if (m == null) {
+                throw new IllegalArgumentException();
+            }
+            result.add(ID.objectID(collection).getId());
+            for (String pid : m) {
+                if (members.containsKey(pid)) {
+                    if (collection.equals(getParentCollection(pid))) {
+                        result.add(getId(pid));
+                    }
+                } else if (collection.equals(collections.get(pid)[0])) {
+                    result.add(ID.objectID(pid).getId());
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getParentForId(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return null;
+        }
+        refresh();
+        lock.readLock().lock();
+        try {
+            String collection = parse(id);
+            if (collection != null) {
+                String parent = getParentCollection(collection);
+                return parent == null ? ID.ROOT_ID.getId() : getId(parent);
+            }
+            String pid = new ID(id).getPid();
+            if (members.containsKey(pid)) {
+                return getId(pid);
+            }
+            String[] c = collections.get(pid);
+            return c == null ? null : getId(c[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOrganizationalNode(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return true;
+        }
+        String collection = parse(id);
+        if (collection == null) {
+            return false;
+        }
+        refresh();
+        lock.readLock().lock();
+        try {
+            return members.containsKey(collection);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the pids of every collection to which the object with the given
+     * id belongs, in pid order, including any under which it isn't listed.
+     */
+    public List<String> getCollections(String id) {
+        refresh();
+        lock.readLock().lock();
+        try {
+            String[] c = collections.get(new ID(id).getPid());
+            return c == null ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(Arrays.asList(c));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getGeneration() {
+        refresh();
+        return generation;
+    }
+
+    /**
+     * Gets the collection under whose node the node for the given collection
+     * is placed: the first collection it belongs to, unless following the
+     * first collection of each collection leads back to it, in which case
+     * (as when it belongs to no collection) null is returned.
+     */
+    private String getParentCollection(String collection) {
+        String[] c = collections.get(collection);
+        if (c == null) {
+            return null;
+        }
+        Set<String> seen = new HashSet<String>();
+        seen.add(collection);
+        String ancestor = c[0];
+        while (ancestor != null && seen.add(ancestor)) {
+            String[] a = collections.get(ancestor);
+            ancestor = a == null ? null : a[0];
+        }
+        return collection.equals(ancestor) ? null : c[0];
+    }
+
+    private static String getId(String collection) {
+        return PREFIX + ID.objectID(collection).getId();
+    }
+
+    /**
+     * Parses an id of the form "collection [pid]".
+     * @return the pid or null if the id is not of that form
+     */
+    private static String parse(String id) {
+        if (!id.startsWith(PREFIX) || id.indexOf('/') >= 0) {
+            return null;
+        }
+        return new ID(id.substring(PREFIX.length())).getPid();
+    }
+
+    /**
+     * Reads every relationship if they haven't yet been read, or if the
+     * repository hasn't been checked in the last refreshSeconds, reads those
+     * of the objects that have been modified since it was.  Once the
+     * relationships have been read, only one thread refreshes them at a
+     * time while the others carry on with those held, and the modified
+     * relationships are read without the lock held, so that other threads
+     * are kept waiting only while the changes are applied.
+     */
+    private void refresh() {
+        if (members != null
+                && System.currentTimeMillis() - refreshed < refreshMillis) {
+            return;
+        }
+        boolean loaded = members != null;
+        if (loaded && !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            readRelationships();
+        } finally {
+            if (loaded) {
+                refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Reads the relationships (or those modified since they were read)
+     * unless another thread has just done so.
+     */
+    private synchronized void readRelationships() {
+        if (members != null
+                && System.currentTimeMillis() - refreshed < refreshMillis) {
+            return;
+        }
+        Date latest = f3.getLastModifiedDate();
+        if (members == null) {
+            load();
+        } else if (latest != null && (loadedThrough == null
+                || latest.after(loadedThrough))) {
+            update(loadedThrough == null ? null
+                    : new Date(loadedThrough.getTime() + 1), latest);
+        }
+        loadedThrough = latest;
+        refreshed = System.currentTimeMillis();
+    }
+
+    private void load() {
+        long start = System.currentTimeMillis();
+        Map<String, String> pids = new HashMap<String, String>();
+        Map<String, List<String>> m = new HashMap<String, List<String>>();
+        Map<String, List<String>> c = new HashMap<String, List<String>>();
+        int count = 0;
+        RelationshipIterator it = f3.iterateRelationships(predicate, null);
+        try {
+            while (it.hasNext()) {
+                String[] r = it.next();
+                String member = intern(pids, r[0]);
+                String collection = intern(pids, r[1]);
+                add(m, collection, member);
+                add(c, member, collection);
+                count ++;
+            }
+        } finally {
+            close(it);
+        }
+        Map<String, String[]> loadedMembers = toArrays(m);
+        Map<String, String[]> loadedCollections = toArrays(c);
+        lock.writeLock().lock();
+        try {
+            members = loadedMembers;
+            collections = loadedCollections;
+            generation ++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOGGER.info("Read {} memberships in {} collections in {}ms.", count,
+                members.size(), (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Reads the relationships of the objects modified in the given range
+     * again, replacing those held for each.
+     */
+    private void update(Date since, Date latest) {
+        long start = System.currentTimeMillis();
+        Map<String, List<String>> modified
+            = new HashMap<String, List<String>>();
+        for (String pid : f3.getObjectPidsModifiedBetween(
+                since == null ? new Date(0) : since,
+                new Date(latest.getTime() + 1))) {
+            modified.put(pid, new ArrayList<String>());
+        }
+        RelationshipIterator it = f3.iterateRelationships(predicate, since);
+        try {
+            while (it.hasNext()) {
+                String[] r = it.next();
+                add(modified, r[0], r[1]);
+            }
+        } finally {
+            close(it);
+        }
+        Map<String, String[]> updated = toArrays(modified);
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, String[]> e : updated.entrySet()) {
+                setCollections(e.getKey(), e.getValue());
+            }
+            generation ++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOGGER.debug("Read the relationships of {} modified objects in {}ms.",
+                modified.size(), (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Replaces the collections the given object belongs to.
+     */
+    private void setCollections(String pid, String[] updated) {
+        String[] current = collections.get(pid);
+        if (current == null) {
+            current = NONE;
+        }
+        for (String collection : current) {
+            if (Arrays.binarySearch(updated, collection) < 0) {
+                String[] m = remove(members.get(collection), pid);
+                if (m.length == 0) {
+                    members.remove(collection);
+                } else {
+                    members.put(collection, m);
+                }
+            }
+        }
+        for (String collection : updated) {
+            if (Arrays.binarySearch(current, collection) < 0) {
+                String[] m = members.get(collection);
+                members.put(collection, insert(m == null ? NONE : m, pid));
+            }
+        }
+        if (updated.length == 0) {
+            collections.remove(pid);
+        } else {
+            collections.put(pid, updated);
+        }
+    }
+
+    private static String[] insert(String[] sorted, String value) {
+        int i = Arrays.binarySearch(sorted, value);
+        if (i >= 0) {
+            return sorted;
+        }
+        i = -(i + 1);
+        String[] result = new String[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, i);
+        result[i] = value;
+        System.arraycopy(sorted, i, result, i + 1, sorted.length - i);
+        return result;
+    }
+
+    private static String[] remove(String[] sorted, String value) {
+        int i = Arrays.binarySearch(sorted, value);
+        if (i < 0) {
+            return sorted;
+        }
+        String[] result = new String[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, i);
+        System.arraycopy(sorted, i + 1, result, i, sorted.length - i - 1);
+        return result;
+    }
+
+    private static String intern(Map<String, String> pids, String pid) {
+        String existing = pids.get(pid);
+        if (existing == null) {
+            pids.put(pid, pid);
+            return pid;
+        }
+        return existing;
+    }
+
+    private static void add(Map<String, List<String>> map, String key,
+            String value) {
+        List<String> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static Map<String, String[]> toArrays(
+            Map<String, List<String>> map) {
+        Map<String, String[]> result = new HashMap<String, String[]>(
+                map.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<String>> e : map.entrySet()) {
+            String[] values = e.getValue().toArray(NONE);
+            Arrays.sort(values);
+            result.put(e.getKey(), values);
+        }
+        return result;
+    }
+
+    private static void close(RelationshipIterator it) {
+        try {
+            it.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close relationship iterator.", e);
+        }
+    }
+}
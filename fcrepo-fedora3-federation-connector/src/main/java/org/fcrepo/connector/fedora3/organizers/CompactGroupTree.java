@@ -0,0 +1,420 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The storage for the tree of groups built by the {@link GroupingOrganizer}
+ * laid out as a structure of primitive arrays rather than as an object per
+ * group.  Each group is identified by its index (the root is 0) and its
+ * offset, depth, parent and first and last pids are held in parallel arrays.
+ * The pids are stored once each in a shared pool of UTF-8 bytes and groups
+ * refer to them by position in the pool, so a group that shares a first or
+ * last pid with its parent costs nothing more for it.
+ *
+ * The arrays are allocated in fixed size chunks which never move once
+ * allocated, so groups may be read without locking while others are being
+ * added.  Adding groups (a few array writes) is synchronized.  A group's
+ * fields are safely visible to any thread that found the group through the
+ * child slots of its parent.
+ */
+public class CompactGroupTree {
+
+    private static final int CHUNK_BITS = 12;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int POOL_CHUNK_BITS = 16;
+
+    private static final int POOL_CHUNK_SIZE = 1 << POOL_CHUNK_BITS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private volatile long[][] offsets = new long[0][];
+
+    private volatile int[][] parents = new int[0][];
+
+    private volatile byte[][] depths = new byte[0][];
+
+    private volatile int[][] firstPids = new int[0][];
+
+    private volatile int[][] lastPids = new int[0][];
+
+    /**
+     * For each group, the child slots (null for leaf groups).  Slot 0 is set
+     * to 1 once every child has been added and slot i + 1 holds the index of
+     * the ith child plus one (zero meaning that child hasn't been added).
+     */
+    private volatile AtomicIntegerArray[][] children
+        = new AtomicIntegerArray[0][];
+
+    private volatile byte[][] pool = new byte[0][];
+
+    private int poolPosition = POOL_CHUNK_SIZE;
+
+    private volatile int size;
+
+    /**
+     * Adds a group.
+     * @param parent the index of the parent group or -1 for the root
+     * @param childCount the number of children the group will have (zero
+     *                   for leaf groups)
+     * @param firstPidRef a reference to the first pid in the group as
+     *                    returned by addPid()
+     * @param lastPidRef a reference to the last pid in the group as
+     *                   returned by addPid()
+     * @return the index of the new group
+     */
+    public synchronized int addGroup(int parent, long offset, int depth,
+            int childCount, int firstPidRef, int lastPidRef) {
+        int index = size;
+        int chunk = index >> CHUNK_BITS;
+        if (chunk == offsets.length) {
+            grow();
+        }
+        int i = index & CHUNK_MASK;
+        offsets[chunk][i] = offset;
+        parents[chunk][i] = parent;
+        depths[chunk][i] = (byte) depth;
+        firstPids[chunk][i] = firstPidRef;
+        lastPids[chunk][i] = lastPidRef;
+        if (childCount > 0) {
+            children[chunk][i] = new AtomicIntegerArray(childCount + 1);
+        }
+        size = index + 1;
+        return index;
+    }
+
+    private void grow() {
+        int n = offsets.length + 1;
+        long[][] o = new long[n][];
+        int[][] p = new int[n][];
+        byte[][] d = new byte[n][];
+        int[][] f = new int[n][];
+        int[][] l = new int[n][];
+        AtomicIntegerArray[][] c = new AtomicIntegerArray[n][];
+        System.arraycopy(offsets, 0, o, 0, n - 1);
+        System.arraycopy(parents, 0, p, 0, n - 1);
+        System.arraycopy(depths, 0, d, 0, n - 1);
+        System.arraycopy(firstPids, 0, f, 0, n - 1);
+        System.arraycopy(lastPids, 0, l, 0, n - 1);
+        System.arraycopy(children, 0, c, 0, n - 1);
+        o[n - 1] = new long[CHUNK_SIZE];
+        p[n - 1] = new int[CHUNK_SIZE];
+        d[n - 1] = new byte[CHUNK_SIZE];
+        f[n - 1] = new int[CHUNK_SIZE];
+        l[n - 1] = new int[CHUNK_SIZE];
+        c[n - 1] = new AtomicIntegerArray[CHUNK_SIZE];
+        parents = p;
+        depths = d;
+        firstPids = f;
+        lastPids = l;
+        children = c;
+        offsets = o;
+    }
+
+    /**
+     * Adds a pid to the pool.
+     * @return a reference to the pid for use in addGroup()
+     */
+    public synchronized int addPid(String pid) {
+        byte[] bytes = pid.getBytes(UTF8);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Pid too long: " + pid);
+        }
+        if (poolPosition + bytes.length + 1 > POOL_CHUNK_SIZE) {
+            byte[][] p = new byte[pool.length + 1][];
+            System.arraycopy(pool, 0, p, 0, pool.length);
+            p[pool.length] = new byte[POOL_CHUNK_SIZE];
+            pool = p;
+            poolPosition = 0;
+        }
+        int chunk = pool.length - 1;
+        int ref = (chunk << POOL_CHUNK_BITS) | poolPosition;
+        pool[chunk][poolPosition] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, pool[chunk], poolPosition + 1,
+                bytes.length);
+        poolPosition += bytes.length + 1;
+        return ref;
+    }
+
+    /**
+     * Gets the pid with the given reference.
+     */
+    public String getPid(int ref) {
+        byte[] chunk = pool[ref >>> POOL_CHUNK_BITS];
+        int position = ref & (POOL_CHUNK_SIZE - 1);
+        return new String(chunk, position + 1, chunk[position] & 0xFF, UTF8);
+    }
+
+    /**
+     * Gets the number of groups in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the offset (position of the first object) of the given group.
+     */
+    public long getOffset(int group) {
+        return offsets[group >> CHUNK_BITS][group & CHUNK_MASK];
+    }
+
+    /**
+     * Gets the index of the parent (or -1 for the root) of the given group.
+     */
+    public int getParent(int group) {
+        return parents[group >> CHUNK_BITS][group & CHUNK_MASK];
+    }
+
+    /**
+     * Gets the depth (1 for leaf groups) of the given group.
+     */
+    public int getDepth(int group) {
+        return depths[group >> CHUNK_BITS][group & CHUNK_MASK];
+    }
+
+    /**
+     * Gets a reference to the first pid in the given group.
+     */
+    public int getFirstPidRef(int group) {
+        return firstPids[group >> CHUNK_BITS][group & CHUNK_MASK];
+    }
+
+    /**
+     * Gets a reference to the last pid in the given group.
+     */
+    public int getLastPidRef(int group) {
+        return lastPids[group >> CHUNK_BITS][group & CHUNK_MASK];
+    }
+
+    /**
+     * Gets the first pid in the given group.
+     */
+    public String getFirstPid(int group) {
+        return getPid(getFirstPidRef(group));
+    }
+
+    /**
+     * Gets the last pid in the given group.
+     */
+    public String getLastPid(int group) {
+        return getPid(getLastPidRef(group));
+    }
+
+    /**
+     * Gets the number of children the given group will have once loaded.
+     */
+    public int getChildCount(int group) {
+        AtomicIntegerArray c = getSlots(group);
+        return c == null ? 0 : c.length() - 1;
+    }
+
+    /**
+     * Gets the index of the child at the given position within the given
+     * group or -1 if that child hasn't been added.
+     */
+    public int getChild(int group, int position) {
+        return getSlots(group).get(position + 1) - 1;
+    }
+
+    /**
+     * Records the group at the given index as the child at the given
+     * position within the given group.
+     */
+    public void setChild(int group, int position, int child) {
+        getSlots(group).set(position + 1, child + 1);
+    }
+
+    /**
+     * Determines whether every child of the given group has been added.
+     */
+    public boolean areChildrenComplete(int group) {
+        return getSlots(group).get(0) == 1;
+    }
+
+    /**
+     * Notes that every child of the given group has been added.
+     */
+    public void setChildrenComplete(int group) {
+        getSlots(group).set(0, 1);
+    }
+
+    private AtomicIntegerArray getSlots(int group) {
+        return children[group >> CHUNK_BITS][group & CHUNK_MASK];
+    }
+
+    /**
+     * Estimates the number of bytes of heap used by this tree: the allocated
+     * chunks of each array, the child slots and the pid pool.
+     */
+    public synchronized long estimateBytes() {
+        // per group: offset, parent, depth, first and last pid and a
+        // reference to the child slots
+        long perGroup = 8 + 4 + 1 + 4 + 4 + 4;
+        long bytes = (long) offsets.length * CHUNK_SIZE * perGroup;
+        for (int g = 0; g < size; g ++) {
+            AtomicIntegerArray c = getSlots(g);
+            if (c != null) {
+                bytes += 16 + 16 + 4L * c.length();
+            }
+        }
+        return bytes + (long) pool.length * POOL_CHUNK_SIZE;
+    }
+
+    /**
+     * Writes the contents of this tree.  Groups may not be added while the
+     * tree is being written.
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        int n = size;
+        out.writeInt(n);
+        for (int g = 0; g < n; g ++) {
+            out.writeLong(getOffset(g));
+        }
+        for (int g = 0; g < n; g ++) {
+            out.writeInt(getParent(g));
+        }
+        for (int g = 0; g < n; g ++) {
+            out.writeByte(getDepth(g));
+        }
+        for (int g = 0; g < n; g ++) {
+            out.writeInt(getFirstPidRef(g));
+        }
+        for (int g = 0; g < n; g ++) {
+            out.writeInt(getLastPidRef(g));
+        }
+        for (int g = 0; g < n; g ++) {
+            AtomicIntegerArray c = getSlots(g);
+            out.writeInt(c == null ? 0 : c.length());
+            for (int i = 0; c != null && i < c.length(); i ++) {
+                out.writeInt(c.get(i));
+            }
+        }
+        out.writeInt(pool.length);
+        out.writeInt(poolPosition);
+        for (byte[] chunk : pool) {
+            out.write(chunk);
+        }
+    }
+
+    /**
+     * Reads a tree written by write() from the given buffer, leaving the
+     * buffer positioned after the tree.  Every count and length is checked
+     * against the bytes remaining and every reference against the tree
+     * before it is used.
+     * @throws IllegalArgumentException if the buffer doesn't hold a valid
+     *         tree
+     */
+    public static CompactGroupTree read(ByteBuffer in) {
+        CompactGroupTree t = new CompactGroupTree();
+        check(in.remaining() >= 4, "header");
+        int n = in.getInt();
+        // per group: offset, parent, depth, first and last pid and the
+        // number of child slots
+        check(n >= 0 && (long) n * (8 + 4 + 1 + 4 + 4 + 4) <= in.remaining(),
+                "group count " + n);
+        for (int c = 0; c < (n + CHUNK_SIZE - 1) >> CHUNK_BITS; c ++) {
+            t.grow();
+        }
+        for (int c = 0; c < t.offsets.length; c ++) {
+            int length = Math.min(CHUNK_SIZE, n - (c << CHUNK_BITS));
+            in.asLongBuffer().get(t.offsets[c], 0, length);
+            in.position(in.position() + length * 8);
+        }
+        readInts(in, t.parents, n);
+        for (int c = 0; c < t.depths.length; c ++) {
+            in.get(t.depths[c], 0, Math.min(CHUNK_SIZE, n - (c << CHUNK_BITS)));
+        }
+        readInts(in, t.firstPids, n);
+        readInts(in, t.lastPids, n);
+        for (int g = 0; g < n; g ++) {
+            check(in.remaining() >= 4, "children of group " + g);
+            int length = in.getInt();
+            check(length >= 0 && (long) length * 4 <= in.remaining(),
+                    "child slot count " + length + " of group " + g);
+            if (length > 0) {
+                int[] slots = new int[length];
+                in.asIntBuffer().get(slots);
+                in.position(in.position() + length * 4);
+                check(slots[0] == 0 || slots[0] == 1, "children of group "
+                        + g);
+                for (int i = 1; i < length; i ++) {
+                    check(slots[i] >= 0 && slots[i] <= n, "child " + i
+                            + " of group " + g);
+                }
+                t.children[g >> CHUNK_BITS][g & CHUNK_MASK]
+                        = new AtomicIntegerArray(slots);
+            }
+        }
+        check(in.remaining() >= 8, "pool header");
+        int poolChunks = in.getInt();
+        check(poolChunks >= 0 && (long) poolChunks * POOL_CHUNK_SIZE + 4
+                <= in.remaining(), "pool size " + poolChunks);
+        t.pool = new byte[poolChunks][];
+        t.poolPosition = in.getInt();
+        check(t.poolPosition >= 0 && t.poolPosition <= POOL_CHUNK_SIZE,
+                "pool position " + t.poolPosition);
+        for (int c = 0; c < t.pool.length; c ++) {
+            t.pool[c] = new byte[POOL_CHUNK_SIZE];
+            in.get(t.pool[c]);
+        }
+        for (int g = 0; g < n; g ++) {
+            int parent = t.getParent(g);
+            check(g == 0 ? parent == -1 : parent >= 0 && parent < n,
+                    "parent of group " + g);
+            check(t.isPidRef(t.getFirstPidRef(g))
+                    && t.isPidRef(t.getLastPidRef(g)), "pids of group " + g);
+        }
+        t.size = n;
+        return t;
+    }
+
+    /**
+     * Determines whether the given reference lies within the pool and the
+     * pid it refers to ends within its chunk.
+     */
+    private boolean isPidRef(int ref) {
+        int chunk = ref >>> POOL_CHUNK_BITS;
+        int position = ref & (POOL_CHUNK_SIZE - 1);
+        return chunk < pool.length && position + 1
+                + (pool[chunk][position] & 0xFF) <= POOL_CHUNK_SIZE;
+    }
+
+    private static void check(boolean valid, String what) {
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid " + what
+                    + " in group tree!");
+        }
+    }
+
+    private static void readInts(ByteBuffer in, int[][] chunks, int n) {
+        for (int c = 0; c < chunks.length; c ++) {
+            int length = Math.min(CHUNK_SIZE, n - (c << CHUNK_BITS));
+            in.asIntBuffer().get(chunks[c], 0, length);
+            in.position(in.position() + length * 4);
+        }
+    }
+}
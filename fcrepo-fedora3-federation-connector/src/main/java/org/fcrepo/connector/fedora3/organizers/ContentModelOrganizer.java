@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Organizes the objects in the fedora 3 repository by their content models
+ * (fedora-model:hasModel), with a node like "model demo:Image" (the pid
+ * being encoded) for each model that has objects, split into pages when the
+ * model has many objects.  The models and the number of objects of each are
+ * found with a single aggregate resource index query, after which the
+ * objects of each model are paged through with keyset queries that start
+ * after the last pid of the previous page.
+ *
+ * An object with several models is listed under each of them, but its parent
+ * is the first of its models other than fedora-system:FedoraObject-3.0
+ * (which every object has) or that model if the object has no other.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "organizer" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "organizer" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.organizers.ContentModelOrganizer",
+ *        "maxContainerSize" : 1000
+ *    }
+ *  }
+ * </pre>
+ */
+public class ContentModelOrganizer extends ScopedOrganizer {
+
+    private static final String FEDORA_OBJECT_MODEL
+        = "fedora-system:FedoraObject-3.0";
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getScopeType() {
+        return "model";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected Map<String, Long> loadScopes() {
+        return getFedora3DataInterface().getContentModelCounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected List<String> getPidsAfter(String model, String lastPid,
+            int count) {
+        return getFedora3DataInterface().getObjectPidsWithModelAfter(model,
+                lastPid, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getScope(String pid) {
+        String scope = null;
+        for (String model : getFedora3DataInterface().getContentModels(pid)) {
+            if (!FEDORA_OBJECT_MODEL.equals(model)) {
+                return model;
+            }
+            scope = model;
+        }
+        return scope;
+    }
+}
@@ -20,10 +20,28 @@ import org.fcrepo.connector.fedora3.Fedora3DataInterface;
 import org.fcrepo.connector.fedora3.ID;
 import org.fcrepo.connector.fedora3.RepositoryOrganizer;
 
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
+import static org.slf4j.LoggerFactory.getLogger;
+
 /**
  * Groups the pid-ordered list of objects in the fedora 3 repository in groups
  * that are no larger than a configurable size.  These grouping nodes will
@@ -31,18 +49,80 @@ import java.util.regex.Pattern;
  * find a particular pid (in much the same way he or she might find a word in a
  * dictionary).
  *
+ * Groups are loaded lazily and may be loaded concurrently; the children of
+ * any given group are loaded exactly once, by whichever thread first needs
+ * them, without blocking threads working elsewhere in the tree.  The loaded
+ * groups are held in a {@link CompactGroupTree}.
+ *
+ * When the size of the repository changes (objects are ingested or purged)
+ * the tree is rebuilt for the new size by a background thread while the old
+ * tree continues to be served, and the new tree replaces it all at once when
+ * it's complete.  Groups that
+ * lie entirely before the first changed position in the list of pids, and
+ * whose ranges are unaffected by the new size, are kept along with their ids;
+ * the rest are loaded again as they are visited.  In the common case of new
+ * pids that sort after all existing ones, only the groups along the end of
+ * the list are rebuilt.
+ *
+ * If a snapshot file is configured, the loaded tree is written to it by
+ * saveSnapshot() (called when the connector shuts down) and read back on
+ * startup.  If the size or last modification date of the repository has
+ * changed since the snapshot was written it is served while it's rebuilt as
+ * described above.
+ *
  * @author Michael Durbin
  */
 public class GroupingOrganizer implements RepositoryOrganizer {
 
+    private static final Logger LOGGER = getLogger(GroupingOrganizer.class);
+
     public static final Pattern ID_PATTERN
         = Pattern.compile("(\\d)+\\-(\\d)+ (.*)");
 
+    private static final int ROOT = 0;
+
+    private static final int SNAPSHOT_MAGIC = 0x47545245;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final int LOCK_STRIPES = 64;
+
     private int maxContainerSize = -1;
 
     private Fedora3DataInterface f3;
 
-    private ContainerInfo rootContainer;
+    private volatile CompactGroupTree tree;
+
+    /**
+     * The number of objects in the repository when the tree was built.
+     */
+    private volatile long size;
+
+    /**
+     * Held for reading while the tree is used and for writing while it's
+     * replaced by a tree for a new repository size.
+     */
+    private final ReadWriteLock treeLock = new ReentrantReadWriteLock();
+
+    /**
+     * Set while a background thread is rebuilding the tree.
+     */
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private volatile Thread rebuilder;
+
+    /**
+     * Incremented each time the tree is rebuilt.
+     */
+    private volatile long generation;
+
+    private String snapshotFile;
+
+    /**
+     * Locks held while building the children of a group; each group is
+     * guarded by the lock for its index modulo the number of stripes.
+     */
+    private Object[] locks;
 
     /**
      * {@inheritDoc}
@@ -54,7 +134,7 @@ public class GroupingOrganizer implements RepositoryOrganizer {
         }
         f3 = fedora;
         if (maxContainerSize != -1) {
-            rootContainer = new ContainerInfo();
+            createTree();
         }
     }
 
@@ -75,8 +155,362 @@ public class GroupingOrganizer implements RepositoryOrganizer {
         }
         maxContainerSize = size;
         if (f3 != null) {
-            rootContainer = new ContainerInfo();
+            createTree();
+        }
+    }
+
+    /**
+     * Sets the path of the file to which the loaded tree of groups is saved
+     * and from which it is restored on startup.  This must be set before the
+     * organizer is initialized.
+     */
+    public void setSnapshotFile(String path) {
+        snapshotFile = path;
+    }
+
+    private void createTree() {
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i ++) {
+            locks[i] = new Object();
+        }
+        if (snapshotFile != null && new File(snapshotFile).exists()) {
+            try {
+                if (readSnapshot(new File(snapshotFile))) {
+                    return;
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read " + snapshotFile + ".", e);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Ignoring corrupt snapshot " + snapshotFile
+                        + ".", e);
+            }
+        }
+        size = f3.getSize();
+        tree = createRoot(size);
+    }
+
+    /**
+     * Creates a tree containing only the root group for the given number of
+     * objects.
+     */
+    private CompactGroupTree createRoot(long total) {
+        CompactGroupTree t = new CompactGroupTree();
+        int depth = logBaseN(total, maxContainerSize);
+        List<String> pids = f3.getObjectPidsAt(new long[] { 0, total - 1 });
+        int first = t.addPid(pids.get(0));
+        t.addGroup(-1, 0, depth, getChildCount(total, 0, depth), first,
+                pids.get(1).equals(pids.get(0)) ? first
+                        : t.addPid(pids.get(1)));
+        return t;
+    }
+
+    /**
+     * Starts rebuilding the tree in the background if the size of the
+     * repository has changed since it was built.  This is cheap unless a
+     * change is found.
+     */
+    private void checkSize() {
+        if (f3.getSize() != size) {
+            startRebuild();
+        }
+    }
+
+    /**
+     * Starts a background thread that rebuilds the tree for the current size
+     * of the repository, unless one is already running.
+     */
+    private void startRebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to rebuild the groups!", e);
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        }, "fedora3-group-rebuilder");
+        t.setDaemon(true);
+        rebuilder = t;
+        t.start();
+    }
+
+    /**
+     * Waits for a rebuild of the tree that is in progress, if any, to
+     * complete.
+     */
+    void awaitRebuild() throws InterruptedException {
+        Thread t = rebuilder;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * Builds a tree for the current number of objects, keeping the loaded
+     * groups of the current tree that are unaffected by the change, and then
+     * replaces the current tree with it.  The current tree is only read, so
+     * it continues to be served (and loaded) until it's replaced.
+     */
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        CompactGroupTree old;
+        long oldSize;
+        treeLock.readLock().lock();
+        try {
+            old = tree;
+            oldSize = size;
+        } finally {
+            treeLock.readLock().unlock();
+        }
+        long newSize = f3.getSize();
+        long unchanged = getUnchangedPrefix(old, oldSize, newSize);
+        CompactGroupTree t = createRoot(newSize);
+        copyChildren(old, oldSize, unchanged, t, newSize, ROOT);
+        treeLock.writeLock().lock();
+        try {
+            tree = t;
+            size = newSize;
+            generation ++;
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+        LOGGER.info("Rebuilt the groups for {} objects (previously {}) in"
+                + " {}ms; the first {} objects are unchanged and {} of {}"
+                + " groups were kept.", newSize, oldSize,
+                (System.currentTimeMillis() - start), unchanged, t.size(),
+                old.size());
+    }
+
+    /**
+     * Determines how many objects at the start of the pid-ordered list are
+     * the same in the repository now as when the given tree was built.  The
+     * first and last pids of the loaded groups are compared with the pids
+     * now at their positions, and because the list is sorted the changed
+     * positions follow the unchanged ones, so the boundary is found with a
+     * binary search at each level of the tree.  Changes between loaded
+     * groups are only located as precisely as the groups around them.
+     */
+    private long getUnchangedPrefix(CompactGroupTree old, long oldSize,
+            long newSize) {
+        if (oldSize <= newSize
+                && isUnchanged(oldSize - 1, old.getLastPid(ROOT), newSize)) {
+            return oldSize;
+        }
+        if (!isUnchanged(0, old.getFirstPid(ROOT), newSize)) {
+            return 0;
+        }
+        long unchanged = 1;
+        int g = ROOT;
+        while (old.getDepth(g) > 1) {
+            List<Integer> loaded = new ArrayList<Integer>();
+            for (int i = 0; i < old.getChildCount(g); i ++) {
+                if (old.getChild(g, i) >= 0) {
+                    loaded.add(old.getChild(g, i));
+                }
+            }
+            // find the last loaded child whose last pid is unchanged
+            int low = -1;
+            int high = loaded.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                int c = loaded.get(mid);
+                long end = Math.min(oldSize, old.getOffset(c)
+                        + getSize(old.getDepth(c)));
+                if (isUnchanged(end - 1, old.getLastPid(c), newSize)) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low >= 0) {
+                int c = loaded.get(low);
+                unchanged = Math.min(oldSize, old.getOffset(c)
+                        + getSize(old.getDepth(c)));
+            }
+            if (low + 1 >= loaded.size()) {
+                break;
+            }
+            // the change is within or before the next loaded child
+            int next = loaded.get(low + 1);
+            if (old.getOffset(next) != old.getOffset(g) && !isUnchanged(
+                    old.getOffset(next), old.getFirstPid(next), newSize)) {
+                break;
+            }
+            unchanged = Math.max(unchanged, old.getOffset(next) + 1);
+            g = next;
+        }
+        return unchanged;
+    }
+
+    /**
+     * Determines whether the given pid is still at the given position.
+     */
+    private boolean isUnchanged(long position, String pid, long newSize) {
+        return position < newSize && pid.equals(
+                f3.getObjectPidsAt(new long[] { position }).get(0));
+    }
+
+    /**
+     * Adds to the given group of the new tree the children from the old
+     * tree that are still valid.  Children that lie entirely within the
+     * unchanged objects and span the same range as before are copied with
+     * all of their loaded descendants.  Children that start within the
+     * unchanged objects but whose contents or range have changed are added
+     * with their new last pid and their own children are examined in turn.
+     * Everything else is left to be loaded when needed.
+     */
+    private void copyChildren(CompactGroupTree old, long oldSize,
+            long unchanged, CompactGroupTree t, long newSize, int g) {
+        int depth = t.getDepth(g);
+        if (depth <= 1) {
+            return;
+        }
+        for (int i = 0; i < t.getChildCount(g); i ++) {
+            long offset = t.getOffset(g) + i * getChildSize(depth);
+            int oc = locate(old, offset, depth - 1);
+            if (oc < 0 || offset >= unchanged) {
+                continue;
+            }
+            long oldEnd = Math.min(oldSize, offset + getSize(depth - 1));
+            long newEnd = getEnd(newSize, offset, depth - 1);
+            if (oldEnd == newEnd && oldEnd <= unchanged) {
+                copyGroup(old, oc, t, newSize, g, i);
+            } else {
+                String lastPid = newEnd == newSize ? t.getLastPid(g)
+                        : f3.getObjectPidsAt(new long[] { newEnd - 1 })
+                            .get(0);
+                int c = addChild(t, newSize, g, i, old.getFirstPid(oc),
+                        lastPid);
+                copyChildren(old, oldSize, unchanged, t, newSize, c);
+            }
+        }
+    }
+
+    /**
+     * Copies the given group of the old tree and its loaded descendants to
+     * the given position within a group of the new tree.
+     */
+    private void copyGroup(CompactGroupTree old, int og, CompactGroupTree t,
+            long newSize, int g, int position) {
+        int c = addChild(t, newSize, g, position, old.getFirstPid(og),
+                old.getLastPid(og));
+        for (int i = 0; i < old.getChildCount(og); i ++) {
+            if (old.getChild(og, i) >= 0) {
+                copyGroup(old, old.getChild(og, i), t, newSize, c, i);
+            }
+        }
+        if (old.getChildCount(og) > 0 && old.areChildrenComplete(og)) {
+            t.setChildrenComplete(c);
+        }
+    }
+
+    /**
+     * Finds the group in the given tree with the given offset and depth.
+     * @return the index of the group or -1 if it isn't loaded
+     */
+    private int locate(CompactGroupTree t, long offset, int depth) {
+        int g = ROOT;
+        if (t.getDepth(g) < depth) {
+            return -1;
+        }
+        while (t.getDepth(g) > depth) {
+            long i = (offset - t.getOffset(g)) / getChildSize(t.getDepth(g));
+            if (i >= t.getChildCount(g)) {
+                return -1;
+            }
+            g = t.getChild(g, (int) i);
+            if (g < 0) {
+                return -1;
+            }
+        }
+        return t.getOffset(g) == offset ? g : -1;
+    }
+
+    /**
+     * Writes the currently loaded tree of groups to the snapshot file (if
+     * one is configured) for use on the next startup.
+     */
+    public void saveSnapshot() throws IOException {
+        if (snapshotFile == null || tree == null) {
+            return;
         }
+        long start = System.currentTimeMillis();
+        File file = new File(snapshotFile);
+        File temp = new File(snapshotFile + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        treeLock.readLock().lock();
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(maxContainerSize);
+            out.writeLong(size);
+            out.writeLong(getTime(f3.getLastModifiedDate()));
+            tree.write(out);
+        } finally {
+            treeLock.readLock().unlock();
+            out.close();
+        }
+        // a crash mid-save leaves either the old snapshot or the new one
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        LOGGER.debug("Saved {} groups to {} in {}ms.", tree.size(), file,
+                (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Reads the tree from the given snapshot file, rebuilding it if the
+     * repository has changed since the snapshot was written.
+     * @return false if the snapshot wasn't usable because it was made with
+     *         a different group size
+     */
+    private boolean readSnapshot(File file) throws IOException {
+        long lastModified;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, raf.length());
+            if (b.getInt() != SNAPSHOT_MAGIC
+                    || b.getInt() != SNAPSHOT_VERSION) {
+                LOGGER.info("Ignoring unrecognized snapshot {}.", file);
+                return false;
+            }
+            if (b.getInt() != maxContainerSize) {
+                LOGGER.info("Ignoring snapshot {} of groups of a different"
+                        + " size.", file);
+                return false;
+            }
+            size = b.getLong();
+            lastModified = b.getLong();
+            tree = CompactGroupTree.read(b);
+            LOGGER.debug("Restored {} groups from {}.", tree.size(), file);
+        } finally {
+            raf.close();
+        }
+        if (size != f3.getSize()
+                || lastModified != getTime(f3.getLastModifiedDate())) {
+            LOGGER.info("The repository has changed since {} was saved.",
+                    file);
+            startRebuild();
+        }
+        return true;
+    }
+
+    private static long getTime(Date date) {
+        return date == null ? -1 : date.getTime();
+    }
+
+    /**
+     * Gets the tree of loaded groups.
+     */
+    protected CompactGroupTree getTree() {
+        return tree;
     }
 
     /**
@@ -85,18 +519,33 @@ public class GroupingOrganizer implements RepositoryOrganizer {
      * Fedora3DataInterface unless a similar call has already been cached.
      */
     public List<String> getChildrenForId(String id) {
-        ContainerInfo c = rootContainer.findContainer(id);
-        if (c == null) {
+        checkSize();
+        treeLock.readLock().lock();
+        try {
+            return getChildren(id);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    private List<String> getChildren(String id) {
+        int g = findGroup(id);
+        if (g < 0) {
             throw new IllegalArgumentException();
         } else {
             List<String> result = new ArrayList<String>();
-            if (!c.isLeafContainer()) {
-                for (ContainerInfo cc : c.loadChildren()) {
-                    result.add(cc.id);
+            if (tree.getDepth(g) > 1) {
+                loadChildren(g);
+                for (int i = 0; i < tree.getChildCount(g); i ++) {
+                    result.add(getId(tree.getChild(g, i)));
                 }
             } else {
+                // the first pid is known, so the rest are listed from it
+                // rather than from the offset of the container
+                String firstPid = tree.getFirstPid(g);
+                result.add(ID.objectID(firstPid).getId());
                 for (String pid
-                    : f3.getObjectPids(c.offset, maxContainerSize)) {
+                    : f3.getObjectPidsAfter(firstPid, maxContainerSize - 1)) {
                     result.add(ID.objectID(pid).getId());
                 }
             }
@@ -111,9 +560,25 @@ public class GroupingOrganizer implements RepositoryOrganizer {
     public String getParentForId(String id) {
         if (id.equals(ID.ROOT_ID.getId())) {
             return null;
+        }
+        checkSize();
+        treeLock.readLock().lock();
+        try {
+            return getParent(id);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    private String getParent(String id) {
+        int p = -1;
+        if (isContainerNodeId(id)) {
+            int g = findGroup(id);
+            p = (g < 0 ? -1 : tree.getParent(g));
         } else {
-            return rootContainer.getParent(id);
+            p = getContainingGroup(new ID(id).getPid());
         }
+        return (p < 0 ? null : getId(p));
     }
 
     /**
@@ -121,173 +586,284 @@ public class GroupingOrganizer implements RepositoryOrganizer {
      * this RepositoryOrganizer.
      */
     public boolean isOrganizationalNode(String id) {
-        return rootContainer.isOrContains(id);
+        checkSize();
+        treeLock.readLock().lock();
+        try {
+            return findGroup(id) >= 0;
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
     /**
-     * A class that represents an ordered tree of containers whose members
-     * follow the conventions of the organization for this GroupOrganizer.
-     * Actual fedora objects aren't represented in this tree, but there is
-     * a methods to quickly determine to which leaf a given pid would belong.
+     * {@inheritDoc}
      */
-    private class ContainerInfo {
-
-        public ContainerInfo() {
-            this((int) Math.ceil(
-                    logBaseN(f3.getSize(), maxContainerSize)), 0,
-                    null);
-        }
-
-
+    public long getGeneration() {
+        checkSize();
+        return generation;
+    }
 
+    private boolean isContainerNodeId(String id) {
+        return ID.ROOT_ID.getId().equals(id) || parseRange(id) != null;
+    }
 
-        public ContainerInfo(int depth, long offset, ContainerInfo parent) {
-            this.offset = offset;
-            this.size = (long) Math.pow(maxContainerSize, depth);
-            long realLast = Math.min(f3.getSize(), this.offset + this.size);
-            this.firstObjectId
-                = ID.objectID(f3.getObjectPids(offset, 1).get(0)).getId();
-            this.lastObjectId
-                = ID.objectID(f3.getObjectPids(realLast - 1, 1).get(0))
-                    .getId();
-            id = (parent == null
-                    ? "/" : offset + "-" + realLast + " " + firstObjectId);
-            this.depth = depth;
+    /**
+     * Gets the id of the given group.
+     */
+    private String getId(int g) {
+        if (g == ROOT) {
+            return ID.ROOT_ID.getId();
         }
+        long offset = tree.getOffset(g);
+        return offset + "-" + getEnd(size, offset, tree.getDepth(g)) + " "
+                + ID.objectID(tree.getFirstPid(g)).getId();
+    }
 
-        public long offset;
-
-        public long size;
-
-        public String firstObjectId;
-
-        public String lastObjectId;
-
-        public List<ContainerInfo> children;
-
-        public int depth;
-
-        public String id;
-
-        private List<ContainerInfo> getCachedChildren() {
-            return getChildren(true);
+    /**
+     * Finds the loaded group with the given id.  The offset range encoded in
+     * the id determines the depth of the group and the position of the group
+     * within each of its ancestors, so the group is found by descending from
+     * the root rather than by searching.
+     * @return the index of the group or -1 if the id isn't that of a loaded
+     *         group
+     */
+    private int findGroup(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return ROOT;
         }
-
-        private List<ContainerInfo> loadChildren() {
-            return getChildren(false);
+        long[] range = parseRange(id);
+        if (range == null) {
+            return -1;
         }
-
-        private List<ContainerInfo> getChildren(boolean onlyCachedResults) {
-            if (children == null && depth > 1 && !onlyCachedResults) {
-                children = new ArrayList<ContainerInfo>();
-                for (long co = offset;
-                     co < offset + size && co < f3.getSize();
-                     co += (size / maxContainerSize)) {
-                    children.add(new ContainerInfo(depth - 1, co, this));
-                }
+        int depth = depthOf(range[0], range[1]);
+        if (depth < 1) {
+            return -1;
+        }
+        int g = ROOT;
+        while (tree.getDepth(g) > depth) {
+            g = tree.getChild(g, (int) ((range[0] - tree.getOffset(g))
+                    / getChildSize(tree.getDepth(g))));
+            if (g < 0) {
+                return -1;
             }
-            return children;
         }
+        return getId(g).equals(id) ? g : -1;
+    }
 
+    /**
+     * Parses the offset range from an id of the form "offset-end firstPid".
+     * @return an array containing the offset and end or null if the id isn't
+     *         of that form
+     */
+    private static long[] parseRange(String id) {
+        int dash = id.indexOf('-');
+        int space = id.indexOf(' ');
+        if (dash < 1 || space < dash + 2) {
+            return null;
+        }
+        try {
+            return new long[] { Long.parseLong(id.substring(0, dash)),
+                    Long.parseLong(id.substring(dash + 1, space)) };
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
 
-        public boolean isContainerNodeId(String id) {
-            return ID.ROOT_ID.getId().equals(id)
-                    || ID_PATTERN.matcher(id).matches();
+    /**
+     * Computes the depth of the container covering the given offset range.
+     * Containers at depth d start at a multiple of maxContainerSize^d and
+     * span that many objects (or fewer if they are the last in the
+     * repository), so when more than one depth is possible the greatest is
+     * returned, matching the order in which containers are loaded.
+     * @return the depth or -1 if no container could span the range
+     */
+    private int depthOf(long offset, long end) {
+        long total = size;
+        if (offset < 0 || end <= offset || end > total) {
+            return -1;
+        }
+        for (int depth = tree.getDepth(ROOT) - 1; depth > 0; depth --) {
+            long size = getSize(depth);
+            if (offset % size == 0
+                    && (end - offset == size
+                        || (end == total && end - offset < size))) {
+                return depth;
+            }
         }
+        return -1;
+    }
 
-        public ContainerInfo findContainer(String id) {
-            if (this.id.equals(id)) {
-                return this;
+    /**
+     * Finds the leaf group that holds the object with the given pid.  Where
+     * the children of a group have been loaded they are searched, otherwise
+     * the position of the object is looked up and only the groups on the
+     * path to that position are built.
+     * @return the index of the group or -1 if there's no such object
+     */
+    private int getContainingGroup(String pid) {
+        int g = ROOT;
+        while (tree.getDepth(g) > 1) {
+            if (!tree.areChildrenComplete(g)) {
+                long position = f3.getObjectPosition(pid);
+                return position < 0 ? -1 : getGroupAt(g, position);
             }
-            if (haveChildrenBeenCached()) {
-                for (ContainerInfo c : getCachedChildren()) {
-                    ContainerInfo match = c.findContainer(id);
-                    if (match != null) {
-                        return match;
-                    }
+            // children are in pid order, so the candidate is the last child
+            // whose first object sorts at or before the given pid
+            int low = 0;
+            int high = tree.getChildCount(g) - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (tree.getFirstPid(tree.getChild(g, mid))
+                        .compareTo(pid) <= 0) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
                 }
             }
-            return null;
+            int c = tree.getChild(g, low);
+            if (tree.getFirstPid(c).compareTo(pid) > 0
+                    || tree.getLastPid(c).compareTo(pid) < 0) {
+                return -1;
+            }
+            g = c;
         }
+        return g;
+    }
 
-        public String getParent(String id) {
-            ContainerInfo p = null;
-            if (isContainerNodeId(id)) {
-                p = findParentContainer(id);
-            } else {
-                p = getContainingContainer(id);
-            }
-            return (p == null ? null : p.id);
-        }
-
-        /**
-         * Only searches already lazily loaded nodes.
-         */
-        private ContainerInfo findParentContainer(String id) {
-            if (haveChildrenBeenCached()) {
-                for (ContainerInfo cc : getCachedChildren()) {
-                    if (cc.id.equals(id)) {
-                        return this;
-                    } else {
-                        ContainerInfo p = cc.findParentContainer(id);
-                        if (p != null) {
-                            return p;
-                        }
-                    }
+    /**
+     * Gets the leaf group below the given group that holds the object at the
+     * given position, building only the groups on the path to it.
+     */
+    private int getGroupAt(int g, long position) {
+        long offset = tree.getOffset(g);
+        if (position < offset
+                || position >= getEnd(size, offset, tree.getDepth(g))) {
+            return -1;
+        }
+        while (tree.getDepth(g) > 1) {
+            g = getChild(g, (int) ((position - tree.getOffset(g))
+                    / getChildSize(tree.getDepth(g))));
+        }
+        return g;
+    }
+
+    /**
+     * Gets the child at the given position within the given group, building
+     * it if necessary.
+     */
+    private int getChild(int g, int position) {
+        int c = tree.getChild(g, position);
+        if (c < 0) {
+            synchronized (locks[g % LOCK_STRIPES]) {
+                c = tree.getChild(g, position);
+                if (c < 0) {
+                    long start = tree.getOffset(g)
+                            + position * getChildSize(tree.getDepth(g));
+                    long end = getEnd(size, start, tree.getDepth(g) - 1);
+                    List<String> pids
+                        = f3.getObjectPidsAt(new long[] { start, end - 1 });
+                    c = addChild(tree, size, g, position, pids.get(0),
+                            pids.get(1));
                 }
             }
-            return null;
         }
+        return c;
+    }
 
-        /**
-         * Only searches already lazily loaded nodes.
-         */
-        private ContainerInfo getContainingContainer(String id) {
-            if (isLeafContainer()) {
-                return this;
+    /**
+     * Builds every child of the given group that hasn't already been built,
+     * fetching the first and last pid of all of them at once.
+     */
+    void loadChildren(int g) {
+        if (tree.areChildrenComplete(g)) {
+            return;
+        }
+        synchronized (locks[g % LOCK_STRIPES]) {
+            if (tree.areChildrenComplete(g)) {
+                return;
             }
-            if (!haveChildrenBeenCached()) {
-                throw new IllegalStateException(id + " is probably a child of "
-                        + this.id + " but hasn't been loaded.");
+            int depth = tree.getDepth(g);
+            List<Integer> missing = new ArrayList<Integer>();
+            List<Long> positions = new ArrayList<Long>();
+            for (int i = 0; i < tree.getChildCount(g); i ++) {
+                if (tree.getChild(g, i) < 0) {
+                    long start = tree.getOffset(g) + i * getChildSize(depth);
+                    missing.add(i);
+                    positions.add(start);
+                    positions.add(getEnd(size, start, depth - 1) - 1);
+                }
             }
-            for (ContainerInfo c : getCachedChildren()) {
-                if (c.firstObjectId.compareTo(id) <= 0
-                        && c.lastObjectId.compareTo(id) >= 0) {
-                    return c.getContainingContainer(id);
+            if (!missing.isEmpty()) {
+                long[] p = new long[positions.size()];
+                for (int i = 0; i < p.length; i ++) {
+                    p[i] = positions.get(i);
+                }
+                List<String> pids = f3.getObjectPidsAt(p);
+                for (int i = 0; i < missing.size(); i ++) {
+                    addChild(tree, size, g, missing.get(i), pids.get(i * 2),
+                            pids.get(i * 2 + 1));
                 }
             }
-            return null;
+            tree.setChildrenComplete(g);
         }
+    }
 
-        private boolean isLeafContainer() {
-            return depth == 1;
+    /**
+     * Adds the child at the given position within the given group of the
+     * given tree of the given number of objects.  The first child shares its
+     * first pid with the parent and the last child shares its last pid with
+     * the parent, so those aren't stored again.
+     */
+    private int addChild(CompactGroupTree t, long total, int g, int position,
+            String firstPid, String lastPid) {
+        int depth = t.getDepth(g) - 1;
+        long offset = t.getOffset(g) + position * getChildSize(depth + 1);
+        int firstRef = position == 0
+                ? t.getFirstPidRef(g) : t.addPid(firstPid);
+        int lastRef;
+        if (position == t.getChildCount(g) - 1) {
+            lastRef = t.getLastPidRef(g);
+        } else if (lastPid.equals(firstPid)) {
+            lastRef = firstRef;
+        } else {
+            lastRef = t.addPid(lastPid);
         }
+        int c = t.addGroup(g, offset, depth,
+                getChildCount(total, offset, depth), firstRef, lastRef);
+        t.setChild(g, position, c);
+        return c;
+    }
 
-        private boolean haveChildrenBeenCached() {
-            return children != null;
-        }
+    /**
+     * Gets the number of objects in a full group at the given depth.
+     */
+    private long getSize(int depth) {
+        return (long) Math.pow(maxContainerSize, depth);
+    }
 
+    /**
+     * Gets the number of objects in a full child of a group at the given
+     * depth.
+     */
+    private long getChildSize(int depth) {
+        return getSize(depth - 1);
+    }
 
-        /**
-         * Only searches already lazily loaded nodes.
-         */
-        public boolean isOrContains(String id) {
-            if (!isContainerNodeId(id)) {
-                return false;
-            }
-            if (this.id.equals((id))) {
-                return true;
-            } else if (!haveChildrenBeenCached()) {
-                return false;
-            } else {
-                for (ContainerInfo c :getCachedChildren()) {
-                    if (c.isOrContains(id)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
+    /**
+     * Gets the offset following the last object in the group at the given
+     * offset and depth of a tree of the given number of objects.
+     */
+    private long getEnd(long total, long offset, int depth) {
+        return Math.min(total, offset + getSize(depth));
+    }
+
+    private int getChildCount(long total, long offset, int depth) {
+        if (depth <= 1) {
+            return 0;
         }
+        long childSize = getChildSize(depth);
+        return (int) ((getEnd(total, offset, depth) - offset + childSize - 1)
+                / childSize);
     }
 
     private static int logBaseN(long x, int n) {
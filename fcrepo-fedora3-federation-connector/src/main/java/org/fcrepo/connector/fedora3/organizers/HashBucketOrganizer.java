@@ -0,0 +1,385 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RepositoryOrganizer;
+import org.fcrepo.connector.fedora3.index.BucketIndex;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Organizes the objects in the fedora 3 repository into a fixed hierarchy of
+ * buckets chosen by a hash of their pids.  Each level of the hierarchy has
+ * 256 buckets with ids like "bucket-3f" and, at the next level,
+ * "bucket-3f-a2".  Because the bucket holding an object is computed from its
+ * pid alone, determining the parent of any node or whether a node is a
+ * bucket requires no queries and no loaded state, regardless of the size of
+ * the repository.  Only listing the objects in a bucket requires data from
+ * the repository: a read of that bucket from a local {@link BucketIndex},
+ * which is built in a single pass over the pids in the resource index the
+ * first time any bucket is listed and rebuilt in the background (while the
+ * previous index continues to be read) whenever the number of objects
+ * changes.  The index is kept in the configured index file, so that it
+ * survives restarts, or else in a temporary file.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "organizer" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "organizer" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.organizers.HashBucketOrganizer",
+ *        "levels" : 2,
+ *        "indexFile" : "/var/lib/fcrepo/fedora3-buckets.idx"
+ *    }
+ *  }
+ * </pre>
+ */
+public class HashBucketOrganizer implements RepositoryOrganizer {
+
+    private static final Logger LOGGER
+        = getLogger(HashBucketOrganizer.class);
+
+    private static final String PREFIX = "bucket";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private int levels = 2;
+
+    private String indexFile;
+
+    /**
+     * The file in which the index is kept: indexFile or a temporary file.
+     */
+    private File file;
+
+    private Fedora3DataInterface f3;
+
+    private volatile BucketIndex index;
+
+    /**
+     * Set while a background thread is rebuilding the index.
+     */
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private volatile Thread rebuilder;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        f3 = fedora;
+        if (indexFile == null) {
+            return;
+        }
+        file = new File(indexFile);
+        if (file.exists()) {
+            try {
+                index = new BucketIndex(file);
+                LOGGER.debug("Opened index of {} pids at {}.", index.size(),
+                        file);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read " + file + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of levels of buckets (from 1 to 3), each of which
+     * divides the objects 256 ways.  Defaults to 2.
+     */
+    public void setLevels(int levels) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Levels must be set before initialization!");
+        }
+        if (levels < 1 || levels > 3) {
+            throw new IllegalArgumentException();
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * Sets the path of the file in which the pids of each bucket are
+     * indexed.  Without it, the index is kept in a temporary file and built
+     * again after every restart.
+     */
+    public void setIndexFile(String path) {
+        indexFile = path;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Buckets other than those at the lowest level have 256 children
+     * regardless of how many objects they hold.
+     */
+    public List<String> getChildrenForId(String id) {
+        int[] path = parse(id);
+        if (path == null) {
+            throw new IllegalArgumentException();
+        }
+        List<String> result = new ArrayList<String>();
+        if (path.length < levels) {
+            int[] child = new int[path.length + 1];
+            System.arraycopy(path, 0, child, 0, path.length);
+            for (int i = 0; i < 256; i ++) {
+                child[path.length] = i;
+                result.add(getId(child));
+            }
+        } else {
+            for (String pid : getPids(getBucket(path))) {
+                result.add(ID.objectID(pid).getId());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getParentForId(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return null;
+        }
+        int[] path = parse(id);
+        if (path != null) {
+            int[] parent = new int[path.length - 1];
+            System.arraycopy(path, 0, parent, 0, parent.length);
+            return getId(parent);
+        }
+        int hash = hash(new ID(id).getPid());
+        int[] bucket = new int[levels];
+        for (int i = 0; i < levels; i ++) {
+            bucket[i] = (hash >>> (24 - 8 * i)) & 0xFF;
+        }
+        return getId(bucket);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOrganizationalNode(String id) {
+        return parse(id) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The bucket of an object is determined by its pid alone, so nodes
+     * never move.
+     */
+    public long getGeneration() {
+        return 0;
+    }
+
+    /**
+     * Gets the number of the lowest level bucket holding the given pid.
+     */
+    protected int getBucket(String pid) {
+        return hash(pid) >>> (32 - 8 * levels);
+    }
+
+    private int getBucket(int[] path) {
+        int bucket = 0;
+        for (int b : path) {
+            bucket = (bucket << 8) | b;
+        }
+        return bucket;
+    }
+
+    /**
+     * Gets the pids in the given lowest level bucket from the index.
+     */
+    private List<String> getPids(int bucket) {
+        return getIndex().getPids(bucket);
+    }
+
+    /**
+     * Gets the bucket index.  If none exists or it was built for a different
+     * number of buckets, a build is started in the background and awaited;
+     * only threads listing buckets wait for it.  If it doesn't hold as many
+     * pids as the repository, a rebuild is started in the background and
+     * the current index is returned until the rebuild completes.
+     */
+    private BucketIndex getIndex() {
+        BucketIndex i = index;
+        if (!isUsable(i)) {
+            startBuild();
+            try {
+                awaitRebuild();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            i = index;
+            if (!isUsable(i)) {
+                throw new IllegalStateException("Unable to build the bucket"
+                        + " index!");
+            }
+        } else if (i.size() != f3.getSize()) {
+            startBuild();
+        }
+        return i;
+    }
+
+    private boolean isUsable(BucketIndex i) {
+        return i != null && i.getBucketCount() == 1 << (8 * levels);
+    }
+
+    /**
+     * Starts a background thread that builds the index, unless one is
+     * already running.
+     */
+    private void startBuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    index = build();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to build bucket index!", e);
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        }, "fedora3-bucket-indexer");
+        t.setDaemon(true);
+        rebuilder = t;
+        t.start();
+    }
+
+    /**
+     * Builds a bucket index from the pids of the repository.  The new index
+     * is written to a separate file and moved over the old one, so readers
+     * of the old index are unaffected.
+     */
+    private BucketIndex build() {
+        try {
+            synchronized (this) {
+                if (file == null) {
+                    file = File.createTempFile("fedora3-buckets", ".idx");
+                    file.deleteOnExit();
+                }
+            }
+            LOGGER.info("Building bucket index at {}.", file);
+            PidIterator pids = f3.iterateObjectPids();
+            try {
+                return BucketIndex.build(pids,
+                        new BucketIndex.BucketFunction() {
+                            public int getBucket(String pid) {
+                                return HashBucketOrganizer.this
+                                        .getBucket(pid);
+                            }
+                        }, 1 << (8 * levels), file);
+            } finally {
+                pids.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits for a rebuild of the index that is in progress, if any, to
+     * complete.
+     */
+    void awaitRebuild() throws InterruptedException {
+        Thread t = rebuilder;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * Parses the path of bucket numbers from an id of the form
+     * "bucket-xx-xx".
+     * @return the bucket numbers from the highest level to the lowest (an
+     *         empty array for the root) or null if the id isn't that of a
+     *         bucket
+     */
+    private int[] parse(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return new int[0];
+        }
+        int depth = (id.length() - PREFIX.length()) / 3;
+        if (!id.startsWith(PREFIX) || depth < 1 || depth > levels
+                || id.length() != PREFIX.length() + depth * 3) {
+            return null;
+        }
+        int[] path = new int[depth];
+        for (int i = 0; i < depth; i ++) {
+            int p = PREFIX.length() + i * 3;
+            int high = Character.digit(id.charAt(p + 1), 16);
+            int low = Character.digit(id.charAt(p + 2), 16);
+            if (id.charAt(p) != '-' || high < 0 || low < 0
+                    || Character.isUpperCase(id.charAt(p + 1))
+                    || Character.isUpperCase(id.charAt(p + 2))) {
+                return null;
+            }
+            path[i] = (high << 4) | low;
+        }
+        return path;
+    }
+
+    /**
+     * Gets the id of the bucket with the given path of bucket numbers.
+     */
+    private static String getId(int[] path) {
+        if (path.length == 0) {
+            return ID.ROOT_ID.getId();
+        }
+        StringBuilder id = new StringBuilder(PREFIX);
+        for (int b : path) {
+            id.append('-').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+        }
+        return id.toString();
+    }
+
+    /**
+     * Hashes the given pid.  The hash code of a String is specified by the
+     * Java API (so buckets are stable across restarts and JVMs) and is mixed
+     * with the finalizer from MurmurHash3 so that similar pids are spread
+     * evenly across the buckets.
+     */
+    static int hash(String pid) {
+        int h = pid.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,562 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.RepositoryOrganizer;
+import org.fcrepo.connector.fedora3.cache.BoundedCache;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Organizes the objects in the fedora 3 repository by the (UTC) date on which
+ * they were last modified, with a node for each year (for example "modified
+ * 2013"), month ("modified 2013-10") and day ("modified 2013-10-04") between
+ * the earliest and latest modification dates in the repository.  Each day
+ * lists its objects from a single resource index query bounded by that day,
+ * so a consumer interested only in recent changes need only read the most
+ * recent days.
+ *
+ * A day that ended before the most recent modification in the repository is
+ * closed: no object can be modified on it again.  The objects of closed days
+ * are cached, and when the repository changes, the objects modified since it
+ * was last checked (which have left whichever day they were in) are found
+ * with one more bounded query and omitted from the cached days rather than
+ * discarding them.  The objects of the open day are cached until the range
+ * of modification dates is next checked, which happens in the background
+ * every refreshSeconds while the previous range continues to be served.
+ *
+ * A day with more than maxContainerSize objects is split into pages of that
+ * many objects, each identified by the first pid it holds (for example
+ * "modified 2013-10-04 from demo:1000"), so no single node lists a day of
+ * bulk changes in its entirety.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "organizer" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "organizer" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.organizers.ModifiedDateOrganizer",
+ *        "refreshSeconds" : 60,
+ *        "cachedDays" : 1000,
+ *        "maxContainerSize" : 1000
+ *    }
+ *  }
+ * </pre>
+ */
+public class ModifiedDateOrganizer implements RepositoryOrganizer {
+
+    private static final Logger LOGGER
+        = getLogger(ModifiedDateOrganizer.class);
+
+    private static final String PREFIX = "modified ";
+
+    private static final String PAGE = " from ";
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /**
+     * The number of modified objects tracked before the cached days are
+     * discarded instead.
+     */
+    private static final int MAX_MOVED = 100000;
+
+    private Fedora3DataInterface f3;
+
+    private long refreshMillis = 60000;
+
+    private int cachedDays = 1000;
+
+    private int maxContainerSize = 1000;
+
+    private volatile Date first;
+
+    private volatile Date last;
+
+    private volatile long refreshed;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Thread refresher;
+
+    /**
+     * The pids of the objects on the open day, when last listed.
+     */
+    private volatile OpenDay open;
+
+    /**
+     * Incremented each time objects are found to have been modified.
+     */
+    private volatile long generation;
+
+    /**
+     * The pids of the objects on each closed day that has been listed.
+     */
+    private BoundedCache<String, List<String>> closed;
+
+    /**
+     * Each object found to be modified after a closed day was cached, mapped
+     * to a date before which it was not modified.
+     */
+    private final Map<String, Date> moved
+        = new ConcurrentHashMap<String, Date>();
+
+    /**
+     * {@inheritDoc}
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        f3 = fedora;
+        closed = new BoundedCache<String, List<String>>(cachedDays, 0, true);
+    }
+
+    /**
+     * Sets the number of seconds after which the range of modification
+     * dates in the repository is checked again.  Defaults to 60.
+     */
+    public void setRefreshSeconds(long seconds) {
+        refreshMillis = seconds * 1000;
+    }
+
+    /**
+     * Sets the maximum number of closed days whose objects are cached.
+     * Defaults to 1000.
+     */
+    public void setCachedDays(int days) {
+        if (days < 1) {
+            throw new IllegalArgumentException();
+        }
+        cachedDays = days;
+    }
+
+    /**
+     * Sets the maximum number of objects listed by a day before they're
+     * split into pages.  Defaults to 1000.
+     */
+    public void setMaxContainerSize(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException();
+        }
+        maxContainerSize = size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getChildrenForId(String id) {
+        refresh();
+        List<String> result = new ArrayList<String>();
+        String[] page = parsePage(id);
+        if (page != null) {
+            int[] day = parse(page[0]);
+            if (!isInRange(day)) {
+                throw new IllegalArgumentException();
+            }
+            List<String> pids = getPids(day);
+            int start = getPageStart(pids, page[1]);
+            if (start < 0) {
+                throw new IllegalArgumentException();
+            }
+            for (String pid : pids.subList(start,
+                    Math.min(pids.size(), start + maxContainerSize))) {
+                result.add(ID.objectID(pid).getId());
+            }
+            return result;
+        } else if (ID.ROOT_ID.getId().equals(id)) {
+            if (first != null && last != null) {
+                for (int year = getField(first, Calendar.YEAR);
+                        year <= getField(last, Calendar.YEAR); year ++) {
+                    result.add(getId(new int[] { year, 0, 0 }));
+                }
+            }
+            return result;
+        }
+        int[] period = parse(id);
+        if (period == null || !isInRange(period)) {
+            throw new IllegalArgumentException();
+        } else if (period[2] != 0) {
+            List<String> pids = getPids(period);
+            if (pids.size() <= maxContainerSize) {
+                for (String pid : pids) {
+                    result.add(ID.objectID(pid).getId());
+                }
+            } else {
+                for (int i = 0; i < pids.size(); i += maxContainerSize) {
+                    result.add(getPageId(id, pids.get(i)));
+                }
+            }
+            return result;
+        }
+        int i = period[1] == 0 ? 1 : 2;
+        int count = period[1] == 0 ? 12 : getStart(period)
+                .getActualMaximum(Calendar.DAY_OF_MONTH);
+        for (int n = 1; n <= count; n ++) {
+            int[] child = period.clone();
+            child[i] = n;
+            if (isInRange(child)) {
+                result.add(getId(child));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getParentForId(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return null;
+        }
+        String[] page = parsePage(id);
+        if (page != null) {
+            return page[0];
+        }
+        int[] period = parse(id);
+        if (period != null) {
+            if (period[1] == 0) {
+                return ID.ROOT_ID.getId();
+            }
+            period[period[2] == 0 ? 1 : 2] = 0;
+            return getId(period);
+        }
+        String pid = new ID(id).getPid();
+        Date modified = f3.getObjectModifiedDate(pid);
+        if (modified == null) {
+            return null;
+        }
+        int[] day = new int[] { getField(modified, Calendar.YEAR),
+                getField(modified, Calendar.MONTH) + 1,
+                getField(modified, Calendar.DAY_OF_MONTH) };
+        String dayId = getId(day);
+        refresh();
+        if (!isInRange(day)) {
+            return dayId;
+        }
+        List<String> pids = getPids(day);
+        if (pids.size() <= maxContainerSize) {
+            return dayId;
+        }
+        int i = Collections.binarySearch(pids, pid);
+        if (i < 0) {
+            return dayId;
+        }
+        return getPageId(dayId, pids.get(i - i % maxContainerSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOrganizationalNode(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return true;
+        }
+        String[] page = parsePage(id);
+        if (page != null) {
+            refresh();
+            int[] day = parse(page[0]);
+            return isInRange(day)
+                    && getPageStart(getPids(day), page[1]) >= 0;
+        }
+        int[] period = parse(id);
+        if (period == null) {
+            return false;
+        }
+        refresh();
+        return isInRange(period);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getGeneration() {
+        refresh();
+        return generation;
+    }
+
+    /**
+     * Gets the position of the page of the given pids that begins with the
+     * given pid, or -1 if no page begins with it.
+     */
+    private int getPageStart(List<String> pids, String firstPid) {
+        if (pids.size() <= maxContainerSize) {
+            return -1;
+        }
+        int i = Collections.binarySearch(pids, firstPid);
+        return i >= 0 && i % maxContainerSize == 0 ? i : -1;
+    }
+
+    /**
+     * Gets the pids of the objects last modified on the given day in pid
+     * order, from the cache if the day is closed or if the open day was
+     * listed within the last refreshSeconds.
+     */
+    private List<String> getPids(int[] day) {
+        Date start = getStart(day).getTime();
+        Date end = getEnd(day).getTime();
+        String id = getId(day);
+        if (end.after(last)) {
+            OpenDay o = open;
+            if (o != null && o.id.equals(id)
+                    && System.currentTimeMillis() - o.listed < refreshMillis) {
+                return o.pids;
+            }
+            List<String> pids = Collections.unmodifiableList(
+                    sorted(f3.getObjectPidsModifiedBetween(start, end)));
+            open = new OpenDay(id, pids);
+            return pids;
+        }
+        List<String> pids = closed.get(id);
+        if (pids == null) {
+            pids = Collections.unmodifiableList(
+                    sorted(f3.getObjectPidsModifiedBetween(start, end)));
+            closed.put(id, pids);
+        }
+        if (moved.isEmpty()) {
+            return pids;
+        }
+        List<String> current = new ArrayList<String>(pids.size());
+        for (String pid : pids) {
+            Date notBefore = moved.get(pid);
+            if (notBefore == null || notBefore.before(end)) {
+                current.add(pid);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Sorts the given pids, which the resource index usually returns in
+     * order already, so that pages can be found by binary search.
+     */
+    private static List<String> sorted(List<String> pids) {
+        List<String> result = new ArrayList<String>(pids);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Fetches the range of modification dates in the repository if it
+     * hasn't been fetched in the last refreshSeconds.  Only the first fetch
+     * is made on the calling thread; after that a background thread fetches
+     * the range while the previous one is served.
+     */
+    private void refresh() {
+        if (last != null
+                && System.currentTimeMillis() - refreshed < refreshMillis) {
+            return;
+        }
+        if (last == null) {
+            update();
+            return;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    update();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to refresh modification dates!", e);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        }, "fedora3-modified-refresher");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Waits for any background refresh to complete.
+     */
+    void awaitRefresh() throws InterruptedException {
+        Thread t = refresher;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * Fetches the range of modification dates in the repository unless it
+     * was fetched in the last refreshSeconds.  When the latest date has
+     * advanced, the objects modified in the meantime are noted so that they
+     * are omitted from the cached days they have left.
+     */
+    private synchronized void update() {
+        if (last != null
+                && System.currentTimeMillis() - refreshed < refreshMillis) {
+            return;
+        }
+        Date latest = f3.getLastModifiedDate();
+        if (first == null) {
+            first = f3.getFirstModifiedDate();
+        }
+        boolean changed = last != null && latest != null
+                && latest.after(last);
+        if (changed) {
+            List<String> pids = f3.getObjectPidsModifiedBetween(
+                    new Date(last.getTime() + 1),
+                    new Date(latest.getTime() + 1));
+            for (String pid : pids) {
+                moved.put(pid, last);
+            }
+            LOGGER.debug("{} objects were modified after {}.",
+                    pids.size(), last);
+            if (moved.size() > MAX_MOVED) {
+                closed.clear();
+                moved.clear();
+            }
+            open = null;
+        }
+        last = latest;
+        refreshed = System.currentTimeMillis();
+        if (changed) {
+            generation ++;
+        }
+    }
+
+    /**
+     * The pids of the objects on the open day and when they were listed.
+     */
+    private static class OpenDay {
+
+        private final String id;
+
+        private final List<String> pids;
+
+        private final long listed = System.currentTimeMillis();
+
+        public OpenDay(String id, List<String> pids) {
+            this.id = id;
+            this.pids = pids;
+        }
+    }
+
+    /**
+     * Determines whether any part of the given period falls between the
+     * earliest and latest modification dates in the repository.
+     */
+    private boolean isInRange(int[] period) {
+        return first != null && last != null
+                && !getStart(period).getTime().after(last)
+                && getEnd(period).getTime().after(first);
+    }
+
+    /**
+     * Parses an id of the form "modified yyyy", "modified yyyy-MM" or
+     * "modified yyyy-MM-dd".
+     * @return the year, month and day with 0 for any that are omitted, or
+     *         null if the id is not of that form
+     */
+    private static int[] parse(String id) {
+        if (!id.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] parts = id.substring(PREFIX.length()).split("-", -1);
+        if (parts.length > 3) {
+            return null;
+        }
+        int[] period = new int[3];
+        for (int i = 0; i < parts.length; i ++) {
+            if (!parts[i].matches(i == 0 ? "[0-9]{4}" : "[0-9]{2}")) {
+                return null;
+            }
+            period[i] = Integer.parseInt(parts[i]);
+        }
+        if (parts.length > 1 && (period[1] < 1 || period[1] > 12)) {
+            return null;
+        } else if (parts.length > 2 && (period[2] < 1 || period[2]
+                > getStart(new int[] { period[0], period[1], 0 })
+                    .getActualMaximum(Calendar.DAY_OF_MONTH))) {
+            return null;
+        }
+        return period;
+    }
+
+    /**
+     * Parses an id of the form "modified yyyy-MM-dd from [firstPid]".
+     * @return an array of the id of the day and the first pid, or null if
+     *         the id is not of that form
+     */
+    private static String[] parsePage(String id) {
+        int page = id.indexOf(PAGE);
+        if (!id.startsWith(PREFIX) || page < 0 || id.indexOf('/') >= 0) {
+            return null;
+        }
+        String day = id.substring(0, page);
+        int[] period = parse(day);
+        if (period == null || period[2] == 0) {
+            return null;
+        }
+        return new String[] {
+            day, new ID(id.substring(page + PAGE.length())).getPid() };
+    }
+
+    private static String getPageId(String dayId, String firstPid) {
+        return dayId + PAGE + ID.objectID(firstPid).getId();
+    }
+
+    private static String getId(int[] period) {
+        StringBuilder id = new StringBuilder(PREFIX);
+        id.append(String.format("%04d", period[0]));
+        if (period[1] != 0) {
+            id.append(String.format("-%02d", period[1]));
+        }
+        if (period[2] != 0) {
+            id.append(String.format("-%02d", period[2]));
+        }
+        return id.toString();
+    }
+
+    private static Calendar getStart(int[] period) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.clear();
+        c.set(period[0], Math.max(period[1], 1) - 1, Math.max(period[2], 1));
+        return c;
+    }
+
+    private static Calendar getEnd(int[] period) {
+        Calendar c = getStart(period);
+        c.add(period[1] == 0 ? Calendar.YEAR : period[2] == 0
+                ? Calendar.MONTH : Calendar.DAY_OF_MONTH, 1);
+        return c;
+    }
+
+    private static int getField(Date date, int field) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.setTime(date);
+        return c.get(field);
+    }
+}
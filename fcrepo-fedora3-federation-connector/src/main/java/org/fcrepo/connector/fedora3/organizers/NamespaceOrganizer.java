@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Organizes the objects in the fedora 3 repository by the namespace of their
+ * pids (the part before the colon), with a node like "namespace demo" for
+ * each namespace, split into pages when the namespace is large.  The number
+ * of objects in each namespace is tallied from a single streaming pass over
+ * the pids in the resource index (which can't itself group pids by
+ * namespace), after which each namespace is paged through with cursor
+ * queries that start at the namespace rather than with offsets into the
+ * entire repository.
+ *
+ * This class is meant to be set by reflection to the object specified in the
+ * "organizer" section of the connector configuration in the ModeShape
+ * repository configuration json file, for example:
+ * <pre>
+ *  {@code
+ *    "organizer" : {
+ *        "classname" : "org.fcrepo.connector.fedora3.organizers.NamespaceOrganizer",
+ *        "maxContainerSize" : 1000
+ *    }
+ *  }
+ * </pre>
+ */
+public class NamespaceOrganizer extends ScopedOrganizer {
+
+    private static final Logger LOGGER = getLogger(NamespaceOrganizer.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getScopeType() {
+        return "namespace";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected Map<String, Long> loadScopes() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        PidIterator pids = getFedora3DataInterface().iterateObjectPids();
+        try {
+            String namespace = null;
+            long count = 0;
+            while (pids.hasNext()) {
+                // pids usually arrive in order, making each namespace a
+                // single run, but runs are added up in case they don't
+                String ns = getScope(pids.next());
+                if (!ns.equals(namespace)) {
+                    add(counts, namespace, count);
+                    namespace = ns;
+                    count = 0;
+                }
+                count ++;
+            }
+            add(counts, namespace, count);
+        } finally {
+            try {
+                pids.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close pid iterator.", e);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Adds a run of count objects in the given namespace (if not null) to
+     * the counts.
+     */
+    private static void add(Map<String, Long> counts, String namespace,
+            long count) {
+        if (namespace != null) {
+            Long existing = counts.get(namespace);
+            counts.put(namespace, existing == null ? count : existing + count);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The pids of the namespace are those sorting after "[namespace]:", up to
+     * the first pid in a different namespace.
+     */
+    protected List<String> getPidsAfter(String namespace, String lastPid,
+            int count) {
+        String prefix = namespace + ":";
+        List<String> pids = new ArrayList<String>();
+        for (String pid : getFedora3DataInterface().getObjectPidsAfter(
+                lastPid == null ? prefix : lastPid, count)) {
+            if (!pid.startsWith(prefix)) {
+                break;
+            }
+            pids.add(pid);
+        }
+        return pids;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getScope(String pid) {
+        return pid.substring(0, pid.indexOf(':'));
+    }
+}
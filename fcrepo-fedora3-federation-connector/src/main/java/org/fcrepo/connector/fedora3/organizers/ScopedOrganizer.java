@@ -0,0 +1,430 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.RepositoryOrganizer;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A base for organizers that divide the objects in the repository into named
+ * scopes (namespaces, for example) whose sizes are known up front and whose
+ * objects can be walked in pid order with a cursor.  The root has a node for
+ * each scope with an id like "namespace demo".  A scope with no more than
+ * maxContainerSize objects lists them directly, while a larger scope lists
+ * pages of maxContainerSize objects, each identified by the first pid it
+ * holds (for example "namespace demo from demo:1000") so that listing a page
+ * is a single cursor query starting at that pid.
+ *
+ * The first pid of each page is found by walking the scope once, the first
+ * time it's needed, and is cached independently of every other scope.  Each
+ * scope is walked exactly once however many threads need it at the same
+ * time.  When the number of objects in the repository changes, the scopes
+ * are loaded again in the background, along with the pages of every scope
+ * that had been walked, while the previous scopes and pages continue to be
+ * served.  The new ones replace them all at once when they're complete.
+ */
+public abstract class ScopedOrganizer implements RepositoryOrganizer {
+
+    private static final Logger LOGGER = getLogger(ScopedOrganizer.class);
+
+    private static final String PAGE = " from ";
+
+    /**
+     * The number of pids requested at a time while walking a scope.
+     */
+    private static final int FETCH_SIZE = 10000;
+
+    private int maxContainerSize = 1000;
+
+    private Fedora3DataInterface f3;
+
+    /**
+     * The scopes and pages being served, which are replaced as a whole.
+     */
+    private volatile State state;
+
+    /**
+     * Set while a background thread is loading the scopes again.
+     */
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    private volatile Thread reloader;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void initialize(Fedora3DataInterface fedora) {
+        if (f3 != null) {
+            throw new IllegalStateException(
+                    "Initialize must only be called once!");
+        }
+        f3 = fedora;
+    }
+
+    /**
+     * Sets the maximum number of objects listed by a node before they're
+     * split into pages.  Defaults to 1000.
+     */
+    public void setMaxContainerSize(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException();
+        }
+        maxContainerSize = size;
+    }
+
+    /**
+     * Gets the Fedora3DataInterface whose objects are organized.
+     */
+    protected Fedora3DataInterface getFedora3DataInterface() {
+        return f3;
+    }
+
+    /**
+     * Gets the word with which the ids of scope nodes begin.
+     */
+    protected abstract String getScopeType();
+
+    /**
+     * Determines the number of objects in each scope.
+     */
+    protected abstract Map<String, Long> loadScopes();
+
+    /**
+     * Gets up to count pids of objects in the given scope that sort after
+     * the given pid.
+     * @param lastPid the last pid seen by the caller or null for the first
+     *                pids in the scope
+     */
+    protected abstract List<String> getPidsAfter(String scope, String lastPid,
+            int count);
+
+    /**
+     * Gets the scope under which the object with the given pid is placed.
+     * @return the scope or null if the object isn't in any scope
+     */
+    protected abstract String getScope(String pid);
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<String> getChildrenForId(String id) {
+        List<String> result = new ArrayList<String>();
+        State s = getState();
+        if (ID.ROOT_ID.getId().equals(id)) {
+            for (String scope : s.scopes.keySet()) {
+                result.add(getScopeId(scope));
+            }
+            return result;
+        }
+        String[] parsed = parse(id);
+        if (parsed == null || !isOrganizationalNode(s, id)) {
+            throw new IllegalArgumentException();
+        }
+        String scope = parsed[0];
+        String firstPid = parsed[1];
+        if (firstPid != null) {
+            result.add(ID.objectID(firstPid).getId());
+            for (String pid
+                    : getPidsAfter(scope, firstPid, maxContainerSize - 1)) {
+                result.add(ID.objectID(pid).getId());
+            }
+        } else if (s.scopes.get(scope) <= maxContainerSize) {
+            for (String pid : getPidsAfter(scope, null, maxContainerSize)) {
+                result.add(ID.objectID(pid).getId());
+            }
+        } else {
+            for (String pid : getPages(s, scope)) {
+                result.add(getPageId(scope, pid));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getParentForId(String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return null;
+        }
+        String[] parsed = parse(id);
+        if (parsed != null) {
+            return parsed[1] == null ? ID.ROOT_ID.getId()
+                    : getScopeId(parsed[0]);
+        }
+        String pid = new ID(id).getPid();
+        String scope = getScope(pid);
+        State s = getState();
+        Long count = scope == null ? null : s.scopes.get(scope);
+        if (count == null) {
+            return null;
+        } else if (count <= maxContainerSize) {
+            return getScopeId(scope);
+        }
+        List<String> firstPids = getPages(s, scope);
+        int i = Collections.binarySearch(firstPids, pid);
+        if (i < 0) {
+            i = -(i + 1) - 1;
+        }
+        return i < 0 ? null : getPageId(scope, firstPids.get(i));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOrganizationalNode(String id) {
+        return isOrganizationalNode(getState(), id);
+    }
+
+    private boolean isOrganizationalNode(State s, String id) {
+        if (ID.ROOT_ID.getId().equals(id)) {
+            return true;
+        }
+        String[] parsed = parse(id);
+        if (parsed == null) {
+            return false;
+        }
+        Long count = s.scopes.get(parsed[0]);
+        if (count == null) {
+            return false;
+        } else if (parsed[1] == null) {
+            return true;
+        }
+        return count > maxContainerSize && Collections.binarySearch(
+                getPages(s, parsed[0]), parsed[1]) >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getGeneration() {
+        return getState().generation;
+    }
+
+    private String getScopeId(String scope) {
+        return getScopeType() + " " + ID.objectID(scope).getId();
+    }
+
+    private String getPageId(String scope, String firstPid) {
+        return getScopeId(scope) + PAGE + ID.objectID(firstPid).getId();
+    }
+
+    /**
+     * Parses an id of the form "[type] [scope]" or "[type] [scope] from
+     * [firstPid]".
+     * @return an array of the scope and first pid (null for the id of a
+     *         scope) or null if the id is neither of those forms
+     */
+    private String[] parse(String id) {
+        String prefix = getScopeType() + " ";
+        if (!id.startsWith(prefix) || id.indexOf('/') >= 0) {
+            return null;
+        }
+        int page = id.indexOf(PAGE, prefix.length());
+        if (page < 0) {
+            return new String[] {
+                new ID(id.substring(prefix.length())).getPid(), null };
+        }
+        return new String[] {
+            new ID(id.substring(prefix.length(), page)).getPid(),
+            new ID(id.substring(page + PAGE.length())).getPid() };
+    }
+
+    /**
+     * Gets the scopes and pages to serve, loading them if they have never
+     * been loaded.  If the size of the repository has changed since they
+     * were loaded, they are loaded again in the background and the current
+     * ones are returned until that completes.
+     */
+    private State getState() {
+        long current = f3.getSize();
+        State s = state;
+        if (s == null) {
+            synchronized (this) {
+                if (state == null) {
+                    state = load(current, 1);
+                }
+                return state;
+            }
+        }
+        if (s.size != current && reloading.compareAndSet(false, true)) {
+            reload(s, current);
+        }
+        return s;
+    }
+
+    /**
+     * Starts a background thread that loads the scopes for the given size
+     * of the repository, walks each scope that had been walked in the given
+     * state and then replaces that state.
+     */
+    private void reload(final State previous, final long current) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    State s = load(current, previous.generation + 1);
+                    for (String scope : previous.pages.keySet()) {
+                        Long count = s.scopes.get(scope);
+                        if (count != null && count > maxContainerSize) {
+                            getPages(s, scope);
+                        }
+                    }
+                    state = s;
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to reload " + getScopeType()
+                            + " scopes!", e);
+                } finally {
+                    reloading.set(false);
+                }
+            }
+        }, "fedora3-" + getScopeType() + "-loader");
+        t.setDaemon(true);
+        reloader = t;
+        t.start();
+    }
+
+    /**
+     * Waits for a reload of the scopes that is in progress, if any, to
+     * complete.
+     */
+    void awaitReload() throws InterruptedException {
+        Thread t = reloader;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    private State load(long current, long generation) {
+        long start = System.currentTimeMillis();
+        State s = new State(Collections.unmodifiableSortedMap(
+                new TreeMap<String, Long>(loadScopes())), current,
+                generation);
+        LOGGER.debug("Loaded {} {} scopes in {}ms.", s.scopes.size(),
+                getScopeType(), (System.currentTimeMillis() - start));
+        return s;
+    }
+
+    /**
+     * Gets the first pid of each page of the given scope, walking the scope
+     * if it hasn't already been walked for the given state.
+     */
+    private List<String> getPages(State s, final String scope) {
+        FutureTask<List<String>> task = s.pages.get(scope);
+        if (task == null) {
+            FutureTask<List<String>> t = new FutureTask<List<String>>(
+                    new Callable<List<String>>() {
+                        public List<String> call() {
+                            return walk(scope);
+                        }
+                    });
+            task = s.pages.putIfAbsent(scope, t);
+            if (task == null) {
+                task = t;
+                t.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            s.pages.remove(scope, task);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private List<String> walk(String scope) {
+        long start = System.currentTimeMillis();
+        List<String> firstPids = new ArrayList<String>();
+        String last = null;
+        long seen = 0;
+        List<String> batch;
+        do {
+            batch = getPidsAfter(scope, last, FETCH_SIZE);
+            for (String pid : batch) {
+                if (seen ++ % maxContainerSize == 0) {
+                    firstPids.add(pid);
+                }
+            }
+            if (!batch.isEmpty()) {
+                last = batch.get(batch.size() - 1);
+            }
+        } while (batch.size() == FETCH_SIZE);
+        LOGGER.debug("Found {} pages of {} objects in {} {} in {}ms.",
+                firstPids.size(), seen, getScopeType(), scope,
+                (System.currentTimeMillis() - start));
+        return Collections.unmodifiableList(firstPids);
+    }
+
+    /**
+     * The scopes loaded for one size of the repository and the pages found
+     * within them.
+     */
+    private static class State {
+
+        /**
+         * The number of objects in each scope, in scope order.
+         */
+        private final SortedMap<String, Long> scopes;
+
+        /**
+         * The size of the repository when the scopes were loaded.
+         */
+        private final long size;
+
+        /**
+         * Incremented each time the scopes are loaded again.
+         */
+        private final long generation;
+
+        /**
+         * The first pid of each page of each large scope that has been
+         * needed.
+         */
+        private final ConcurrentMap<String, FutureTask<List<String>>> pages
+            = new ConcurrentHashMap<String, FutureTask<List<String>>>();
+
+        public State(SortedMap<String, Long> scopes, long size,
+                long generation) {
+            this.scopes = scopes;
+            this.size = size;
+            this.generation = generation;
+        }
+    }
+}
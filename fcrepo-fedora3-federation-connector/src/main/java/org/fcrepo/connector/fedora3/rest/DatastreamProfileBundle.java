@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+import com.yourmediashelf.fedora.generated.access.DatastreamType;
+import com.yourmediashelf.fedora.generated.access.ObjectDatastreams;
+import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The list of datastreams on an object along with the profile of the
+ * current version of each, as returned by a single "listDatastreams" request
+ * with the "profiles" parameter (supported by fedora 3.6 and later).
+ * Earlier versions of fedora ignore the parameter, in which case the bundle
+ * will list the datastreams but contain no profiles.
+ */
+public class DatastreamProfileBundle {
+
+    private String pid;
+
+    private List<String> dsids;
+
+    private Map<String, DatastreamProfile> profiles;
+
+    /**
+     * Fetches the bundle for the object with the given pid.
+     */
+    public static DatastreamProfileBundle fetch(FedoraClient fc, String pid)
+        throws FedoraClientException {
+        return new DatastreamProfileBundle(pid,
+                FedoraClient.listDatastreams(pid).xParam("profiles", "true")
+                .execute(fc).getEntity(ObjectDatastreams.class));
+    }
+
+    /**
+     * A constructor that accepts the parsed response to a listDatastreams
+     * request.  This is only separated from fetch() to allow unit testing
+     * against mocked responses.
+     */
+    protected DatastreamProfileBundle(String pid, ObjectDatastreams response) {
+        this.pid = pid;
+        dsids = new ArrayList<String>();
+        profiles = new LinkedHashMap<String, DatastreamProfile>();
+        for (DatastreamProfile p : response.getDatastreamProfile()) {
+            dsids.add(p.getDsID());
+            profiles.put(p.getDsID(), p);
+        }
+        for (DatastreamType ds : response.getDatastream()) {
+            if (!profiles.containsKey(ds.getDsid())) {
+                dsids.add(ds.getDsid());
+            }
+        }
+    }
+
+    /**
+     * Gets the pid of the object whose datastreams are described.
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * Gets the DSIDs of all datastreams on the object.
+     */
+    public List<String> listDatastreamIds() {
+        return dsids;
+    }
+
+    /**
+     * Determines whether the fedora server returned datastream profiles.
+     * When false, this bundle can only be used to list datastreams.
+     */
+    public boolean hasProfiles() {
+        return !profiles.isEmpty();
+    }
+
+    /**
+     * Gets the profile of the current version of the datastream with the
+     * given DSID or null if there is no such datastream.
+     */
+    public DatastreamProfile getProfile(String dsid) {
+        return profiles.get(dsid);
+    }
+}
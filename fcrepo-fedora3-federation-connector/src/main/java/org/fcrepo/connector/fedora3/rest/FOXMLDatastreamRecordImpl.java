@@ -0,0 +1,282 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.modeshape.common.util.SecureHash;
+import org.modeshape.common.util.SecureHash.Algorithm;
+import org.slf4j.Logger;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * An implementation of {@link FedoraDatastreamRecord} populated from the
+ * FOXML export of an object.  The content of every datastream, including
+ * inline XML (control group "X") datastreams, is fetched from the fedora 3
+ * REST API so that it is exactly what fedora 3 disseminates.
+ */
+public class FOXMLDatastreamRecordImpl implements FedoraDatastreamRecord {
+
+    private static final Logger LOGGER
+        = getLogger(FOXMLDatastreamRecordImpl.class);
+
+    private FedoraClient fc;
+
+    private String pid;
+
+    private String dsid;
+
+    private String controlGroup;
+
+    private String state;
+
+    private boolean versionable;
+
+    private List<FedoraDatastreamVersionRecord> history;
+
+    /**
+     * A constructor that accepts the attributes of the FOXML datastream
+     * element.  Versions are added as they are parsed.
+     */
+    public FOXMLDatastreamRecordImpl(FedoraClient fc, String pid, String dsid,
+            String controlGroup, String state, boolean versionable) {
+        this.fc = fc;
+        this.pid = pid;
+        this.dsid = dsid;
+        this.controlGroup = controlGroup;
+        this.state = blankToNull(state);
+        this.versionable = versionable;
+        this.history = new ArrayList<FedoraDatastreamVersionRecord>();
+    }
+
+    /**
+     * Adds a version of this datastream.  FOXML lists versions from oldest to
+     * most recent, so each version added is considered the current version.
+     */
+    protected void addVersion(String versionId, String label,
+            String createdDate, String mimeType, String formatURI,
+            String altIds, String digestType, String digest, long size) {
+        history.add(0, new Version(versionId, label, createdDate, mimeType,
+                formatURI, altIds, digestType, digest, size));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getId() {
+        return dsid;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getControlGroup() {
+        return controlGroup;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean getVersionable() {
+        return versionable;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<FedoraDatastreamVersionRecord> getHistory() {
+        return history;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraDatastreamVersionRecord getCurrentVersion() {
+        return history.get(0);
+    }
+
+    private static String blankToNull(String value) {
+        if (value == null || value.trim().equals("")) {
+            return null;
+        }
+        return value;
+    }
+
+    private class Version implements FedoraDatastreamVersionRecord {
+
+        private String versionId;
+
+        private String label;
+
+        private String createdDate;
+
+        private String mimeType;
+
+        private String formatURI;
+
+        private List<String> altIds;
+
+        private String digestType;
+
+        private String digest;
+
+        private long size;
+
+        private byte[] sha1;
+
+        public Version(String versionId, String label, String createdDate,
+                String mimeType, String formatURI, String altIds,
+                String digestType, String digest, long size) {
+            this.versionId = versionId;
+            this.label = blankToNull(label);
+            this.createdDate = createdDate;
+            this.mimeType = mimeType;
+            this.formatURI = blankToNull(formatURI);
+            this.altIds = blankToNull(altIds) == null
+                    ? Collections.<String>emptyList()
+                    : Arrays.asList(altIds.trim().split(" "));
+            this.digestType = digestType;
+            this.digest = digest;
+            this.size = size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getVersionId() {
+            return versionId;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Date getCreatedDate() {
+            return FOXMLParser.parseDate(createdDate);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getFormatURI() {
+            return formatURI;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public List<String> getAltIDs() {
+            return altIds;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getContentDigestType() {
+            return "DISABLED".equals(digestType) ? null : digestType;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getContentDigest() {
+            return "none".equals(digest) ? null : digest;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getContentLength() {
+            return size;
+        }
+
+        /**
+         * {@inheritDoc}
+         * The current implementation provides an InputStream directly from
+         * an authenticated request to the Fedora 3 rest API.
+         */
+        public InputStream getStream() throws Exception {
+            return FedoraClient.getDatastreamDissemination(pid, dsid)
+                    .asOfDateTime(createdDate)
+                    .execute(fc).getEntityInputStream();
+        }
+
+        /**
+         * Gets a SHA1 hash of the content of the datastreams.  The current
+         * implementation checks first to see if fedora 3 provides this
+         * information and failing that, computes it.
+         */
+        public byte[] getSha1() throws Exception {
+            if (sha1 != null) {
+                return sha1;
+            }
+            if ("SHA-1".equalsIgnoreCase(digestType)
+                    && getContentDigest() != null) {
+                sha1 = RESTFedoraDatastreamRecordImpl
+                        .getSha1BytesFromHexString(digest);
+            } else {
+                long start = System.currentTimeMillis();
+                InputStream is = getStream();
+                try {
+                    sha1 = SecureHash.getHash(Algorithm.SHA_1, is);
+                } finally {
+                    is.close();
+                    LOGGER.trace("Computed SHA-1 from " + dsid + " on "
+                            + pid + " in "
+                            + (System.currentTimeMillis() - start) + "ms.");
+                }
+            }
+            return sha1;
+        }
+    }
+}
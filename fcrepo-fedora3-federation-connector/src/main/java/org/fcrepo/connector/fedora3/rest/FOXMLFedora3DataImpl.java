@@ -0,0 +1,141 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.cache.BoundedCache;
+import org.slf4j.Logger;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.concurrent.Callable;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * An implementation of Fedora3DataInterface that builds object and datastream
+ * records from a single parse of the FOXML export of each object (fetched
+ * using the REST API's getObjectXML method).  Every datastream record is
+ * available without further requests, while content is fetched from each
+ * datastream's dissemination.  Repository level queries are answered as in
+ * the superclass.
+ */
+public class FOXMLFedora3DataImpl extends RESTFedora3DataImpl {
+
+    private static final Logger LOGGER
+        = getLogger(FOXMLFedora3DataImpl.class);
+
+    private FOXMLParser parser;
+
+    private InFlightRequests inFlight = new InFlightRequests();
+
+    /**
+     * Recently parsed objects, so that the datastream nodes of an object that
+     * was just visited can be built without further requests.
+     */
+    private BoundedCache<String, FOXMLObjectRecordImpl> objects
+        = new BoundedCache<String, FOXMLObjectRecordImpl>(256, 60000, true);
+
+    /**
+     * Constructor with credentials necessary for a connection to fedora's REST
+     * API.
+     */
+    public FOXMLFedora3DataImpl(String fedoraUrl, String username,
+            String password) throws MalformedURLException,
+            FedoraClientException {
+        super(fedoraUrl, username, password);
+        parser = new FOXMLParser(getFedoraClient());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraObjectRecord getObjectByPid(String pid) {
+        return getObject(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesObjectExist(String pid) {
+        if (objects.get(pid) != null) {
+            return true;
+        }
+        return super.doesObjectExist(pid);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FedoraDatastreamRecord getDatastream(String pid, String dsid) {
+        FedoraDatastreamRecord ds = getObject(pid).getDatastream(dsid);
+        if (ds == null) {
+            throw new RuntimeException("No datastream " + dsid + " on " + pid
+                    + ".");
+        }
+        return ds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesDatastreamExist(String pid, String dsid) {
+        FOXMLObjectRecordImpl o = objects.get(pid);
+        if (o != null) {
+            return o.getDatastream(dsid) != null;
+        }
+        return super.doesDatastreamExist(pid, dsid);
+    }
+
+    /**
+     * Gets the parsed FOXML for the given object, fetching it only if it
+     * isn't among the recently parsed objects.
+     */
+    private FOXMLObjectRecordImpl getObject(final String pid) {
+        FOXMLObjectRecordImpl o = objects.get(pid);
+        if (o != null) {
+            return o;
+        }
+        o = inFlight.execute("getObjectXML", pid, null,
+                new Callable<FOXMLObjectRecordImpl>() {
+                    public FOXMLObjectRecordImpl call()
+                        throws FedoraClientException, XMLStreamException,
+                        IOException {
+                        long start = System.currentTimeMillis();
+                        InputStream foxml = FedoraClient.getObjectXML(pid)
+                                .execute(getFedoraClient())
+                                .getEntityInputStream();
+                        try {
+                            return parser.parse(foxml);
+                        } finally {
+                            foxml.close();
+                            LOGGER.trace("Fetched and parsed FOXML for {}"
+                                    + " in {}ms.", pid,
+                                    (System.currentTimeMillis() - start));
+                        }
+                    }
+                });
+        objects.put(pid, o);
+        return o;
+    }
+
+}
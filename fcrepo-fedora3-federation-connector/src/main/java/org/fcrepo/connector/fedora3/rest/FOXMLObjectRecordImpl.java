@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An implementation of FedoraObjectRecord populated from the FOXML export of
+ * an object.  Because the FOXML contains every version of every datastream,
+ * this record also holds the datastream records for the object.
+ */
+public class FOXMLObjectRecordImpl extends AbstractFedoraObjectRecord {
+
+    private Map<String, FOXMLDatastreamRecordImpl> datastreamRecords;
+
+    /**
+     * A constructor that accepts the object properties found in the FOXML.
+     * @param state the FOXML state value ("Active", "Inactive" or "Deleted")
+     */
+    public FOXMLObjectRecordImpl(String pid, Date createdDate,
+            Date lastModifiedDate, String state, String label,
+            String ownerIdStr) {
+        super(pid, createdDate, lastModifiedDate);
+        if (state != null && state.trim().length() > 0) {
+            super.state = state.trim().substring(0, 1);
+        }
+        if (label != null && label.trim().length() > 0) {
+            super.label = label;
+        }
+        if (ownerIdStr != null && ownerIdStr.contains(",")) {
+            super.ownerIds = Arrays.asList(ownerIdStr.split(","));
+        } else if (ownerIdStr != null && ownerIdStr.trim().length() > 0) {
+            super.ownerIds = Collections.singletonList(ownerIdStr);
+        }
+        super.datastreams = new ArrayList<String>();
+        datastreamRecords = new LinkedHashMap<String,
+                FOXMLDatastreamRecordImpl>();
+    }
+
+    /**
+     * Adds a datastream to this object.
+     */
+    protected void addDatastream(FOXMLDatastreamRecordImpl ds) {
+        super.datastreams.add(ds.getId());
+        datastreamRecords.put(ds.getId(), ds);
+    }
+
+    /**
+     * Gets the record for the datastream with the given DSID or null if no
+     * such datastream exists on this object.
+     */
+    public FOXMLDatastreamRecordImpl getDatastream(String dsid) {
+        return datastreamRecords.get(dsid);
+    }
+}
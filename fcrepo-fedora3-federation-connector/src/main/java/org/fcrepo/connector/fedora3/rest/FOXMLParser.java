@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * A single pass StAX parser for the FOXML 1.1 export of a fedora 3 object.
+ * The object properties, datastreams and datastream versions are read into
+ * a {@link FOXMLObjectRecordImpl}.  Content (including inline XML content,
+ * which the export may not reproduce byte for byte) is skipped and fetched
+ * on demand from the dissemination of each datastream.
+ */
+public class FOXMLParser {
+
+    private static final String FOXML_NS
+        = "info:fedora/fedora-system:def/foxml#";
+
+    private static final String STATE
+        = "info:fedora/fedora-system:def/model#state";
+
+    private static final String LABEL
+        = "info:fedora/fedora-system:def/model#label";
+
+    private static final String OWNER_ID
+        = "info:fedora/fedora-system:def/model#ownerId";
+
+    private static final String CREATED_DATE
+        = "info:fedora/fedora-system:def/model#createdDate";
+
+    private static final String LAST_MODIFIED_DATE
+        = "info:fedora/fedora-system:def/view#lastModifiedDate";
+
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+                Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private FedoraClient fc;
+
+    /**
+     * A constructor that accepts the client that will be used to fetch the
+     * content of datastreams.
+     */
+    public FOXMLParser(FedoraClient fc) {
+        this.fc = fc;
+    }
+
+    /**
+     * Parses the given FOXML.  The stream is not closed by this method.
+     */
+    public FOXMLObjectRecordImpl parse(InputStream foxml)
+        throws XMLStreamException {
+        XMLStreamReader r = INPUT_FACTORY.createXMLStreamReader(foxml);
+        try {
+            return parse(r);
+        } finally {
+            r.close();
+        }
+    }
+
+    private FOXMLObjectRecordImpl parse(XMLStreamReader r)
+        throws XMLStreamException {
+        String pid = null;
+        String state = null;
+        String label = null;
+        String ownerId = null;
+        Date created = null;
+        Date lastModified = null;
+        FOXMLObjectRecordImpl o = null;
+        FOXMLDatastreamRecordImpl ds = null;
+        while (r.hasNext()) {
+            if (r.next() != XMLStreamConstants.START_ELEMENT
+                    || !FOXML_NS.equals(r.getNamespaceURI())) {
+                continue;
+            }
+            String name = r.getLocalName();
+            if (name.equals("digitalObject")) {
+                pid = r.getAttributeValue(null, "PID");
+            } else if (name.equals("property")) {
+                String n = r.getAttributeValue(null, "NAME");
+                String v = r.getAttributeValue(null, "VALUE");
+                if (STATE.equals(n)) {
+                    state = v;
+                } else if (LABEL.equals(n)) {
+                    label = v;
+                } else if (OWNER_ID.equals(n)) {
+                    ownerId = v;
+                } else if (CREATED_DATE.equals(n)) {
+                    created = parseDate(v);
+                } else if (LAST_MODIFIED_DATE.equals(n)) {
+                    lastModified = parseDate(v);
+                }
+            } else if (name.equals("datastream")) {
+                if (o == null) {
+                    o = new FOXMLObjectRecordImpl(pid, created, lastModified,
+                            state, label, ownerId);
+                }
+                ds = new FOXMLDatastreamRecordImpl(fc, pid,
+                        r.getAttributeValue(null, "ID"),
+                        r.getAttributeValue(null, "CONTROL_GROUP"),
+                        r.getAttributeValue(null, "STATE"),
+                        Boolean.parseBoolean(
+                                r.getAttributeValue(null, "VERSIONABLE")));
+                o.addDatastream(ds);
+            } else if (name.equals("datastreamVersion")) {
+                parseVersion(r, ds);
+            }
+        }
+        if (o == null) {
+            o = new FOXMLObjectRecordImpl(pid, created, lastModified, state,
+                    label, ownerId);
+        }
+        return o;
+    }
+
+    /**
+     * Parses a datastreamVersion element (the reader is positioned at its
+     * start) leaving the reader positioned at its end.
+     */
+    private void parseVersion(XMLStreamReader r, FOXMLDatastreamRecordImpl ds)
+        throws XMLStreamException {
+        String versionId = r.getAttributeValue(null, "ID");
+        String label = r.getAttributeValue(null, "LABEL");
+        String created = r.getAttributeValue(null, "CREATED");
+        String mimeType = r.getAttributeValue(null, "MIMETYPE");
+        String formatURI = r.getAttributeValue(null, "FORMAT_URI");
+        String altIds = r.getAttributeValue(null, "ALT_IDS");
+        String sizeStr = r.getAttributeValue(null, "SIZE");
+        long size = sizeStr == null ? -1L : Long.parseLong(sizeStr);
+        String digestType = null;
+        String digest = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth --;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = r.getLocalName();
+                if (name.equals("contentDigest")) {
+                    digestType = r.getAttributeValue(null, "TYPE");
+                    digest = r.getAttributeValue(null, "DIGEST");
+                    depth ++;
+                } else {
+                    depth ++;
+                }
+            }
+        }
+        ds.addVersion(versionId, label, created, mimeType, formatURI, altIds,
+                digestType, digest, size);
+    }
+
+    /**
+     * Parses an xsd:dateTime value as found in FOXML.
+     */
+    protected static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        return DatatypeConverter.parseDateTime(value).getTime();
+    }
+}
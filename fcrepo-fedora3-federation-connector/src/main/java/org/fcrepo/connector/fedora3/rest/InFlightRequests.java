@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A table of requests to fedora 3 that are currently being executed.  When
+ * a thread asks for a request identical to one that is already in flight
+ * (same operation, pid and dsid) it waits for and shares the result (or
+ * exception) of that request rather than issuing a duplicate.  Once a
+ * request completes it is removed from the table, so this class never
+ * serves stale results; any caching is left to higher layers.
+ */
+public class InFlightRequests {
+
+    private final ConcurrentMap<String, FutureTask<?>> inFlight
+        = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    /**
+     * Executes the given fetch, unless an identical fetch is already in
+     * flight, in which case the result of that fetch is returned.
+     * @param operation the name of the operation being performed
+     * @param pid the pid to which the operation pertains
+     * @param dsid the dsid to which the operation pertains (may be null)
+     * @param fetch the code that performs the request
+     * @return the result of the fetch
+     * @throws RuntimeException if the fetch threw an exception; checked
+     * exceptions are wrapped
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String operation, String pid, String dsid,
+            Callable<T> fetch) {
+        String key = operation + " " + pid + " " + (dsid == null ? "" : dsid);
+        FutureTask<T> task = new FutureTask<T>(fetch);
+        FutureTask<T> pending = (FutureTask<T>) inFlight.putIfAbsent(key,
+                task);
+        if (pending == null) {
+            pending = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of requests currently in flight.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
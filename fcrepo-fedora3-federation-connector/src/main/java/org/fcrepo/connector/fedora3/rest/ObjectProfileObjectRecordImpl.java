@@ -36,6 +36,24 @@ public class ObjectProfileObjectRecordImpl
      */
     public ObjectProfileObjectRecordImpl(ObjectProfile p,
             List<DatastreamType> dsTypes) {
+        this(p);
+        super.datastreams = new ArrayList<String>();
+        for (DatastreamType ds : dsTypes) {
+            super.datastreams.add(ds.getDsid());
+        }
+    }
+
+    /**
+     * A constructor that populates all required fields from an object
+     * profile and the bundle of datastream profiles for the same object.
+     */
+    public ObjectProfileObjectRecordImpl(ObjectProfile p,
+            DatastreamProfileBundle bundle) {
+        this(p);
+        super.datastreams = new ArrayList<String>(bundle.listDatastreamIds());
+    }
+
+    private ObjectProfileObjectRecordImpl(ObjectProfile p) {
         super(p.getPid(), p.getObjCreateDate().toGregorianCalendar().getTime(),
                 p.getObjLastModDate().toGregorianCalendar().getTime());
         if (p.getObjState() != null && p.getObjState().trim().length() > 0) {
@@ -50,9 +68,5 @@ public class ObjectProfileObjectRecordImpl
         } else if (ownerIdStr != null && ownerIdStr.trim().length() > 0) {
             super.ownerIds = Collections.singletonList(ownerIdStr);
         }
-        super.datastreams = new ArrayList<String>();
-        for (DatastreamType ds : dsTypes) {
-            super.datastreams.add(ds.getDsid());
-        }
     }
 }
@@ -20,17 +20,29 @@ import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.client.FedoraCredentials;
 import com.yourmediashelf.fedora.generated.access.FedoraRepository;
+import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 import org.fcrepo.connector.fedora3.Fedora3DataInterface;
 import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
 import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.fcrepo.connector.fedora3.cache.BoundedCache;
 import org.slf4j.Logger;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -45,13 +57,66 @@ public class RESTFedora3DataImpl implements Fedora3DataInterface {
     private static final Logger LOGGER
         = getLogger(RESTFedora3DataImpl.class);
 
+    /**
+     * The pid syntax of Fedora 3: a namespace of letters, digits, periods
+     * and hyphens, a colon, and an id of those characters, tildes,
+     * underscores and percent-encoded octets.
+     */
+    private static final Pattern PID_PATTERN = Pattern.compile(
+            "[A-Za-z0-9.\\-]+:([A-Za-z0-9.~_\\-]|%[0-9A-Fa-f]{2})+");
+
+    /**
+     * An absolute URI with none of the characters that would end an IRI
+     * reference in a query.
+     */
+    private static final Pattern URI_PATTERN = Pattern.compile(
+            "[A-Za-z][A-Za-z0-9+.\\-]*:[^\\s<>\"{}|\\\\^`]+");
+
     private FedoraClient fc;
 
     /**
      * The cached size (number of objects) of the repository.  This allows
      * subsequent calls to getSize() to be cheap.
      */
-    private long size = -1L;
+    private volatile long size = -1L;
+
+    /**
+     * The time at which the cached size was fetched.
+     */
+    private volatile long sizeFetched;
+
+    /**
+     * The number of milliseconds for which the cached size is used before it
+     * is fetched again, or zero if it's never fetched again.
+     */
+    private long sizeRefreshMillis = 300000;
+
+    /**
+     * Requests that are currently being executed.  Concurrent callers asking
+     * for the same information share a single request to fedora.
+     */
+    private InFlightRequests inFlight = new InFlightRequests();
+
+    /**
+     * When true, the profiles of every datastream on an object are fetched
+     * in a single request and datastream records are built from them rather
+     * than from a separate request per datastream.
+     */
+    private boolean bundleDatastreamProfiles = true;
+
+    /**
+     * The largest range of pids that will be read in a single response when
+     * picking out the pids at several positions within it.
+     */
+    private long boundaryScanLimit = 100000;
+
+    /**
+     * Recently fetched datastream profile bundles, so that the datastream
+     * nodes of an object that was just visited can be built without further
+     * requests.
+     */
+    private BoundedCache<String, DatastreamProfileBundle> bundles
+        = new BoundedCache<String, DatastreamProfileBundle>(256, 60000, true);
 
     /**
      * Constructor with credentials necessary for a connection to fedora's REST
@@ -64,6 +129,43 @@ public class RESTFedora3DataImpl implements Fedora3DataInterface {
                 new FedoraCredentials(fedoraUrl, username, password)));
     }
 
+    /**
+     * Enables or disables the fetching of all datastream profiles for an
+     * object in a single request.  This is enabled by default and is harmless
+     * (though useless) for fedora versions prior to 3.6.
+     */
+    public void setBundleDatastreamProfiles(boolean bundle) {
+        bundleDatastreamProfiles = bundle;
+    }
+
+    /**
+     * Gets the client used to access fedora's REST API.
+     */
+    protected FedoraClient getFedoraClient() {
+        return fc;
+    }
+
+    /**
+     * Sets the largest number of consecutive pids that will be read from a
+     * single resource index query in order to answer getObjectPidsAt().
+     * When the requested positions span more pids than this, the span is
+     * read in several windows of at most this many pids, each following the
+     * last pid of the one before.
+     */
+    public void setBoundaryScanLimit(long limit) {
+        boundaryScanLimit = limit;
+    }
+
+    /**
+     * Sets the number of seconds for which the number of objects in the
+     * repository is cached before it is counted again, so that objects
+     * ingested after startup are eventually noticed.  A value of zero or less
+     * indicates that the number is counted only once.
+     */
+    public void setSizeRefreshSeconds(long seconds) {
+        sizeRefreshMillis = seconds * 1000;
+    }
+
     private void initialize(FedoraClient fc) throws FedoraClientException {
         this.fc = fc;
         FedoraRepository r = FedoraClient.describeRepository().execute(fc)
@@ -77,29 +179,42 @@ public class RESTFedora3DataImpl implements Fedora3DataInterface {
 
     /**
      * {@inheritDoc}
+     *
+     * When datastream profiles are bundled, the datastreams are listed along
+     * with the profile of each, which is retained for subsequent calls to
+     * getDatastream().
      */
-    public FedoraObjectRecord getObjectByPid(String pid) {
-        try {
-            return new ObjectProfileObjectRecordImpl(
-                    FedoraClient.getObjectProfile(pid)
-                    .execute(fc).getObjectProfile(),
-                    FedoraClient.listDatastreams(pid)
-                    .execute(fc).getDatastreams());
-        } catch (FedoraClientException e) {
-            throw new RuntimeException(e);
-        }
+    public FedoraObjectRecord getObjectByPid(final String pid) {
+        return inFlight.execute("getObjectByPid", pid, null,
+                new Callable<FedoraObjectRecord>() {
+                    public FedoraObjectRecord call()
+                        throws FedoraClientException {
+                        if (bundleDatastreamProfiles) {
+                            return new ObjectProfileObjectRecordImpl(
+                                    FedoraClient.getObjectProfile(pid)
+                                    .execute(fc).getObjectProfile(),
+                                    fetchBundle(pid));
+                        }
+                        return new ObjectProfileObjectRecordImpl(
+                                FedoraClient.getObjectProfile(pid)
+                                .execute(fc).getObjectProfile(),
+                                FedoraClient.listDatastreams(pid)
+                                .execute(fc).getDatastreams());
+                    }
+                });
     }
 
     /**
      * {@inheritDoc}
      */
-    public boolean doesObjectExist(String pid) {
-        try {
-            return FedoraClient.getObjectProfile(pid).execute(fc).getStatus()
-                    == 200;
-        } catch (FedoraClientException ex) {
-            throw new RuntimeException(ex);
-        }
+    public boolean doesObjectExist(final String pid) {
+        return inFlight.execute("doesObjectExist", pid, null,
+                new Callable<Boolean>() {
+                    public Boolean call() throws FedoraClientException {
+                        return FedoraClient.getObjectProfile(pid).execute(fc)
+                                .getStatus() == 200;
+                    }
+                });
     }
 
     /**
@@ -129,24 +244,288 @@ public class RESTFedora3DataImpl implements Fedora3DataInterface {
                 + " order by $object"
                 + " limit " + pageSize
                 + " offset " + offset;
+        LOGGER.trace("Issuing risearch query for {} items"
+                + " starting at offset {}.", pageSize, offset);
+        return queryForPids(query, "itql");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Every object has the fedora-system:FedoraObject-3.0 model, so the
+     * current implementation is that of getObjectPidsWithModelAfter() for
+     * that model.
+     */
+    public List<String> getObjectPidsAfter(String lastPid, int pageSize) {
+        return getObjectPidsWithModelAfter("fedora-system:FedoraObject-3.0",
+                lastPid, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation relies on the following ITQL query against
+     * the resource index, which counts the objects of every model at once.
+     *
+     * <pre>
+     *  {@code
+     *    select     $model count(
+     *        select     $object
+     *        from       <#ri>
+     *        where      $object <info:fedora/fedora-system:def/model#hasModel>
+     *            $model)
+     *    from       <#ri>
+     *    where      $model <info:fedora/fedora-system:def/model#hasModel>
+     *        <info:fedora/fedora-system:ContentModel-3.0>
+     *  }
+     * </pre>
+     */
+    public Map<String, Long> getContentModelCounts() {
+        String query = "select $model count("
+                + " select $object"
+                + " from <#ri>"
+                + " where $object"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " $model)"
+                + " from <#ri>"
+                + " where $model"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " <info:fedora/fedora-system:ContentModel-3.0>";
         try {
-            ArrayList<String> pids = new ArrayList<String>();
-            LOGGER.trace("Issuing risearch query for {} items"
-                    + " starting at offset {}.", pageSize, offset);
+            Map<String, Long> counts = new HashMap<String, Long>();
             long start = System.currentTimeMillis();
             BufferedReader r = new BufferedReader(
                     new InputStreamReader(
                             FedoraClient.riSearch(query).lang("itql")
                                     .format("csv").execute(fc)
                                     .getEntityInputStream()));
-            r.readLine().equals("\"object\"");
-            String objectUri = null;
-            while ((objectUri = r.readLine()) != null) {
-                pids.add(objectUri.substring("info:fedora/".length()));
+            try {
+                r.readLine().equals("\"model\",\"k0\"");
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    int comma = line.lastIndexOf(',');
+                    long count = Long.parseLong(line.substring(comma + 1));
+                    if (count > 0) {
+                        counts.put(line.substring("info:fedora/".length(),
+                                comma), count);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+            LOGGER.trace("Counted the objects of {} content models in {}ms.",
+                    counts.size(), (System.currentTimeMillis() - start));
+            return counts;
+        } catch (FedoraClientException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation relies on the following ITQL query against
+     * the resource index.
+     *
+     * <pre>
+     *  {@code
+     *    select     $model
+     *    from       <#ri>
+     *    where      <info:fedora/-pid->
+     *        <info:fedora/fedora-system:def/model#hasModel> $model
+     *    order by   $model
+     *  }
+     * </pre>
+     */
+    public List<String> getContentModels(String pid) {
+        checkPid(pid);
+        String query = "select $model"
+                + " from <#ri>"
+                + " where <info:fedora/" + pid + ">"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " $model"
+                + " order by $model";
+        return queryForPids(query, "itql");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation relies on the following SPARQL query against
+     * the resource index to fetch results.  Unlike the offset used by
+     * getObjectPids(), no preceding objects are read out and discarded, but
+     * the resource index may still gather and sort every object of the model
+     * that passes the filter before applying the limit, so the cost of a page
+     * still depends on the size of the model and on where the page falls.
+     * Callers binary-search page boundaries with String.compareTo(), which
+     * agrees with the code point order of str() here because pids are
+     * restricted to ASCII.
+     *
+     * <pre>
+     *  {@code
+     *    select     ?object
+     *    from       <#ri>
+     *    where      {
+     *        ?object <info:fedora/fedora-system:def/model#hasModel>
+     *            <info:fedora/-model-> .
+     *        filter (str(?object) > "info:fedora/-lastPid-")
+     *    }
+     *    order by   ?object
+     *    limit      -pageSize-
+     *  }
+     * </pre>
+     */
+    public List<String> getObjectPidsWithModelAfter(String model,
+            String lastPid, int pageSize) {
+        checkPid(model);
+        if (lastPid != null) {
+            checkBound(lastPid);
+        }
+        String query = "select ?object"
+                + " from <#ri>"
+                + " where {"
+                + " ?object"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " <info:fedora/" + model + "> ."
+                + (lastPid == null ? "" : " filter (str(?object) > \""
+                        + "info:fedora/" + lastPid + "\")")
+                + " }"
+                + " order by ?object"
+                + " limit " + pageSize;
+        LOGGER.trace("Issuing risearch query for {} items of {}"
+                + " following {}.", pageSize, model, lastPid);
+        return queryForPids(query, "sparql");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation issues a single ITQL query against the
+     * resource index (that of getObjectPids() without the limit and offset)
+     * and reads the pids from the response as they are consumed.
+     */
+    public PidIterator iterateObjectPids() {
+        String query = "select $object"
+                + " from <#ri>"
+                + " where $object"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " <info:fedora/fedora-system:FedoraObject-3.0>"
+                + " order by $object";
+        LOGGER.trace("Issuing risearch query for all objects.");
+        try {
+            return new RIPidIterator(FedoraClient.riSearch(query).lang("itql")
+                    .format("csv").execute(fc).getEntityInputStream());
+        } catch (FedoraClientException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The resource index offers no way to count the objects preceding a pid,
+     * so the current implementation performs a binary search using
+     * getObjectPids() to read single pids, which requires a number of
+     * queries logarithmic in the size of the repository.  Wrapping this
+     * implementation with a local pid index avoids those queries entirely.
+     */
+    public long getObjectPosition(String pid) {
+        long low = 0;
+        long high = getSize() - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            List<String> pids = getObjectPids(mid, 1);
+            if (pids.isEmpty()) {
+                high = mid - 1;
+                continue;
+            }
+            int c = pids.get(0).compareTo(pid);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
             }
-            LOGGER.trace("RISearch query for {} items starting at offset {}"
-                    + " completed in {}ms.", pageSize, offset,
-                    (System.currentTimeMillis() - start));
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation reads the span of the positions in windows
+     * of no more than the boundary scan limit and picks out the requested
+     * pids as each window is read.  The first window is read with the ITQL
+     * query of getObjectPids() and each one after it with the SPARQL query
+     * of getObjectPidsAfter() following the last pid read, so that only one
+     * query skips over the preceding objects.
+     */
+    public List<String> getObjectPidsAt(long[] positions) {
+        List<String> pids = new ArrayList<String>();
+        if (positions.length == 0) {
+            return pids;
+        }
+        long last = positions[positions.length - 1];
+        long position = positions[0];
+        String lastPid = null;
+        int i = 0;
+        while (i < positions.length) {
+            int window = (int) Math.min(last - position + 1,
+                    Math.max(1, Math.min(boundaryScanLimit,
+                            Integer.MAX_VALUE)));
+            LOGGER.trace("Reading {} items starting at position {} to find"
+                    + " {} pids.", window, position, positions.length - i);
+            List<String> page = lastPid == null
+                    ? getObjectPids(position, window)
+                    : getObjectPidsAfter(lastPid, window);
+            for (String pid : page) {
+                while (i < positions.length && positions[i] == position) {
+                    pids.add(pid);
+                    i ++;
+                }
+                position ++;
+            }
+            if (page.size() < window) {
+                break;
+            }
+            lastPid = page.get(page.size() - 1);
+        }
+        if (pids.size() != positions.length) {
+            throw new IllegalStateException("Only " + pids.size() + " of "
+                    + positions.length + " pids were found!");
+        }
+        return pids;
+    }
+
+    /**
+     * Issues the given resource index query, whose results must be a single
+     * column of object (or content model) URIs, and returns the pids.
+     */
+    List<String> queryForPids(String query, String lang) {
+        try {
+            ArrayList<String> pids = new ArrayList<String>();
+            long start = System.currentTimeMillis();
+            BufferedReader r = new BufferedReader(
+                    new InputStreamReader(
+                            FedoraClient.riSearch(query).lang(lang)
+                                    .format("csv").execute(fc)
+                                    .getEntityInputStream()));
+            try {
+                r.readLine().equals("\"object\"");
+                String objectUri = null;
+                while ((objectUri = r.readLine()) != null) {
+                    pids.add(objectUri.substring("info:fedora/".length()));
+                }
+            } finally {
+                r.close();
+            }
+            LOGGER.trace("RISearch query for {} items completed in {}ms.",
+                    pids.size(), (System.currentTimeMillis() - start));
             return pids;
         } catch (FedoraClientException e) {
             throw new RuntimeException(e);
@@ -159,7 +538,9 @@ public class RESTFedora3DataImpl implements Fedora3DataInterface {
      * {@inheritDoc}
      *
      * The current implementation relies on the following ITQL query against
-     * the resource index to determine repository size.
+     * the resource index to determine repository size.  The result is cached
+     * and counted again only once the interval set by
+     * setSizeRefreshSeconds() has passed.
      *
      * <pre>
      *  {@code
@@ -174,52 +555,344 @@ public class RESTFedora3DataImpl implements Fedora3DataInterface {
      * </pre>
      */
     public long getSize() {
-        if (size == -1) {
-            String query = "select count("
-                    + " select $object"
-                    + " from <#ri>"
-                    + " where $object"
-                    + " <info:fedora/fedora-system:def/model#hasModel>"
-                    + " <info:fedora/fedora-system:FedoraObject-3.0>"
-                    + ") from <#ri> where $a $b $c";
-            try {
-                BufferedReader r = new BufferedReader(
-                        new InputStreamReader(
-                                FedoraClient.riSearch(query).lang("itql")
-                                        .format("csv").execute(fc)
-                                        .getEntityInputStream()));
-                r.readLine().equals("\"k0\"");
-                size =  Long.parseLong(r.readLine());
-            } catch (FedoraClientException e) {
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        if (size == -1 || (sizeRefreshMillis > 0
+                && System.currentTimeMillis() - sizeFetched
+                    > sizeRefreshMillis)) {
+            long previous = size;
+            size = inFlight.execute("getSize", null, null,
+                    new Callable<Long>() {
+                        public Long call() throws FedoraClientException,
+                            IOException {
+                            return countObjects();
+                        }
+                    });
+            sizeFetched = System.currentTimeMillis();
+            if (previous != -1 && previous != size) {
+                LOGGER.info("The repository now has {} objects (it had {}).",
+                        size, previous);
             }
         }
         return size;
     }
 
+    private long countObjects() throws FedoraClientException, IOException {
+        String query = "select count("
+                + " select $object"
+                + " from <#ri>"
+                + " where $object"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " <info:fedora/fedora-system:FedoraObject-3.0>"
+                + ") from <#ri> where $a $b $c";
+        BufferedReader r = new BufferedReader(
+                new InputStreamReader(
+                        FedoraClient.riSearch(query).lang("itql")
+                                .format("csv").execute(fc)
+                                .getEntityInputStream()));
+        try {
+            r.readLine().equals("\"k0\"");
+            return Long.parseLong(r.readLine());
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation relies on the following ITQL query against
+     * the resource index.
+     *
+     * <pre>
+     *  {@code
+     *    select     $object $modified
+     *    from       <#ri>
+     *    where      $object <info:fedora/fedora-system:def/view#lastModifiedDate>
+     *        $modified
+     *    order by   $modified desc
+     *    limit      1
+     *  }
+     * </pre>
+     */
+    public Date getLastModifiedDate() {
+        return queryForModifiedDate("desc");
+    }
+
     /**
      * {@inheritDoc}
+     *
+     * The current implementation relies on the query used by
+     * getLastModifiedDate() in ascending order.
      */
-    public FedoraDatastreamRecord getDatastream(String pid, String dsid) {
+    public Date getFirstModifiedDate() {
+        return queryForModifiedDate("asc");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation relies on the following ITQL query against
+     * the resource index.
+     *
+     * <pre>
+     *  {@code
+     *    select     $modified
+     *    from       <#ri>
+     *    where      <info:fedora/-pid->
+     *        <info:fedora/fedora-system:def/view#lastModifiedDate> $modified
+     *  }
+     * </pre>
+     */
+    public Date getObjectModifiedDate(String pid) {
+        checkPid(pid);
+        return queryForDate("select $modified"
+                + " from <#ri>"
+                + " where <info:fedora/" + pid + ">"
+                + " <info:fedora/fedora-system:def/view#lastModifiedDate>"
+                + " $modified");
+    }
+
+    /**
+     * Gets the first modification date in the given order.
+     */
+    private Date queryForModifiedDate(String order) {
+        return queryForDate("select $object $modified"
+                + " from <#ri>"
+                + " where $object"
+                + " <info:fedora/fedora-system:def/view#lastModifiedDate>"
+                + " $modified"
+                + " order by $modified " + order
+                + " limit 1");
+    }
+
+    /**
+     * Gets the date in the last column of the first result of the given ITQL
+     * query, or null if there are no results.
+     */
+    private Date queryForDate(String query) {
         try {
-            return new RESTFedoraDatastreamRecordImpl(fc, pid, dsid);
+            BufferedReader r = new BufferedReader(
+                    new InputStreamReader(
+                            FedoraClient.riSearch(query).lang("itql")
+                                    .format("csv").execute(fc)
+                                    .getEntityInputStream()));
+            try {
+                r.readLine();
+                String line = r.readLine();
+                if (line == null) {
+                    return null;
+                }
+                return DatatypeConverter.parseDateTime(
+                        line.substring(line.lastIndexOf(',') + 1)).getTime();
+            } finally {
+                r.close();
+            }
         } catch (FedoraClientException e) {
             throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
     /**
      * {@inheritDoc}
+     *
+     * The current implementation relies on the following SPARQL query against
+     * the resource index, whose results are bounded by the range.
+     *
+     * <pre>
+     *  {@code
+     *    select     ?object
+     *    from       <#ri>
+     *    where      {
+     *        ?object <info:fedora/fedora-system:def/model#hasModel>
+     *            <info:fedora/fedora-system:FedoraObject-3.0> .
+     *        ?object <info:fedora/fedora-system:def/view#lastModifiedDate>
+     *            ?modified .
+     *        filter (?modified >= "-start-"^^xsd:dateTime
+     *            && ?modified < "-end-"^^xsd:dateTime)
+     *    }
+     *    order by   ?object
+     *  }
+     * </pre>
      */
-    public boolean doesDatastreamExist(String pid, String dsid) {
+    public List<String> getObjectPidsModifiedBetween(Date start, Date end) {
+        String query = "select ?object"
+                + " from <#ri>"
+                + " where {"
+                + " ?object"
+                + " <info:fedora/fedora-system:def/model#hasModel>"
+                + " <info:fedora/fedora-system:FedoraObject-3.0> ."
+                + " ?object"
+                + " <info:fedora/fedora-system:def/view#lastModifiedDate>"
+                + " ?modified ."
+                + " filter (?modified >= " + toDateTimeLiteral(start)
+                + " && ?modified < " + toDateTimeLiteral(end) + ")"
+                + " }"
+                + " order by ?object";
+        LOGGER.trace("Issuing risearch query for items modified from {} to"
+                + " {}.", start, end);
+        return queryForPids(query, "sparql");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The current implementation issues a single SPARQL query against the
+     * resource index and reads the relationships from the response as they
+     * are consumed.
+     *
+     * <pre>
+     *  {@code
+     *    select     ?subject ?object
+     *    from       <#ri>
+     *    where      {
+     *        ?subject <-predicate-> ?object .
+     *        ?subject <info:fedora/fedora-system:def/view#lastModifiedDate>
+     *            ?modified .
+     *        filter (?modified >= "-modifiedSince-"^^xsd:dateTime)
+     *    }
+     *  }
+     * </pre>
+     *
+     * The last two clauses are omitted when modifiedSince is null.
+     */
+    public RelationshipIterator iterateRelationships(String predicate,
+            Date modifiedSince) {
+        checkUri(predicate);
+        String query = "select ?subject ?object"
+                + " from <#ri>"
+                + " where {"
+                + " ?subject <" + predicate + "> ?object ."
+                + (modifiedSince == null ? "" : " ?subject"
+                    + " <info:fedora/fedora-system:def/view#lastModifiedDate>"
+                    + " ?modified ."
+                    + " filter (?modified >= "
+                    + toDateTimeLiteral(modifiedSince) + ")")
+                + " }";
+        LOGGER.trace("Issuing risearch query for {} relationships of objects"
+                + " modified since {}.", predicate, modifiedSince);
         try {
-            return FedoraClient.getDatastream(pid, dsid).execute(fc)
-                    .getStatus() == 200;
-        } catch (FedoraClientException ex) {
-            throw new RuntimeException(ex);
+            return new RIRelationshipIterator(FedoraClient.riSearch(query)
+                    .lang("sparql").format("csv").execute(fc)
+                    .getEntityInputStream());
+        } catch (FedoraClientException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Ensures that the given pid (or content model pid) follows the pid
+     * syntax of Fedora 3 before it is placed in a resource index query, so
+     * that no value can alter the query it is placed in.
+     */
+    static void checkPid(String pid) {
+        if (pid == null || pid.length() > 64
+                || !PID_PATTERN.matcher(pid).matches()) {
+            throw new IllegalArgumentException("Invalid pid \"" + pid
+                    + "\"!");
+        }
+    }
+
+    /**
+     * Ensures that the given keyset bound can be placed in a string literal
+     * in a resource index query without altering the query.  Unlike a pid,
+     * a bound needn't be complete (callers pass prefixes such as "demo:" to
+     * start at a namespace), so only the characters that could end the
+     * literal or escape from it are rejected.
+     */
+    static void checkBound(String bound) {
+        for (int i = 0; i < bound.length(); i ++) {
+            char c = bound.charAt(i);
+            if (c == '"' || c == '\\' || Character.isISOControl(c)) {
+                throw new IllegalArgumentException("Invalid bound \""
+                        + bound + "\"!");
+            }
+        }
+    }
+
+    /**
+     * Ensures that the given URI can be placed between angle brackets in a
+     * resource index query without altering the query.
+     */
+    static void checkUri(String uri) {
+        if (uri == null || !URI_PATTERN.matcher(uri).matches()) {
+            throw new IllegalArgumentException("Invalid URI \"" + uri
+                    + "\"!");
+        }
+    }
+
+    private static String toDateTimeLiteral(Date date) {
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.setTime(date);
+        return "\"" + DatatypeConverter.printDateTime(c)
+                + "\"^^<http://www.w3.org/2001/XMLSchema#dateTime>";
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * When datastream profiles are bundled, the record is built from the
+     * bundle for the object (which is fetched if not already present) and the
+     * history of the datastream is only fetched if needed.
+     */
+    public FedoraDatastreamRecord getDatastream(final String pid,
+            final String dsid) {
+        return inFlight.execute("getDatastream", pid, dsid,
+                new Callable<FedoraDatastreamRecord>() {
+                    public FedoraDatastreamRecord call()
+                        throws FedoraClientException {
+                        if (bundleDatastreamProfiles) {
+                            DatastreamProfileBundle b = bundles.get(pid);
+                            if (b == null) {
+                                b = fetchBundle(pid);
+                            }
+                            DatastreamProfile p = b.getProfile(dsid);
+                            if (p != null) {
+                                return new RESTFedoraDatastreamRecordImpl(fc,
+                                        p);
+                            }
+                        }
+                        return new RESTFedoraDatastreamRecordImpl(fc, pid,
+                                dsid);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean doesDatastreamExist(final String pid, final String dsid) {
+        DatastreamProfileBundle b = bundles.get(pid);
+        if (b != null) {
+            return b.getProfile(dsid) != null;
+        }
+        return inFlight.execute("doesDatastreamExist", pid, dsid,
+                new Callable<Boolean>() {
+                    public Boolean call() throws FedoraClientException {
+                        return FedoraClient.getDatastream(pid, dsid)
+                                .execute(fc).getStatus() == 200;
+                    }
+                });
+    }
+
+    /**
+     * Fetches the datastream profile bundle for the given pid, retaining it
+     * for later use if the fedora server included profiles.
+     */
+    private DatastreamProfileBundle fetchBundle(final String pid) {
+        DatastreamProfileBundle b = inFlight.execute("listDatastreams", pid,
+                null, new Callable<DatastreamProfileBundle>() {
+                    public DatastreamProfileBundle call()
+                        throws FedoraClientException {
+                        return DatastreamProfileBundle.fetch(fc, pid);
+                    }
+                });
+        if (b.hasProfiles()) {
+            bundles.put(pid, b);
         }
+        return b;
     }
 
 }
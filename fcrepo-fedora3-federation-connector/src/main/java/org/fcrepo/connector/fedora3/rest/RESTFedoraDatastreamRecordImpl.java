@@ -27,6 +27,7 @@ import org.slf4j.Logger;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -48,6 +49,8 @@ public class RESTFedoraDatastreamRecordImpl
 
     private FedoraClient fc;
 
+    private FedoraDatastreamVersionRecord current;
+
     private List<FedoraDatastreamVersionRecord> history;
 
     /**
@@ -82,9 +85,39 @@ public class RESTFedoraDatastreamRecordImpl
             history.add(new Version(version));
         }
         ds = dsProfiles.get(0);
+        current = history.get(0);
         this.fc = fc;
     }
 
+    /**
+     * A constructor that takes as a parameter the profile of the current
+     * version of the datastream (as found in a DatastreamProfileBundle).  The
+     * history of the datastream is only fetched if and when it is requested,
+     * and not at all if the current version is the original version.
+     */
+    public RESTFedoraDatastreamRecordImpl(FedoraClient fc,
+            DatastreamProfile currentVersion) {
+        this.fc = fc;
+        ds = currentVersion;
+        current = new Version(currentVersion);
+        if (isOriginalVersion(currentVersion)) {
+            history = Collections.singletonList(current);
+        }
+    }
+
+    /**
+     * Determines whether the given profile describes the first version of a
+     * datastream.  Fedora 3 names the first version of a datastream "DSID.0"
+     * (or "DSID1.0" for datastreams it generates, like the default DC) and
+     * numbers later versions by the count of prior versions, so a datastream
+     * whose current version has such a name has no other versions.
+     */
+    protected static boolean isOriginalVersion(DatastreamProfile profile) {
+        String versionId = profile.getDsVersionID();
+        return (profile.getDsID() + ".0").equals(versionId)
+                || (profile.getDsID() + "1.0").equals(versionId);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -124,7 +157,24 @@ public class RESTFedoraDatastreamRecordImpl
     /**
      * {@inheritDoc}
      */
-    public List<FedoraDatastreamVersionRecord> getHistory() {
+    public synchronized List<FedoraDatastreamVersionRecord> getHistory() {
+        if (history == null) {
+            try {
+                List<DatastreamProfile> dsProfiles
+                    = FedoraClient.getDatastreamHistory(getPid(), getId())
+                    .execute(fc).getDatastreamProfile().getDatastreamProfile();
+                List<FedoraDatastreamVersionRecord> h
+                    = new ArrayList<FedoraDatastreamVersionRecord>();
+                h.add(current);
+                for (DatastreamProfile version
+                        : dsProfiles.subList(1, dsProfiles.size())) {
+                    h.add(new Version(version));
+                }
+                history = h;
+            } catch (FedoraClientException e) {
+                throw new RuntimeException(e);
+            }
+        }
         return history;
     }
 
@@ -132,7 +182,7 @@ public class RESTFedoraDatastreamRecordImpl
      * {@inheritDoc}
      */
     public FedoraDatastreamVersionRecord getCurrentVersion() {
-        return history.get(0);
+        return current;
     }
 
     private String blankToNull(String value) {
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import org.fcrepo.connector.fedora3.PidIterator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.NoSuchElementException;
+
+/**
+ * A PidIterator over the CSV response to a resource index query whose single
+ * column contains object URIs.  The response is read a line at a time, so the
+ * memory used doesn't depend on the number of results.
+ */
+public class RIPidIterator implements PidIterator {
+
+    private BufferedReader reader;
+
+    private String next;
+
+    /**
+     * A constructor that accepts the CSV response (including the header).
+     */
+    public RIPidIterator(InputStream csv) throws IOException {
+        reader = new BufferedReader(new InputStreamReader(csv, "UTF-8"));
+        reader.readLine().equals("\"object\"");
+        advance();
+    }
+
+    private void advance() throws IOException {
+        String objectUri = reader.readLine();
+        if (objectUri == null) {
+            next = null;
+            close();
+        } else {
+            next = objectUri.substring("info:fedora/".length());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        String pid = next;
+        try {
+            advance();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return pid;
+    }
+
+    /**
+     * Unsupported.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+        next = null;
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+}
@@ -16,25 +16,44 @@
 
 package org.fcrepo.connector.fedora3;
 
+import org.fcrepo.connector.fedora3.index.DigestStoreFedora3DataImpl;
+import org.fcrepo.connector.fedora3.organizers.CollectionOrganizer;
 import org.fcrepo.connector.fedora3.organizers.GroupingOrganizer;
 import org.fcrepo.connector.fedora3.rest.AbstractFedoraObjectRecord;
 import org.fcrepo.connector.fedora3.rest.RESTFedoraDatastreamRecordImplTest;
 import org.fcrepo.jcr.FedoraJcrTypes;
+import org.fcrepo.kernel.utils.ContentDigest;
 import org.infinispan.schematic.document.EditableDocument;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.common.util.SecureHash;
 import org.modeshape.jcr.federation.spi.DocumentWriter;
+import org.modeshape.jcr.value.BinaryKey;
 import org.modeshape.jcr.value.BinaryValue;
 
 import javax.jcr.RepositoryException;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -50,6 +69,9 @@ public class Fedora3FederationConnectorTest implements FedoraJcrTypes {
 
     @Mock DocumentWriter mockumentWriter;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     Fedora3FederationConnector c;
 
     /**
@@ -62,6 +84,16 @@ public class Fedora3FederationConnectorTest implements FedoraJcrTypes {
         MockitoAnnotations.initMocks(this);
 
         when(mockF3.getObjectPids(anyInt(), anyInt())).thenReturn(Arrays.asList(new String[] { "changeme:1", "changeme:2" }));
+        when(mockF3.getObjectPidsAfter("changeme:1", 9)).thenReturn(Arrays.asList(new String[] { "changeme:2" }));
+        when(mockF3.getObjectPidsAt(any(long[].class))).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                List<String> pids = new ArrayList<String>();
+                for (long position : (long[]) invocation.getArguments()[0]) {
+                    pids.add("changeme:" + (position + 1));
+                }
+                return pids;
+            }
+        });
         FedoraObjectRecord changeme1 = new MockObjectRecord("changeme:1");
         when(mockF3.getObjectByPid("changeme:1")).thenReturn(changeme1);
         FedoraObjectRecord changeme2
@@ -78,9 +110,10 @@ public class Fedora3FederationConnectorTest implements FedoraJcrTypes {
 
         c = new MockedFedora3FederationConnector();
         c.f3 = mockF3;
-        c.organizer = new GroupingOrganizer();
-        c.organizer.setMaxContainerSize(10);
-        c.organizer.initialize(mockF3);
+        GroupingOrganizer organizer = new GroupingOrganizer();
+        organizer.setMaxContainerSize(10);
+        organizer.initialize(mockF3);
+        c.organizer = organizer;
 
     }
 
@@ -113,6 +146,16 @@ public class Fedora3FederationConnectorTest implements FedoraJcrTypes {
 
     }
 
+    @Test
+    public void testCollectionsAreIncluded() {
+        CollectionOrganizer organizer = mock(CollectionOrganizer.class);
+        String id = ID.objectID("changeme:2").getId();
+        when(organizer.getCollections(id)).thenReturn(Arrays.asList(new String[] { "c:1", "c:2" }));
+        c.organizer = organizer;
+        Assert.assertNotNull(c.getDocumentById(id));
+        verify(mockumentWriter).addProperty("f3:memberOf", new Object[] { "c:1", "c:2" });
+    }
+
     @Test
     public void testHasDocument() {
         Assert.assertTrue("Root document should exist.", c.hasDocument(ID.ROOT_ID.getId()));
@@ -127,6 +170,74 @@ public class Fedora3FederationConnectorTest implements FedoraJcrTypes {
         BinaryValue callBack = c.getBinaryValue(contentId);
     }
 
+    /**
+     * Building the content node for a datastream without a recorded SHA-1
+     * checksum should not read its content to compute one.
+     */
+    @Test
+    public void testContentDigestIsDeferred() throws Exception {
+        byte[] sha1 = SecureHash.getHash(SecureHash.Algorithm.SHA_1, "large".getBytes("UTF-8"));
+        FedoraDatastreamVersionRecord v = mockLargeDatastream(null, null, sha1);
+        String contentId = ID.contentID("changeme:2", "LARGE").getId();
+
+        Assert.assertNotNull(c.getDocumentById(contentId));
+        verify(v, never()).getSha1();
+        verify(mockumentWriter).addProperty(CONTENT_SIZE, 1L << 32);
+        verify(mockumentWriter, never()).addProperty(eq(CONTENT_DIGEST), any(Object.class));
+
+        BinaryValue binary = c.getBinaryValue(contentId);
+        Assert.assertEquals("The size should be known without the hash.", 1L << 32, binary.getSize());
+        verify(v, never()).getSha1();
+        Assert.assertEquals("The hash should be computed when requested.", SecureHash.asHexString(sha1), binary.getHexHash());
+        Assert.assertEquals(new BinaryKey(sha1), binary.getKey());
+        verify(v, times(1)).getSha1();
+    }
+
+    @Test
+    public void testRecordedContentDigestIsIncluded() throws Exception {
+        String digest = "02B08743A6DE9B368D95E4677CA53A2111CF87FF";
+        FedoraDatastreamVersionRecord v = mockLargeDatastream("SHA-1", digest, null);
+        Assert.assertNotNull(c.getDocumentById(ID.contentID("changeme:2", "LARGE").getId()));
+        verify(mockumentWriter).addProperty(CONTENT_DIGEST, ContentDigest.asURI("SHA-1", digest.toLowerCase()));
+        verify(v, never()).getSha1();
+    }
+
+    @Test
+    public void testStoredContentDigestIsIncluded() throws Exception {
+        byte[] sha1 = SecureHash.getHash(SecureHash.Algorithm.SHA_1, "large".getBytes("UTF-8"));
+        FedoraDatastreamVersionRecord v = mockLargeDatastream(null, null, sha1);
+        when(v.getVersionId()).thenReturn("LARGE.0");
+        when(v.getCreatedDate()).thenReturn(new Date(0));
+        c.digestStore = new DigestStoreFedora3DataImpl();
+        c.digestStore.setStoreFile(new File(folder.getRoot(), "digests.db").getPath());
+        c.digestStore.initialize(mockF3);
+        String contentId = ID.contentID("changeme:2", "LARGE").getId();
+
+        Assert.assertNotNull(c.getDocumentById(contentId));
+        verify(mockumentWriter, never()).addProperty(eq(CONTENT_DIGEST), any(Object.class));
+
+        c.digestStore.getStore().put("changeme:2", "LARGE", "LARGE.0", new Date(0), sha1);
+        Assert.assertNotNull(c.getDocumentById(contentId));
+        verify(mockumentWriter).addProperty(CONTENT_DIGEST, ContentDigest.asURI("SHA-1", SecureHash.asHexString(sha1)));
+        verify(v, never()).getSha1();
+    }
+
+    private FedoraDatastreamVersionRecord mockLargeDatastream(String digestType, String digest, byte[] sha1) throws Exception {
+        FedoraDatastreamRecord ds = mock(FedoraDatastreamRecord.class);
+        FedoraDatastreamVersionRecord v = mock(FedoraDatastreamVersionRecord.class);
+        when(ds.getPid()).thenReturn("changeme:2");
+        when(ds.getId()).thenReturn("LARGE");
+        when(ds.getCurrentVersion()).thenReturn(v);
+        when(v.getContentLength()).thenReturn(1L << 32);
+        when(v.getMimeType()).thenReturn("video/mp4");
+        when(v.getContentDigestType()).thenReturn(digestType);
+        when(v.getContentDigest()).thenReturn(digest);
+        when(v.getSha1()).thenReturn(sha1);
+        when(mockF3.getDatastream("changeme:2", "LARGE")).thenReturn(ds);
+        when(mockF3.doesDatastreamExist("changeme:2", "LARGE")).thenReturn(true);
+        return v;
+    }
+
     @Test
     public void testGetDocumentId() {
         Assert.assertEquals("Verify path to id transformation.", "/test", c.getDocumentId("/test"));
@@ -137,6 +248,67 @@ public class Fedora3FederationConnectorTest implements FedoraJcrTypes {
         Assert.assertEquals("Verify id to document path transformation.", Collections.singletonList("/" + ID.datastreamID("changeme:1", "DC").getId()), c.getDocumentPathsById(ID.datastreamID("changeme:1", "DC").getId()));
     }
 
+    @Test
+    public void testPathResolutionIsCached() {
+        RepositoryOrganizer o = mock(RepositoryOrganizer.class);
+        when(o.getParentForId("obj")).thenReturn("b");
+        when(o.getParentForId("b")).thenReturn("a");
+        when(o.getParentForId("a")).thenReturn(ID.ROOT_ID.getId());
+        when(o.isOrganizationalNode("/a")).thenReturn(true);
+        when(o.isOrganizationalNode("/b")).thenReturn(true);
+        c.organizer = o;
+
+        Assert.assertEquals(Collections.singletonList("/abobj"), c.getDocumentPathsById("obj"));
+        Assert.assertEquals(Collections.singletonList("/ab"), c.getDocumentPathsById("b"));
+        Assert.assertEquals(Collections.singletonList("/abobj"), c.getDocumentPathsById("obj"));
+        verify(o, times(1)).getParentForId("obj");
+        verify(o, times(1)).getParentForId("a");
+        Assert.assertEquals("/obj", c.getDocumentId("/a/b/obj"));
+        Assert.assertEquals("/obj", c.getDocumentId("/a/b/obj"));
+        verify(o, times(1)).isOrganizationalNode("/a");
+
+        when(o.getGeneration()).thenReturn(1L);
+        when(o.getParentForId("obj")).thenReturn("a");
+        Assert.assertEquals("Paths are resolved again when the organization changes.", Collections.singletonList("/aobj"), c.getDocumentPathsById("obj"));
+        c.getDocumentId("/a/b/obj");
+        verify(o, times(2)).isOrganizationalNode("/a");
+    }
+
+    /**
+     * A path resolved against one generation of the organization must not be
+     * cached for a later one, even when the caches of the later generation
+     * are created while the resolution is still under way.
+     */
+    @Test
+    public void testStalePathsAreNotCached() {
+        final AtomicLong generation = new AtomicLong();
+        RepositoryOrganizer o = mock(RepositoryOrganizer.class);
+        when(o.getGeneration()).thenAnswer(new Answer<Long>() {
+            public Long answer(InvocationOnMock invocation) {
+                return generation.get();
+            }
+        });
+        when(o.getParentForId("obj")).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) {
+                return generation.get() == 0 ? "b" : "a";
+            }
+        });
+        when(o.getParentForId("b")).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) {
+                // the organization changes and another request resolves a
+                // path before this resolution completes
+                generation.set(1);
+                c.getDocumentPathsById("a");
+                return "a";
+            }
+        });
+        when(o.getParentForId("a")).thenReturn(ID.ROOT_ID.getId());
+        c.organizer = o;
+
+        Assert.assertEquals(Collections.singletonList("/abobj"), c.getDocumentPathsById("obj"));
+        Assert.assertEquals(Collections.singletonList("/aobj"), c.getDocumentPathsById("obj"));
+    }
+
     /**
      * Overrides certain methods to allow for unit testing.
      */
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3;
+
+import org.modeshape.common.text.Jsr283Encoder;
+import org.modeshape.jcr.api.JcrConstants;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reports the bytes allocated by the id handling in a simulated document
+ * request (an object node with its datastream children followed by one of
+ * those datastream nodes) both with ID and with the implementation it
+ * replaced, which split and encoded ids on every call.  This isn't run as
+ * part of the unit tests; run it with the number of requests and datastreams
+ * per object as arguments, for example:
+ * <pre>
+ *   java -cp ... IDAllocationBenchmark 1000000 8
+ * </pre>
+ * Allocation is measured with the HotSpot extension of ThreadMXBean, so it
+ * must be run on a JVM that supports it.
+ */
+public class IDAllocationBenchmark {
+
+    public static void main(String [] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int datastreams = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        String[] dsids = new String[datastreams];
+        dsids[0] = "DC";
+        for (int i = 1; i < datastreams; i ++) {
+            dsids[i] = "DS" + i;
+        }
+
+        // warm up both so that neither measurement includes compilation
+        long sink = 0;
+        for (int i = 0; i < 100000; i ++) {
+            sink += requestWithID("demo:" + (i % 1000), dsids);
+            sink += requestWithSplit("demo:" + (i % 1000), dsids);
+        }
+
+        String[] ids = new String[1000];
+        for (int i = 0; i < ids.length; i ++) {
+            ids[i] = ID.objectID("demo:" + i).getId();
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < requests; i ++) {
+            sink += requestWithID(ids[i % ids.length], dsids);
+        }
+        long withID = allocatedBytes() - before;
+
+        before = allocatedBytes();
+        for (int i = 0; i < requests; i ++) {
+            sink += requestWithSplit(ids[i % ids.length], dsids);
+        }
+        long withSplit = allocatedBytes() - before;
+
+        System.out.println("Bytes allocated per request with ID: "
+                + (withID / requests));
+        System.out.println("Bytes allocated per request with SplitID: "
+                + (withSplit / requests));
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * Performs the id handling of a request for the object node with the
+     * given id and then for its first datastream node, using ID.
+     */
+    private static int requestWithID(String idStr, String[] dsids) {
+        int result = 0;
+        ID id = new ID(idStr);
+        if (id.isObjectID()) {
+            String pid = id.getPid();
+            for (String dsid : dsids) {
+                result += ID.datastreamID(pid, dsid).getId().length();
+            }
+            result += id.getParentId(null).length();
+            ID ds = new ID(ID.datastreamID(pid, dsids[0]).getId());
+            if (ds.isDatastreamID()) {
+                result += ds.getPid().length() + ds.getDSID().length();
+                result += ID.contentID(ds.getPid(), ds.getDSID()).getId()
+                        .length();
+                result += ds.getParentId(null).length();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Performs the same id handling as requestWithID using SplitID.
+     */
+    private static int requestWithSplit(String idStr, String[] dsids) {
+        int result = 0;
+        SplitID id = new SplitID(idStr);
+        if (id.isObjectID()) {
+            String pid = id.getPid();
+            for (String dsid : dsids) {
+                result += SplitID.datastreamID(pid, dsid).getId().length();
+            }
+            result += id.getParentId().length();
+            SplitID ds = new SplitID(SplitID.datastreamID(pid, dsids[0])
+                    .getId());
+            if (ds.isDatastreamID()) {
+                result += ds.getPid().length() + ds.getDSID().length();
+                result += SplitID.contentID(ds.getPid(), ds.getDSID()).getId()
+                        .length();
+                result += ds.getParentId().length();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The parts of ID used above as they were implemented before ids were
+     * parsed once: split on every call and encoded with a new encoder.
+     */
+    private static class SplitID {
+
+        private String id;
+
+        public SplitID(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isObjectID() {
+            return id.split("/").length == 1;
+        }
+
+        public boolean isDatastreamID() {
+            return id.split("/").length == 2;
+        }
+
+        public String getPid() {
+            return new Jsr283Encoder().decode(id.split("/")[0]);
+        }
+
+        public String getDSID() {
+            String[] path = id.split("/");
+            return path.length < 2 ? null : new Jsr283Encoder().decode(path[1]);
+        }
+
+        public String getParentId() {
+            if (isObjectID()) {
+                return "/";
+            } else if (isDatastreamID()) {
+                return objectID(getPid()).getId();
+            } else {
+                return datastreamID(getPid(), getDSID()).getId();
+            }
+        }
+
+        public static SplitID objectID(String pid) {
+            return new SplitID(new Jsr283Encoder().encode(pid));
+        }
+
+        public static SplitID datastreamID(String pid, String dsid) {
+            return new SplitID(new Jsr283Encoder().encode(pid) + "/"
+                    + new Jsr283Encoder().encode(dsid));
+        }
+
+        public static SplitID contentID(String pid, String dsid) {
+            return new SplitID(new Jsr283Encoder().encode(pid) + "/"
+                    + new Jsr283Encoder().encode(dsid) + "/"
+                    + JcrConstants.JCR_CONTENT);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -18,6 +18,7 @@ package org.fcrepo.connector.fedora3;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.modeshape.common.text.Jsr283Encoder;
 import org.modeshape.jcr.api.JcrConstants;
 
 /**
@@ -121,4 +122,57 @@ public class IDTest {
             ID dsId = new ID(contentId.getParentId(null));
             Assert.assertEquals("An item's id should be the concatenation of its parent's id, a slash and it's name.", dsId.getId(), dsId.getParentId(null) + "/" + dsId.getName());
         }
+
+    @Test
+    public void testEncodingMatchesJsr283() {
+        Jsr283Encoder encoder = new Jsr283Encoder();
+        String[] values = new String[] { "demo:1", "a*b/c:d[e]f|g", "",
+                "plain", "DC", "::", "\u00e9t\u00e9:1", "a:b*c", "x|y:z" };
+        for (String value : values) {
+            String encoded = encoder.encode(value);
+            Assert.assertEquals("Encoding should match the Jsr283Encoder.",
+                    encoded, ID.encode(value));
+            Assert.assertEquals("Decoding should match the Jsr283Encoder.",
+                    value, ID.decode(encoded));
+            Assert.assertEquals("Decoding should match the Jsr283Encoder.",
+                    encoder.decode(value), ID.decode(value));
+        }
+    }
+
+    @Test
+    public void testUnchangedValuesAreNotCopied() {
+        String dsid = "RELS-EXT";
+        Assert.assertSame("A value with nothing to encode should be reused.",
+                dsid, ID.encode(dsid));
+        Assert.assertSame("A value with nothing to decode should be reused.",
+                dsid, ID.decode(dsid));
+        ID id = ID.datastreamID("demo:1", dsid);
+        Assert.assertSame("The dsid should be decoded only once.",
+                id.getDSID(), id.getDSID());
+        Assert.assertSame("The pid should be decoded only once.",
+                id.getPid(), id.getPid());
+    }
+
+    /**
+     * The kind of id is determined by its "/" separated parts as it was
+     * when ids were split with String.split("/").
+     */
+    @Test
+    public void testPartsMatchSplit() {
+        String[] ids = new String[] { "a", "a/b", "a/b/c", "a/", "a/b//",
+                "/a", "/a/b", "//", "a//b", "a/b/c/d" };
+        for (String value : ids) {
+            ID id = new ID(value);
+            int parts = value.split("/").length;
+            Assert.assertEquals(value, parts == 1, id.isObjectID());
+            Assert.assertEquals(value, parts == 2, id.isDatastreamID());
+            Assert.assertEquals(value, parts == 3, id.isContentID());
+            if (parts >= 1) {
+                Assert.assertEquals(value, value.split("/")[0], id.getPid());
+            }
+            if (parts >= 2) {
+                Assert.assertEquals(value, value.split("/")[1], id.getDSID());
+            }
+        }
+    }
 }
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.cache;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Date;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachingFedora3DataImplTest {
+
+    @Mock Fedora3DataInterface mockF3;
+
+    @Mock FedoraObjectRecord object1;
+
+    @Mock FedoraObjectRecord object2;
+
+    @Mock FedoraDatastreamRecord dc;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mockF3.getObjectByPid("pid:1")).thenReturn(object1);
+        when(mockF3.getObjectByPid("pid:2")).thenReturn(object2);
+        when(mockF3.getDatastream("pid:1", "DC")).thenReturn(dc);
+    }
+
+    @Test
+    public void testConfiguration() {
+        CachingFedora3DataImpl c = new CachingFedora3DataImpl();
+        try {
+            c.setMaxEntries(0);
+            Assert.fail("A cache must be able to hold at least one entry.");
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            c.setEvictionPolicy("RANDOM");
+            Assert.fail("Unknown eviction policies should be rejected.");
+        } catch (IllegalArgumentException ex) {
+        }
+        c.initialize(mockF3);
+        try {
+            c.initialize(mockF3);
+            Assert.fail("Initialize should not be able to be called twice!");
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    @Test
+    public void testModifiedDateIsReadFromCachedRecord() {
+        Date date = new Date(1000);
+        when(object1.getModificationDate()).thenReturn(date);
+        when(mockF3.getObjectModifiedDate("pid:2")).thenReturn(date);
+        CachingFedora3DataImpl c = new CachingFedora3DataImpl();
+        c.initialize(mockF3);
+        c.getObjectByPid("pid:1");
+        Assert.assertSame(date, c.getObjectModifiedDate("pid:1"));
+        verify(mockF3, never()).getObjectModifiedDate("pid:1");
+        Assert.assertSame(date, c.getObjectModifiedDate("pid:2"));
+        verify(mockF3, never()).getObjectByPid("pid:2");
+    }
+
+    @Test
+    public void testRecordsAreCached() {
+        CachingFedora3DataImpl c = new CachingFedora3DataImpl();
+        c.initialize(mockF3);
+        Assert.assertSame(object1, c.getObjectByPid("pid:1"));
+        Assert.assertSame(object1, c.getObjectByPid("pid:1"));
+        verify(mockF3, times(1)).getObjectByPid("pid:1");
+        Assert.assertTrue("Cached objects exist.", c.doesObjectExist("pid:1"));
+        verify(mockF3, never()).doesObjectExist("pid:1");
+
+        Assert.assertSame(dc, c.getDatastream("pid:1", "DC"));
+        Assert.assertSame(dc, c.getDatastream("pid:1", "DC"));
+        verify(mockF3, times(1)).getDatastream("pid:1", "DC");
+        Assert.assertTrue("Cached datastreams exist.",
+                c.doesDatastreamExist("pid:1", "DC"));
+        verify(mockF3, never()).doesDatastreamExist("pid:1", "DC");
+    }
+
+    @Test
+    public void testEviction() {
+        CachingFedora3DataImpl c = new CachingFedora3DataImpl();
+        c.setMaxEntries(1);
+        c.initialize(mockF3);
+        c.getObjectByPid("pid:1");
+        c.getObjectByPid("pid:2");
+        c.getObjectByPid("pid:1");
+        verify(mockF3, times(2)).getObjectByPid("pid:1");
+        verify(mockF3, times(1)).getObjectByPid("pid:2");
+    }
+
+    @Test
+    public void testLRUEviction() {
+        BoundedCache<String, String> lru
+            = new BoundedCache<String, String>(2, 0, true);
+        lru.put("a", "a");
+        lru.put("b", "b");
+        lru.get("a");
+        lru.put("c", "c");
+        Assert.assertEquals("Recently used entry is retained.", "a",
+                lru.get("a"));
+        Assert.assertNull("Least recently used entry is evicted.",
+                lru.get("b"));
+
+        BoundedCache<String, String> fifo
+            = new BoundedCache<String, String>(2, 0, false);
+        fifo.put("a", "a");
+        fifo.put("b", "b");
+        fifo.get("a");
+        fifo.put("c", "c");
+        Assert.assertNull("Oldest entry is evicted.", fifo.get("a"));
+        Assert.assertEquals("Newer entry is retained.", "b", fifo.get("b"));
+    }
+
+    @Test
+    public void testExpiration() {
+        final long[] time = new long[] { 0 };
+        BoundedCache<String, String> c
+            = new BoundedCache<String, String>(10, 1000, true) {
+                protected long now() {
+                    return time[0];
+                }
+            };
+        c.put("a", "a");
+        time[0] = 1000;
+        Assert.assertEquals("Entry is fresh.", "a", c.get("a"));
+        time[0] = 1001;
+        Assert.assertNull("Entry has expired.", c.get("a"));
+        Assert.assertEquals("Expired entry is removed.", 0, c.size());
+        Assert.assertEquals(1, c.getHitCount());
+        Assert.assertEquals(1, c.getMissCount());
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.modeshape.common.util.IoUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.util.Date;
+
+public class ContentCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i ++) {
+            content[i] = (byte) (i + seed);
+        }
+        return content;
+    }
+
+    private void fill(ContentCache cache, String name, byte[] content)
+        throws Exception {
+        InputStream in = cache.fill(name, new ByteArrayInputStream(content));
+        try {
+            Assert.assertArrayEquals("Content should be read while cached.", content, IoUtil.readBytes(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testFillAndGet() throws Exception {
+        File dir = new File(folder.getRoot(), "content");
+        ContentCache cache = new ContentCache(dir, 1000, true);
+        String name = ContentCache.getName("demo:1", "OBJ", "OBJ.0", new Date(0));
+        Assert.assertNull(cache.get(name));
+        fill(cache, name, content(100, 1));
+        Assert.assertEquals(100, cache.getSize());
+        Assert.assertArrayEquals(content(100, 1), IoUtil.readBytes(cache.get(name)));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, dir.list().length);
+
+        ContentCache reopened = new ContentCache(dir, 1000, true);
+        Assert.assertEquals("A cache should survive being reopened.", 100, reopened.getSize());
+        Assert.assertArrayEquals(content(100, 1), IoUtil.readBytes(reopened.get(name)));
+    }
+
+    @Test
+    public void testPartialReadIsNotCached() throws Exception {
+        File dir = new File(folder.getRoot(), "content");
+        ContentCache cache = new ContentCache(dir, 1000, true);
+        InputStream in = cache.fill("partial.content", new ByteArrayInputStream(content(100, 1)));
+        Assert.assertEquals(1, in.read());
+        Assert.assertEquals(10, in.read(new byte[10]));
+        in.close();
+        Assert.assertNull("Partially read content should not be cached.", cache.get("partial.content"));
+        Assert.assertEquals("The temporary file should be removed.", 0, dir.list().length);
+    }
+
+    @Test
+    public void testTruncatedContentIsNotCached() throws Exception {
+        File dir = new File(folder.getRoot(), "content");
+        ContentCache cache = new ContentCache(dir, 1000, true);
+        InputStream in = cache.fill("truncated.content", new ByteArrayInputStream(content(60, 1)), 100);
+        Assert.assertEquals(60, IoUtil.readBytes(in).length);
+        in.close();
+        Assert.assertNull("Content shorter than expected should not be cached.", cache.get("truncated.content"));
+        Assert.assertEquals("The temporary file should be removed.", 0, dir.list().length);
+
+        in = cache.fill("complete.content", new ByteArrayInputStream(content(100, 1)), 100);
+        IoUtil.readBytes(in);
+        in.close();
+        Assert.assertArrayEquals(content(100, 1), IoUtil.readBytes(cache.get("complete.content")));
+    }
+
+    @Test
+    public void testSkippedContentIsCached() throws Exception {
+        ContentCache cache = new ContentCache(folder.getRoot(), 1000, true);
+        InputStream in = cache.fill("skipped.content", new ByteArrayInputStream(content(100, 1)));
+        Assert.assertEquals(90, in.skip(90));
+        Assert.assertEquals(10, IoUtil.readBytes(in).length);
+        in.close();
+        Assert.assertArrayEquals(content(100, 1), IoUtil.readBytes(cache.get("skipped.content")));
+    }
+
+    @Test
+    public void testLRUEviction() throws Exception {
+        ContentCache cache = new ContentCache(folder.getRoot(), 250, true);
+        fill(cache, "a.content", content(100, 1));
+        fill(cache, "b.content", content(100, 2));
+        cache.get("a.content").close();
+        fill(cache, "c.content", content(100, 3));
+        Assert.assertEquals(200, cache.getSize());
+        Assert.assertNotNull("Recently used content should be kept.", cache.get("a.content"));
+        Assert.assertNull("Least recently used content should be evicted.", cache.get("b.content"));
+        Assert.assertNotNull(cache.get("c.content"));
+        Assert.assertFalse(new File(folder.getRoot(), "b.content").exists());
+    }
+
+    @Test
+    public void testFIFOEviction() throws Exception {
+        ContentCache cache = new ContentCache(folder.getRoot(), 250, false);
+        fill(cache, "a.content", content(100, 1));
+        fill(cache, "b.content", content(100, 2));
+        cache.get("a.content").close();
+        fill(cache, "c.content", content(100, 3));
+        Assert.assertNull("The oldest content should be evicted.", cache.get("a.content"));
+        Assert.assertNotNull(cache.get("b.content"));
+    }
+
+    @Test
+    public void testContentLargerThanEntryLimitIsNotCached() throws Exception {
+        ContentCache cache = new ContentCache(folder.getRoot(), 1000, 150, true);
+        fill(cache, "a.content", content(100, 1));
+        fill(cache, "large.content", content(200, 2));
+        Assert.assertNull(cache.get("large.content"));
+        Assert.assertNotNull("A large entry shouldn't evict smaller ones.", cache.get("a.content"));
+        Assert.assertEquals(100, cache.getSize());
+        Assert.assertEquals(0, folder.getRoot().list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".tmp");
+            }
+        }).length);
+    }
+
+    @Test
+    public void testOversizedContentIsNotCached() throws Exception {
+        ContentCache cache = new ContentCache(folder.getRoot(), 50, true);
+        fill(cache, "large.content", content(100, 1));
+        Assert.assertNull(cache.get("large.content"));
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.cache;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.common.util.IoUtil;
+import org.modeshape.common.util.SecureHash;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Date;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContentCachingFedora3DataImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock Fedora3DataInterface mockF3;
+
+    @Mock FedoraDatastreamRecord managed;
+
+    @Mock FedoraDatastreamRecord redirect;
+
+    @Mock FedoraDatastreamVersionRecord v;
+
+    private byte[] content = "thumbnail".getBytes();
+
+    private ContentCachingFedora3DataImpl f3;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mockF3.getDatastream("demo:1", "TN")).thenReturn(managed);
+        when(mockF3.getDatastream("demo:1", "REMOTE")).thenReturn(redirect);
+        when(managed.getPid()).thenReturn("demo:1");
+        when(managed.getId()).thenReturn("TN");
+        when(managed.getControlGroup()).thenReturn("M");
+        when(managed.getCurrentVersion()).thenReturn(v);
+        when(redirect.getControlGroup()).thenReturn("R");
+        when(v.getVersionId()).thenReturn("TN.0");
+        when(v.getCreatedDate()).thenReturn(new Date(0));
+        when(v.getContentLength()).thenReturn((long) content.length);
+        when(v.getStream()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(content);
+            }
+        });
+        f3 = new ContentCachingFedora3DataImpl();
+        f3.setDirectory(new File(folder.getRoot(), "content").getPath());
+        f3.setMaxMegabytes(1);
+        f3.initialize(mockF3);
+    }
+
+    private byte[] read(FedoraDatastreamRecord ds) throws Exception {
+        InputStream in = ds.getCurrentVersion().getStream();
+        try {
+            return IoUtil.readBytes(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testContentIsCached() throws Exception {
+        Assert.assertArrayEquals(content, read(f3.getDatastream("demo:1", "TN")));
+        Assert.assertArrayEquals(content, read(f3.getDatastream("demo:1", "TN")));
+        Assert.assertArrayEquals(content, read(f3.getDatastream("demo:1", "TN")));
+        verify(v, times(1)).getStream();
+        Assert.assertEquals(2, f3.getCache().getHits());
+    }
+
+    @Test
+    public void testDigestIsComputedFromCachedContent() throws Exception {
+        byte[] sha1 = SecureHash.getHash(SecureHash.Algorithm.SHA_1, content);
+        Assert.assertArrayEquals(sha1, f3.getDatastream("demo:1", "TN").getCurrentVersion().getSha1());
+        Assert.assertArrayEquals(content, read(f3.getDatastream("demo:1", "TN")));
+        Assert.assertArrayEquals(sha1, f3.getDatastream("demo:1", "TN").getCurrentVersion().getSha1());
+        verify(v, times(1)).getStream();
+        verify(v, never()).getSha1();
+    }
+
+    @Test
+    public void testTruncatedContentIsNotCached() throws Exception {
+        when(v.getContentLength()).thenReturn((long) content.length + 1);
+        read(f3.getDatastream("demo:1", "TN"));
+        read(f3.getDatastream("demo:1", "TN"));
+        verify(v, times(2)).getStream();
+    }
+
+    @Test
+    public void testRedirectsAreNotCached() {
+        Assert.assertSame("Redirect datastreams should be passed through.", redirect, f3.getDatastream("demo:1", "REMOTE"));
+    }
+
+    @Test
+    public void testLargeContentIsNotCached() throws Exception {
+        when(v.getContentLength()).thenReturn(2L * 1024 * 1024);
+        read(f3.getDatastream("demo:1", "TN"));
+        read(f3.getDatastream("demo:1", "TN"));
+        verify(v, times(2)).getStream();
+    }
+
+    @Test
+    public void testContentLargerThanEntryLimitIsNotCached() throws Exception {
+        when(v.getContentLength()).thenReturn(200L * 1024);
+        read(f3.getDatastream("demo:1", "TN"));
+        read(f3.getDatastream("demo:1", "TN"));
+        f3.getDatastream("demo:1", "TN").getCurrentVersion().getSha1();
+        verify(v, times(2)).getStream();
+        verify(v).getSha1();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEntryLimitLargerThanCache() {
+        ContentCachingFedora3DataImpl c = new ContentCachingFedora3DataImpl();
+        c.setDirectory(new File(folder.getRoot(), "other").getPath());
+        c.setMaxMegabytes(1);
+        c.setMaxEntryMegabytes(2);
+        c.initialize(mockF3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEvictionPolicy() {
+        new ContentCachingFedora3DataImpl().setEvictionPolicy("LFU");
+    }
+}
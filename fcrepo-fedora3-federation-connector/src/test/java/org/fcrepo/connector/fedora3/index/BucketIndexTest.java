@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class BucketIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final BucketIndex.BucketFunction BY_NAMESPACE
+        = new BucketIndex.BucketFunction() {
+            public int getBucket(String pid) {
+                return pid.charAt(0) - 'a';
+            }
+        };
+
+    @Test
+    public void testBuildAndReopen() throws Exception {
+        File file = new File(folder.getRoot(), "buckets.idx");
+        BucketIndex index = BucketIndex.build(Arrays.asList(new String[] { "a:1", "b:1", "a:2", "d:1", "b:2" }).iterator(), BY_NAMESPACE, 4, file);
+        Assert.assertEquals(5, index.size());
+        Assert.assertEquals(4, index.getBucketCount());
+        Assert.assertEquals("Pids should keep their order within a bucket.", Arrays.asList(new String[] { "a:1", "a:2" }), index.getPids(0));
+        Assert.assertEquals(Arrays.asList(new String[] { "b:1", "b:2" }), index.getPids(1));
+        Assert.assertEquals(Collections.emptyList(), index.getPids(2));
+        Assert.assertEquals(Arrays.asList(new String[] { "d:1" }), index.getPids(3));
+
+        BucketIndex reopened = new BucketIndex(file);
+        Assert.assertEquals("An index should survive being reopened.", 5, reopened.size());
+        Assert.assertEquals(Arrays.asList(new String[] { "b:1", "b:2" }), reopened.getPids(1));
+        Assert.assertEquals("Temporary files should be removed.", 1, folder.getRoot().list().length);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMissingBucket() throws Exception {
+        BucketIndex.build(Collections.<String>emptyList().iterator(), BY_NAMESPACE, 4, new File(folder.getRoot(), "buckets.idx")).getPids(4);
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class DigestCrawlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Fedora3DataInterface mockF3;
+
+    private List<String> pids;
+
+    private List<FedoraDatastreamVersionRecord> inline;
+
+    private DigestStoreFedora3DataImpl f3;
+
+    private File checkpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        mockF3 = mock(Fedora3DataInterface.class);
+        pids = new ArrayList<String>();
+        inline = new ArrayList<FedoraDatastreamVersionRecord>();
+        for (int i = 1; i <= 20; i ++) {
+            addObject(String.format("demo:%02d", i));
+        }
+        when(mockF3.iterateObjectPids()).thenAnswer(new Answer<PidIterator>() {
+            public PidIterator answer(InvocationOnMock invocation) {
+                return iterator(new ArrayList<String>(pids));
+            }
+        });
+        f3 = new DigestStoreFedora3DataImpl();
+        f3.setStoreFile(new File(folder.getRoot(), "digests.db").getPath());
+        f3.initialize(mockF3);
+        checkpoint = new File(folder.getRoot(), "crawl.checkpoint");
+    }
+
+    /**
+     * Adds an object with an inline "DC" datastream and a managed "OBJ"
+     * datastream.
+     */
+    private void addObject(String pid) throws Exception {
+        FedoraObjectRecord o = mock(FedoraObjectRecord.class);
+        when(o.listDatastreamIds()).thenReturn(Arrays.asList(new String[] { "DC", "OBJ" }));
+        when(mockF3.getObjectByPid(pid)).thenReturn(o);
+        inline.add(addDatastream(pid, "DC", "X"));
+        addDatastream(pid, "OBJ", "M");
+        pids.add(pid);
+    }
+
+    private FedoraDatastreamVersionRecord addDatastream(String pid, String dsid, String controlGroup) throws Exception {
+        FedoraDatastreamRecord ds = mock(FedoraDatastreamRecord.class);
+        FedoraDatastreamVersionRecord v = mock(FedoraDatastreamVersionRecord.class);
+        when(ds.getPid()).thenReturn(pid);
+        when(ds.getId()).thenReturn(dsid);
+        when(ds.getControlGroup()).thenReturn(controlGroup);
+        when(ds.getCurrentVersion()).thenReturn(v);
+        when(v.getVersionId()).thenReturn(dsid + ".0");
+        when(v.getCreatedDate()).thenReturn(new Date(0));
+        when(v.getContentLength()).thenReturn(1024L);
+        byte[] sha1 = new byte[20];
+        sha1[0] = (byte) pids.size();
+        when(v.getSha1()).thenReturn(sha1);
+        when(mockF3.getDatastream(pid, dsid)).thenReturn(ds);
+        return v;
+    }
+
+    @Test
+    public void testCrawl() throws Exception {
+        DigestCrawler crawler = new DigestCrawler(f3, f3.getStore(), 3, checkpoint);
+        crawler.run();
+        Assert.assertEquals("Every managed datastream should be hashed.", 20, crawler.getHashedCount());
+        Assert.assertEquals(20, f3.getStore().size());
+        Assert.assertNotNull(f3.getStore().get("demo:07", "OBJ", "OBJ.0", new Date(0)));
+        Assert.assertNull("A complete crawl leaves no checkpoint pid.", crawler.getCheckpoint());
+        Assert.assertTrue("The checkpoint should be saved.", checkpoint.exists());
+        for (FedoraDatastreamVersionRecord v : inline) {
+            verify(v, never()).getSha1();
+        }
+    }
+
+    @Test
+    public void testCrawlReadsFromCrawlSource() throws Exception {
+        Fedora3DataInterface cached = mock(Fedora3DataInterface.class);
+        DigestStoreFedora3DataImpl store = new DigestStoreFedora3DataImpl();
+        store.setStoreFile(new File(folder.getRoot(), "source.db").getPath());
+        store.setCheckpointFile(new File(folder.getRoot(), "source.checkpoint").getPath());
+        store.setCrawlThreads(2);
+        store.setCrawlSource(mockF3);
+        store.initialize(cached);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (store.getStore().size() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        store.close();
+        Assert.assertEquals("Digests read from the source should be stored.", 20, store.getStore().size());
+        verifyZeroInteractions(cached);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final DigestCrawler stopped = new DigestCrawler(f3, f3.getStore(), 1, checkpoint);
+        final FedoraObjectRecord o = mockF3.getObjectByPid("demo:10");
+        when(mockF3.getObjectByPid("demo:10")).thenAnswer(new Answer<FedoraObjectRecord>() {
+            public FedoraObjectRecord answer(InvocationOnMock invocation) {
+                stopped.stop();
+                return o;
+            }
+        });
+        stopped.run();
+        Assert.assertTrue(stopped.getHashedCount() < 20);
+        Assert.assertTrue(stopped.getCheckpoint().compareTo("demo:10") >= 0);
+
+        DigestCrawler crawler = new DigestCrawler(f3, f3.getStore(), 2, checkpoint);
+        crawler.run();
+        Assert.assertEquals("Only objects after the checkpoint are crawled.", 20, stopped.getHashedCount() + crawler.getHashedCount());
+        Assert.assertEquals(20, f3.getStore().size());
+        verify(mockF3, times(1)).getObjectByPid("demo:05");
+    }
+
+    @Test
+    public void testModifiedObjectsAreCrawledAfterCompletion() throws Exception {
+        new DigestCrawler(f3, f3.getStore(), 2, checkpoint).run();
+        final List<String> added = new ArrayList<String>();
+        for (int i = 21; i <= 25; i ++) {
+            addObject(String.format("demo:%02d", i));
+            added.add(String.format("demo:%02d", i));
+        }
+        // a new version of the datastream of an existing object
+        when(mockF3.getDatastream("demo:03", "OBJ").getCurrentVersion().getVersionId()).thenReturn("OBJ.1");
+        added.add(0, "demo:03");
+        when(mockF3.getObjectPidsModifiedBetween(any(Date.class), any(Date.class))).thenReturn(added);
+        DigestCrawler crawler = new DigestCrawler(f3, f3.getStore(), 2, checkpoint);
+        crawler.run();
+        Assert.assertEquals("Only modified objects are crawled.", 6, crawler.getHashedCount());
+        Assert.assertEquals(26, f3.getStore().size());
+        verify(mockF3, times(1)).getObjectByPid("demo:05");
+        verify(mockF3, times(1)).iterateObjectPids();
+    }
+
+    @Test
+    public void testStoredDigestsAreSkipped() throws Exception {
+        f3.getStore().put("demo:03", "OBJ", "OBJ.0", new Date(0), new byte[20]);
+        DigestCrawler crawler = new DigestCrawler(f3, f3.getStore(), 4, checkpoint);
+        crawler.run();
+        Assert.assertEquals(19, crawler.getHashedCount());
+        verify(mockF3.getDatastream("demo:03", "OBJ").getCurrentVersion(), never()).getSha1();
+    }
+
+    @Test
+    public void testFailuresAreRetried() throws Exception {
+        FedoraObjectRecord o = mockF3.getObjectByPid("demo:10");
+        when(mockF3.getObjectByPid("demo:10")).thenThrow(new RuntimeException("unavailable"));
+        DigestCrawler crawler = new DigestCrawler(f3, f3.getStore(), 2, checkpoint);
+        crawler.run();
+        Assert.assertEquals("A failure shouldn't stop the crawl.", 19, crawler.getHashedCount());
+        Assert.assertEquals(Arrays.asList(new String[] { "demo:10" }), crawler.getFailedPids());
+
+        doReturn(o).when(mockF3).getObjectByPid("demo:10");
+        crawler = new DigestCrawler(f3, f3.getStore(), 2, checkpoint);
+        crawler.run();
+        Assert.assertEquals(1, crawler.getHashedCount());
+        Assert.assertTrue(crawler.getFailedPids().isEmpty());
+        Assert.assertEquals(20, f3.getStore().size());
+    }
+
+    @Test
+    public void testCloseStopsCrawl() throws Exception {
+        DigestStoreFedora3DataImpl crawling = new DigestStoreFedora3DataImpl();
+        crawling.setStoreFile(new File(folder.getRoot(), "crawled.db").getPath());
+        crawling.setCheckpointFile(checkpoint.getPath());
+        crawling.setCrawlThreads(2);
+        crawling.initialize(mockF3);
+        crawling.close();
+        Assert.assertTrue("The checkpoint should be saved.", checkpoint.exists());
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("fedora3-digest-crawler")) {
+                Assert.assertTrue(t.getName() + " should be a daemon.", t.isDaemon());
+            }
+        }
+    }
+
+    private static PidIterator iterator(List<String> pids) {
+        final Iterator<String> it = pids.iterator();
+        return new PidIterator() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException {
+            }
+        };
+    }
+}
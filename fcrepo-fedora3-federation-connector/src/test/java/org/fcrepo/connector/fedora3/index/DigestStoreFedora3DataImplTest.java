@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DigestStoreFedora3DataImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock Fedora3DataInterface mockF3;
+
+    @Mock FedoraDatastreamRecord mockDs;
+
+    @Mock FedoraDatastreamVersionRecord current;
+
+    @Mock FedoraDatastreamVersionRecord previous;
+
+    private File file;
+
+    private byte[] sha1 = new byte[20];
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        file = new File(folder.getRoot(), "digests.db");
+        sha1[0] = 42;
+        when(mockF3.getDatastream("demo:1", "OBJ")).thenReturn(mockDs);
+        when(mockDs.getPid()).thenReturn("demo:1");
+        when(mockDs.getId()).thenReturn("OBJ");
+        when(mockDs.getCurrentVersion()).thenReturn(current);
+        when(mockDs.getHistory()).thenReturn(Arrays.asList(current, previous));
+        when(current.getVersionId()).thenReturn("OBJ.1");
+        when(current.getCreatedDate()).thenReturn(new Date(2000));
+        when(current.getContentLength()).thenReturn(1024L);
+        when(current.getSha1()).thenReturn(sha1);
+        when(previous.getVersionId()).thenReturn("OBJ.0");
+        when(previous.getCreatedDate()).thenReturn(new Date(1000));
+        when(previous.getSha1()).thenReturn(new byte[20]);
+    }
+
+    private DigestStoreFedora3DataImpl open() {
+        DigestStoreFedora3DataImpl f3 = new DigestStoreFedora3DataImpl();
+        f3.setStoreFile(file.getPath());
+        f3.initialize(mockF3);
+        return f3;
+    }
+
+    @Test
+    public void testDigestIsComputedOnce() throws Exception {
+        DigestStoreFedora3DataImpl f3 = open();
+        FedoraDatastreamRecord ds = f3.getDatastream("demo:1", "OBJ");
+        Assert.assertEquals(1024L, ds.getCurrentVersion().getContentLength());
+        verify(current, never()).getSha1();
+        Assert.assertArrayEquals(sha1, ds.getCurrentVersion().getSha1());
+        Assert.assertArrayEquals(sha1, f3.getDatastream("demo:1", "OBJ").getCurrentVersion().getSha1());
+        Assert.assertArrayEquals("History and current versions share digests.", sha1, ds.getHistory().get(0).getSha1());
+        verify(current, times(1)).getSha1();
+        f3.close();
+
+        Assert.assertArrayEquals("Digests should be kept across restarts.", sha1, open().getDatastream("demo:1", "OBJ").getCurrentVersion().getSha1());
+        verify(current, times(1)).getSha1();
+        verify(previous, never()).getSha1();
+    }
+
+    @Test
+    public void testRecordedDigestIsNotStored() throws Exception {
+        when(current.getContentDigestType()).thenReturn("SHA-1");
+        when(current.getContentDigest()).thenReturn("2a00000000000000000000000000000000000000");
+        DigestStoreFedora3DataImpl f3 = open();
+        Assert.assertArrayEquals(sha1, f3.getDatastream("demo:1", "OBJ").getCurrentVersion().getSha1());
+        Assert.assertEquals("Recorded digests needn't be stored.", 0, f3.getStore().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStoreFileIsRequired() {
+        new DigestStoreFedora3DataImpl().initialize(mock(Fedora3DataInterface.class));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Date;
+
+public class DigestStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] digest(int i) {
+        byte[] digest = new byte[20];
+        digest[0] = (byte) i;
+        digest[19] = (byte) (i >> 8);
+        digest[10] = (byte) (i >> 16);
+        return digest;
+    }
+
+    @Test
+    public void testPutAndReopen() throws Exception {
+        File file = new File(folder.getRoot(), "digests.db");
+        DigestStore store = new DigestStore(file);
+        Date created = new Date(1380651157126L);
+        Assert.assertNull(store.get("demo:1", "OBJ", "OBJ.0", created));
+        store.put("demo:1", "OBJ", "OBJ.0", created, digest(1));
+        store.put("demo:1", "OBJ", "OBJ.1", created, digest(2));
+        Assert.assertArrayEquals(digest(1), store.get("demo:1", "OBJ", "OBJ.0", created));
+        Assert.assertArrayEquals(digest(2), store.get("demo:1", "OBJ", "OBJ.1", created));
+        Assert.assertNull("The creation date is part of the key.", store.get("demo:1", "OBJ", "OBJ.0", new Date(0)));
+        Assert.assertNull(store.get("demo:2", "OBJ", "OBJ.0", created));
+        store.put("demo:1", "OBJ", "OBJ.0", created, digest(3));
+        Assert.assertArrayEquals("Digests may be replaced.", digest(3), store.get("demo:1", "OBJ", "OBJ.0", created));
+        Assert.assertEquals(2, store.size());
+
+        // no close: each digest is written to the mapped file when stored
+        DigestStore reopened = new DigestStore(file);
+        Assert.assertEquals("A store should survive being reopened.", 2, reopened.size());
+        Assert.assertArrayEquals(digest(3), reopened.get("demo:1", "OBJ", "OBJ.0", created));
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        File file = new File(folder.getRoot(), "digests.db");
+        DigestStore store = new DigestStore(file);
+        long initialLength = file.length();
+        int count = 100000;
+        for (int i = 0; i < count; i ++) {
+            store.put("demo:" + i, "OBJ", "OBJ.0", new Date(i), digest(i));
+        }
+        Assert.assertTrue("The store should have grown.", file.length() > initialLength);
+        Assert.assertEquals(count, store.size());
+        store.close();
+
+        DigestStore reopened = new DigestStore(file);
+        Assert.assertEquals(count, reopened.size());
+        for (int i = 0; i < count; i ++) {
+            Assert.assertArrayEquals(digest(i), reopened.get("demo:" + i, "OBJ", "OBJ.0", new Date(i)));
+        }
+        Assert.assertEquals("Temporary files should be removed.", 1, folder.getRoot().list().length);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testNotAStore() throws Exception {
+        File file = folder.newFile("other.idx");
+        java.io.FileOutputStream out = new java.io.FileOutputStream(file);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+        new DigestStore(file);
+    }
+}
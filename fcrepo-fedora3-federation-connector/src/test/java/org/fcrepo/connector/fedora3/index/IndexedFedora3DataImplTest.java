@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IndexedFedora3DataImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    Fedora3DataInterface f3;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(f3.getSize()).thenReturn(4L);
+        when(f3.iterateObjectPids()).thenAnswer(new Answer<PidIterator>() {
+            public PidIterator answer(InvocationOnMock invocation) {
+                return iterator("a:1", "a:2", "b:1", "b:2");
+            }
+        });
+    }
+
+    private IndexedFedora3DataImpl createIndexed() {
+        IndexedFedora3DataImpl i = new IndexedFedora3DataImpl();
+        i.setIndexFile(folder.getRoot().getAbsolutePath() + "/pids.idx");
+        i.initialize(f3);
+        return i;
+    }
+
+    @Test
+    public void testPidQueries() {
+        IndexedFedora3DataImpl i = createIndexed();
+        Assert.assertEquals(4L, i.getSize());
+        Assert.assertEquals(Arrays.asList(new String[] { "a:2", "b:1" }), i.getObjectPids(1, 2));
+        Assert.assertEquals(Arrays.asList(new String[] { "a:1", "a:2" }), i.getObjectPidsAfter(null, 2));
+        Assert.assertEquals(Arrays.asList(new String[] { "b:1", "b:2" }), i.getObjectPidsAfter("a:2", 5));
+        Assert.assertEquals("Missing pids are a valid cursor.", Arrays.asList(new String[] { "b:1" }), i.getObjectPidsAfter("a:3", 1));
+        Assert.assertEquals(2, i.getObjectPosition("b:1"));
+        Assert.assertTrue(i.getObjectPosition("c:1") < 0);
+    }
+
+    @Test
+    public void testIndexIsReused() throws InterruptedException {
+        createIndexed();
+        IndexedFedora3DataImpl i = createIndexed();
+        verify(f3, times(1)).iterateObjectPids();
+        Assert.assertEquals("b:2", i.getObjectPids(3, 1).get(0));
+
+        when(f3.getSize()).thenReturn(5L);
+        createIndexed().awaitRebuild();
+        verify(f3, times(2)).iterateObjectPids();
+    }
+
+    @Test
+    public void testTruncatedIndexIsRebuilt() throws IOException {
+        createIndexed();
+        RandomAccessFile raf = new RandomAccessFile(
+                new File(folder.getRoot(), "pids.idx"), "rw");
+        try {
+            raf.setLength(raf.length() - 2);
+        } finally {
+            raf.close();
+        }
+        IndexedFedora3DataImpl i = createIndexed();
+        verify(f3, times(2)).iterateObjectPids();
+        Assert.assertEquals("b:2", i.getObjectPids(3, 1).get(0));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenRepositoryGrows()
+            throws InterruptedException {
+        IndexedFedora3DataImpl i = createIndexed();
+        Assert.assertEquals(4L, i.getSize());
+        when(f3.getSize()).thenReturn(5L);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(f3.iterateObjectPids()).thenAnswer(new Answer<PidIterator>() {
+            public PidIterator answer(InvocationOnMock invocation)
+                    throws InterruptedException {
+                release.await();
+                return iterator("a:1", "a:2", "a:3", "b:1", "b:2");
+            }
+        });
+        Assert.assertEquals("The old index is served during the rebuild.",
+                4L, i.getSize());
+        Assert.assertEquals(-1, i.getObjectPosition("a:3"));
+        release.countDown();
+        i.awaitRebuild();
+        Assert.assertEquals(5L, i.getSize());
+        Assert.assertEquals(2, i.getObjectPosition("a:3"));
+        Assert.assertEquals(5L, i.getSize());
+        verify(f3, times(2)).iterateObjectPids();
+    }
+
+    private static PidIterator iterator(String ... pids) {
+        final Iterator<String> it = Arrays.asList(pids).iterator();
+        return new PidIterator() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException {
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.index;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PidIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> pids(int count) {
+        List<String> pids = new ArrayList<String>();
+        for (int i = 0; i < count; i ++) {
+            pids.add(String.format("pid:%05d", i));
+        }
+        return pids;
+    }
+
+    @Test
+    public void testBuildAndReopen() throws Exception {
+        File file = new File(folder.getRoot(), "pids.idx");
+        PidIndex index = PidIndex.build(pids(1000).iterator(), file);
+        Assert.assertEquals(1000, index.size());
+        Assert.assertEquals("pid:00000", index.getPid(0));
+        Assert.assertEquals("pid:00999", index.getPid(999));
+        Assert.assertEquals(Arrays.asList(new String[] { "pid:00998", "pid:00999" }), index.getPids(998, 5));
+
+        PidIndex reopened = new PidIndex(file);
+        Assert.assertEquals("An index should survive being reopened.", 1000, reopened.size());
+        Assert.assertEquals("pid:00500", reopened.getPid(500));
+        Assert.assertEquals("Temporary files should be removed.", 1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testPositionOf() throws Exception {
+        PidIndex index = PidIndex.build(pids(100).iterator(), new File(folder.getRoot(), "pids.idx"));
+        for (int i = 0; i < 100; i ++) {
+            Assert.assertEquals(i, index.positionOf(String.format("pid:%05d", i)));
+        }
+        Assert.assertEquals("Missing pids give the insertion point.", -1, index.positionOf("a:1"));
+        Assert.assertEquals(-(10 + 1), index.positionOf("pid:00009x"));
+        Assert.assertEquals(-(100 + 1), index.positionOf("z:1"));
+    }
+
+    @Test
+    public void testEmptyIndex() throws Exception {
+        PidIndex index = PidIndex.build(new ArrayList<String>().iterator(), new File(folder.getRoot(), "pids.idx"));
+        Assert.assertEquals(0, index.size());
+        Assert.assertEquals(-1, index.positionOf("pid:1"));
+        Assert.assertTrue(index.getPids(0, 10).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedIndexIsRejected() throws Exception {
+        File file = new File(folder.getRoot(), "pids.idx");
+        PidIndex.build(pids(100).iterator(), file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        new PidIndex(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedPids() throws Exception {
+        PidIndex.build(Arrays.asList(new String[] { "pid:2", "pid:1" }).iterator(), new File(folder.getRoot(), "pids.idx"));
+    }
+}
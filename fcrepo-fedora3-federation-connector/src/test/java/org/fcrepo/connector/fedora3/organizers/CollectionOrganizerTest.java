@@ -0,0 +1,212 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.fcrepo.connector.fedora3.organizers.CollectionOrganizer.IS_MEMBER_OF_COLLECTION;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CollectionOrganizerTest {
+
+    @Mock
+    Fedora3DataInterface f3;
+
+    private List<String[]> relationships;
+
+    private Map<String, Date> modified;
+
+    private CollectionOrganizer o;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        relationships = new ArrayList<String[]>();
+        modified = new HashMap<String, Date>();
+        relate("c:sub", "c:top");
+        relate("a:1", "c:top");
+        relate("a:2", "c:top");
+        relate("a:2", "c:sub");
+        relate("a:3", "c:sub");
+        relate("c:x", "c:y");
+        relate("c:y", "c:x");
+        relate("a:9", "c:x");
+        when(f3.getLastModifiedDate()).thenAnswer(new Answer<Date>() {
+            public Date answer(InvocationOnMock invocation) {
+                return Collections.max(modified.values());
+            }
+        });
+        when(f3.getObjectPidsModifiedBetween(any(Date.class), any(Date.class))).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                Date start = (Date) invocation.getArguments()[0];
+                Date end = (Date) invocation.getArguments()[1];
+                List<String> pids = new ArrayList<String>();
+                for (Map.Entry<String, Date> e : modified.entrySet()) {
+                    if (!e.getValue().before(start) && e.getValue().before(end)) {
+                        pids.add(e.getKey());
+                    }
+                }
+                return pids;
+            }
+        });
+        when(f3.iterateRelationships(eq(IS_MEMBER_OF_COLLECTION), any(Date.class))).thenAnswer(new Answer<RelationshipIterator>() {
+            public RelationshipIterator answer(InvocationOnMock invocation) {
+                Date since = (Date) invocation.getArguments()[1];
+                List<String[]> result = new ArrayList<String[]>();
+                for (String[] r : relationships) {
+                    if (since == null || !modified.get(r[0]).before(since)) {
+                        result.add(r);
+                    }
+                }
+                return iterator(result);
+            }
+        });
+        o = new CollectionOrganizer();
+        o.setRefreshSeconds(0);
+        o.initialize(f3);
+    }
+
+    @Test
+    public void testCollections() {
+        assertEquals(Arrays.asList(new String[] { collection("c:top"), collection("c:x"), collection("c:y") }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        assertEquals("Objects are only listed under their parent.", Arrays.asList(new String[] { ID.objectID("c:top").getId(), ID.objectID("a:1").getId(), collection("c:sub") }), o.getChildrenForId(collection("c:top")));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("c:sub").getId(), ID.objectID("a:2").getId(), ID.objectID("a:3").getId() }), o.getChildrenForId(collection("c:sub")));
+        assertEquals("Collections in a cycle are only listed at the root.", Arrays.asList(new String[] { ID.objectID("c:x").getId(), ID.objectID("a:9").getId() }), o.getChildrenForId(collection("c:x")));
+        assertEquals(Arrays.asList(new String[] { "c:sub", "c:top" }), o.getCollections(ID.objectID("a:2").getId()));
+        assertEquals(Arrays.asList(new String[] { "c:x" }), o.getCollections(ID.objectID("c:y").getId()));
+        assertTrue(o.getCollections(ID.objectID("b:1").getId()).isEmpty());
+        assertEquals(collection("c:top"), o.getParentForId(collection("c:sub")));
+        assertEquals(ID.ROOT_ID.getId(), o.getParentForId(collection("c:top")));
+        assertEquals("Collections in a cycle are top level.", ID.ROOT_ID.getId(), o.getParentForId(collection("c:x")));
+        assertEquals("The parent is the first collection.", collection("c:sub"), o.getParentForId(ID.objectID("a:2").getId()));
+        assertEquals(collection("c:top"), o.getParentForId(ID.objectID("c:top").getId()));
+        assertNull(o.getParentForId(ID.objectID("b:1").getId()));
+        assertTrue(o.isOrganizationalNode(collection("c:sub")));
+        assertFalse(o.isOrganizationalNode(collection("a:1")));
+        assertFalse(o.isOrganizationalNode(ID.objectID("c:sub").getId()));
+        verify(f3, times(1)).iterateRelationships(eq(IS_MEMBER_OF_COLLECTION), (Date) isNull());
+    }
+
+    @Test
+    public void testIncrementalRefresh() {
+        assertEquals(collection("c:top"), o.getParentForId(ID.objectID("a:1").getId()));
+
+        Iterator<String[]> it = relationships.iterator();
+        while (it.hasNext()) {
+            String[] r = it.next();
+            if (r[0].equals("a:1") || r[0].equals("a:3")) {
+                it.remove();
+            }
+        }
+        relate("a:1", "c:sub");
+        modified.put("a:3", new Date(Collections.max(modified.values()).getTime() + 1000));
+        relate("a:4", "c:new");
+
+        assertEquals(collection("c:sub"), o.getParentForId(ID.objectID("a:1").getId()));
+        assertNull("Objects removed from every collection have no parent.", o.getParentForId(ID.objectID("a:3").getId()));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("c:sub").getId(), ID.objectID("a:1").getId(), ID.objectID("a:2").getId() }), o.getChildrenForId(collection("c:sub")));
+        assertEquals(Arrays.asList(new String[] { collection("c:new"), collection("c:top"), collection("c:x"), collection("c:y") }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        verify(f3, times(1)).iterateRelationships(eq(IS_MEMBER_OF_COLLECTION), (Date) isNull());
+    }
+
+    @Test
+    public void testRelationshipsAreServedDuringRefresh() throws InterruptedException {
+        assertEquals(3, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<RelationshipIterator>() {
+            public RelationshipIterator answer(InvocationOnMock invocation) throws InterruptedException {
+                reading.countDown();
+                release.await();
+                return iterator(Collections.singletonList(new String[] { "a:4", "c:new" }));
+            }
+        }).when(f3).iterateRelationships(eq(IS_MEMBER_OF_COLLECTION), any(Date.class));
+        relate("a:4", "c:new");
+        Thread refresher = new Thread(new Runnable() {
+            public void run() {
+                o.getChildrenForId(ID.ROOT_ID.getId());
+            }
+        });
+        refresher.start();
+        reading.await();
+        assertEquals("The relationships held are served during a refresh.", 3, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        assertEquals(collection("c:top"), o.getParentForId(ID.objectID("a:1").getId()));
+        release.countDown();
+        refresher.join();
+        assertEquals(4, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+    }
+
+    private void relate(String member, String collection) {
+        relationships.add(new String[] { member, collection });
+        Date now = new Date(modified.isEmpty() ? 1000 : Collections.max(modified.values()).getTime() + 1000);
+        modified.put(member, now);
+        if (!modified.containsKey(collection)) {
+            modified.put(collection, new Date(1000));
+        }
+    }
+
+    private static String collection(String pid) {
+        return "collection " + ID.objectID(pid).getId();
+    }
+
+    private static RelationshipIterator iterator(List<String[]> relationships) {
+        final Iterator<String[]> it = new ArrayList<String[]>(relationships).iterator();
+        return new RelationshipIterator() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String[] next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException {
+            }
+        };
+    }
+}
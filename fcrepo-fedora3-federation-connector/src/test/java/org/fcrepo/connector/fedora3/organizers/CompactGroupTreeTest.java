@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class CompactGroupTreeTest {
+
+    @Test
+    public void testGroups() {
+        CompactGroupTree t = new CompactGroupTree();
+        int first = t.addPid("pid:0");
+        int last = t.addPid("pid:99");
+        int root = t.addGroup(-1, 0, 2, 10, first, last);
+        Assert.assertEquals(0, root);
+        Assert.assertEquals(-1, t.getParent(root));
+        Assert.assertEquals(2, t.getDepth(root));
+        Assert.assertEquals("pid:0", t.getFirstPid(root));
+        Assert.assertEquals("pid:99", t.getLastPid(root));
+        Assert.assertEquals(10, t.getChildCount(root));
+        Assert.assertFalse(t.areChildrenComplete(root));
+        Assert.assertEquals("Children start out missing.", -1, t.getChild(root, 3));
+
+        int child = t.addGroup(root, 30, 1, 0, t.addPid("pid:30"), t.addPid("pid:39"));
+        t.setChild(root, 3, child);
+        Assert.assertEquals(child, t.getChild(root, 3));
+        Assert.assertEquals(root, t.getParent(child));
+        Assert.assertEquals(30, t.getOffset(child));
+        Assert.assertEquals(0, t.getChildCount(child));
+        Assert.assertEquals("pid:39", t.getLastPid(child));
+        t.setChildrenComplete(root);
+        Assert.assertTrue(t.areChildrenComplete(root));
+    }
+
+    @Test
+    public void testGrowth() {
+        CompactGroupTree t = new CompactGroupTree();
+        for (int i = 0; i < 100000; i ++) {
+            int pid = t.addPid("pid:" + i);
+            Assert.assertEquals(i, t.addGroup(i - 1, i, 1, 0, pid, pid));
+        }
+        Assert.assertEquals(100000, t.size());
+        for (int i = 0; i < 100000; i += 997) {
+            Assert.assertEquals(i, t.getOffset(i));
+            Assert.assertEquals("pid:" + i, t.getFirstPid(i));
+        }
+    }
+
+    @Test
+    public void testFootprint() {
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(new GroupingOrganizerTest().createHugeRepo(1000000));
+        o.setMaxContainerSize(10);
+        GroupTreeFootprintBenchmark.loadAllGroups(o);
+        CompactGroupTree t = o.getTree();
+        Assert.assertEquals("Every group should be loaded.", 111111, t.size());
+        long bytesPerGroup = t.estimateBytes() / t.size();
+        Assert.assertTrue(bytesPerGroup + " bytes per group is too many.", bytesPerGroup < 64);
+    }
+
+    @Test
+    public void testReadingCorruptTrees() throws IOException {
+        CompactGroupTree t = new CompactGroupTree();
+        int root = t.addGroup(-1, 0, 2, 10, t.addPid("pid:0"), t.addPid("pid:99"));
+        t.setChild(root, 3, t.addGroup(root, 30, 1, 0, t.addPid("pid:30"), t.addPid("pid:39")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        t.write(new DataOutputStream(bytes));
+        byte[] written = bytes.toByteArray();
+
+        CompactGroupTree read = CompactGroupTree.read(ByteBuffer.wrap(written));
+        Assert.assertEquals(2, read.size());
+        Assert.assertEquals("pid:39", read.getLastPid(read.getChild(0, 3)));
+
+        for (int length = 0; length < written.length; length ++) {
+            assertInvalid(ByteBuffer.wrap(written, 0, length));
+        }
+        ByteBuffer b = ByteBuffer.wrap(written.clone());
+        b.putInt(0, Integer.MAX_VALUE);
+        assertInvalid(b);
+        b = ByteBuffer.wrap(written.clone());
+        b.putInt(0, -1);
+        assertInvalid(b);
+        b = ByteBuffer.wrap(written.clone());
+        // the child slot count of the root
+        b.putInt(4 + 2 * (8 + 4 + 1 + 4 + 4), -5);
+        assertInvalid(b);
+        b = ByteBuffer.wrap(written.clone());
+        // the parent of the second group
+        b.putInt(4 + 2 * 8 + 4, 7);
+        assertInvalid(b);
+        b = ByteBuffer.wrap(written.clone());
+        // the last pid of the second group
+        b.putInt(4 + 2 * (8 + 4 + 1 + 4) + 4, 1 << 24);
+        assertInvalid(b);
+    }
+
+    private static void assertInvalid(ByteBuffer b) {
+        try {
+            CompactGroupTree.read(b);
+            Assert.fail("A corrupt tree should be rejected.");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContentModelOrganizerTest {
+
+    private static final String OBJECT = "fedora-system:FedoraObject-3.0";
+
+    @Mock
+    Fedora3DataInterface f3;
+
+    private Map<String, List<String>> members;
+
+    private ContentModelOrganizer o;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        members = new HashMap<String, List<String>>();
+        List<String> all = new ArrayList<String>();
+        List<String> images = new ArrayList<String>();
+        for (int i = 0; i < 25; i ++) {
+            images.add("img:" + (i < 10 ? "0" : "") + i);
+        }
+        all.addAll(images);
+        all.addAll(Arrays.asList(new String[] { "plain:1", "text:1", "text:2" }));
+        members.put(OBJECT, all);
+        members.put("demo:Image", images);
+        members.put("demo:Text", Arrays.asList(new String[] { "text:1", "text:2" }));
+        when(f3.getSize()).thenReturn((long) all.size());
+        when(f3.getContentModelCounts()).thenAnswer(new Answer<Map<String, Long>>() {
+            public Map<String, Long> answer(InvocationOnMock invocation) {
+                Map<String, Long> counts = new HashMap<String, Long>();
+                for (Map.Entry<String, List<String>> e : members.entrySet()) {
+                    counts.put(e.getKey(), (long) e.getValue().size());
+                }
+                return counts;
+            }
+        });
+        when(f3.getContentModels(anyString())).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                List<String> models = new ArrayList<String>();
+                for (Map.Entry<String, List<String>> e : members.entrySet()) {
+                    if (e.getValue().contains(invocation.getArguments()[0])) {
+                        models.add(e.getKey());
+                    }
+                }
+                Collections.sort(models);
+                return models;
+            }
+        });
+        when(f3.getObjectPidsWithModelAfter(anyString(), any(String.class), anyInt())).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                List<String> pids = members.get(invocation.getArguments()[0]);
+                String lastPid = (String) invocation.getArguments()[1];
+                int position = lastPid == null ? 0 : Collections.binarySearch(pids, lastPid);
+                position = position < 0 ? -(position + 1) : (lastPid == null ? 0 : position + 1);
+                int count = (Integer) invocation.getArguments()[2];
+                return new ArrayList<String>(pids.subList(position, Math.min(pids.size(), position + count)));
+            }
+        });
+        o = new ContentModelOrganizer();
+        o.setMaxContainerSize(10);
+        o.initialize(f3);
+    }
+
+    @Test
+    public void testModels() {
+        String text = "model " + ID.objectID("demo:Text").getId();
+        assertEquals(Arrays.asList(new String[] { "model " + ID.objectID("demo:Image").getId(), text, "model " + ID.objectID(OBJECT).getId() }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("text:1").getId(), ID.objectID("text:2").getId() }), o.getChildrenForId(text));
+        assertEquals(text, o.getParentForId(ID.objectID("text:1").getId()));
+        assertEquals("Objects with no other model are under the default model.", "model " + ID.objectID(OBJECT).getId() + " from " + ID.objectID("img:20").getId(), o.getParentForId(ID.objectID("plain:1").getId()));
+        assertTrue(o.isOrganizationalNode(text));
+        assertFalse(o.isOrganizationalNode("model " + ID.objectID("demo:Other").getId()));
+        verify(f3, times(1)).getContentModelCounts();
+    }
+
+    @Test
+    public void testKeysetPaging() {
+        String image = "model " + ID.objectID("demo:Image").getId();
+        List<String> pages = o.getChildrenForId(image);
+        assertEquals(3, pages.size());
+        assertEquals(image + " from " + ID.objectID("img:10").getId(), pages.get(1));
+        List<String> children = o.getChildrenForId(pages.get(1));
+        assertEquals(10, children.size());
+        assertEquals(ID.objectID("img:19").getId(), children.get(9));
+        assertEquals(pages.get(2), o.getParentForId(ID.objectID("img:24").getId()));
+        verify(f3).getObjectPidsWithModelAfter(eq("demo:Image"), eq("img:10"), eq(9));
+        verify(f3, never()).getObjectPids(any(Long.class), anyInt());
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.organizers;
+
+/**
+ * Reports the memory used by the fully loaded tree of groups for a large
+ * simulated repository.  This isn't run as part of the unit tests; run it
+ * with the repository size and group size as arguments, for example:
+ * <pre>
+ *   java -cp ... GroupTreeFootprintBenchmark 10000000 10
+ * </pre>
+ */
+public class GroupTreeFootprintBenchmark {
+
+    public static void main(String [] args) {
+        long size = args.length > 0 ? Long.parseLong(args[0]) : 10000000L;
+        int groupSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(new GroupingOrganizerTest().createHugeRepo(size));
+        o.setMaxContainerSize(groupSize);
+        long start = System.currentTimeMillis();
+        loadAllGroups(o);
+        CompactGroupTree t = o.getTree();
+        long bytes = t.estimateBytes();
+        System.out.println("Loaded " + t.size() + " groups for " + size
+                + " objects in " + (System.currentTimeMillis() - start)
+                + "ms.");
+        System.out.println("Tree size: " + (bytes / (1024 * 1024)) + "MB ("
+                + (bytes / t.size()) + " bytes per group)");
+    }
+
+    /**
+     * Loads every group in the given organizer.
+     */
+    public static void loadAllGroups(GroupingOrganizer o) {
+        CompactGroupTree t = o.getTree();
+        // groups are appended as they're loaded, so this visits every group
+        for (int g = 0; g < t.size(); g ++) {
+            if (t.getDepth(g) > 1) {
+                o.loadChildren(g);
+            }
+        }
+    }
+}
@@ -20,19 +20,42 @@ import org.fcrepo.connector.fedora3.Fedora3DataInterface;
 import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
 import org.fcrepo.connector.fedora3.FedoraObjectRecord;
 import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.fcrepo.connector.fedora3.RelationshipIterator;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -40,6 +63,9 @@ import static org.mockito.Mockito.when;
  */
 public class GroupingOrganizerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     Fedora3DataInterface smallRepo;
 
@@ -53,6 +79,12 @@ public class GroupingOrganizerTest {
         when(smallRepo.getObjectPids(0, 1)).thenReturn(Arrays.asList(new String[] { "pid:0" }));
         when(smallRepo.getObjectPids(1, 1)).thenReturn(Arrays.asList(new String[] { "pid:1" }));
         when(smallRepo.getObjectPids(2, 1)).thenReturn(Arrays.asList(new String[] { "pid:2" }));
+        when(smallRepo.getObjectPidsAt(any(long[].class))).thenAnswer(pidsAt(smallRepo));
+        when(largerRepo.getObjectPidsAt(any(long[].class))).thenAnswer(pidsAt(largerRepo));
+        when(smallRepo.getObjectPosition("pid:0")).thenReturn(0L);
+        when(smallRepo.getObjectPosition("pid:1")).thenReturn(1L);
+        when(smallRepo.getObjectPosition("pid:2")).thenReturn(2L);
+        when(smallRepo.getObjectPosition("pid:9")).thenReturn(-1L);
         when(largerRepo.getObjectPids(0, 1)).thenReturn(Arrays.asList(new String[] { "pid:0" }));
         when(largerRepo.getObjectPids(1, 1)).thenReturn(Arrays.asList(new String[] { "pid:1" }));
         when(largerRepo.getObjectPids(2, 1)).thenReturn(Arrays.asList(new String[] { "pid:2" }));
@@ -62,6 +94,22 @@ public class GroupingOrganizerTest {
 
     }
 
+    /**
+     * Answers getObjectPidsAt() using the stubbed getObjectPids() of the
+     * given mock.
+     */
+    private static Answer<List<String>> pidsAt(final Fedora3DataInterface repo) {
+        return new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                List<String> pids = new ArrayList<String>();
+                for (long position : (long[]) invocation.getArguments()[0]) {
+                    pids.add(repo.getObjectPids(position, 1).get(0));
+                }
+                return pids;
+            }
+        };
+    }
+
     @Test
     public void testConstructor() {
         GroupingOrganizer o = new GroupingOrganizer();
@@ -96,7 +144,8 @@ public class GroupingOrganizerTest {
         GroupingOrganizer o = new GroupingOrganizer();
         o.initialize(smallRepo);
         o.setMaxContainerSize(100);
-        assertEquals("There should be no grouping nodes for small repositories with large groups.", Collections.emptyList(), o.getChildrenForId(ID.ROOT_ID.getId()));
+        when(smallRepo.getObjectPidsAfter("pid:0", 99)).thenReturn(Arrays.asList(new String[] { "pid:1", "pid:2" }));
+        assertEquals("There should be no grouping nodes for small repositories with large groups.", Arrays.asList(new String[] { ID.objectID("pid:0").getId(), ID.objectID("pid:1").getId(), ID.objectID("pid:2").getId() }), o.getChildrenForId(ID.ROOT_ID.getId()));
         try {
             o.getChildrenForId(ID.objectID("pid:0").getId());
             fail("GroupingOrganizer should throw an exception when asked about non-grouping nodes.");
@@ -116,6 +165,17 @@ public class GroupingOrganizerTest {
         }
     }
 
+    @Test
+    public void testLeafChildrenAreListedAfterFirstPid() {
+        when(smallRepo.getObjectPidsAfter("pid:0", 1)).thenReturn(Arrays.asList(new String[] { "pid:1" }));
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(smallRepo);
+        o.setMaxContainerSize(2);
+        String leaf = o.getChildrenForId(ID.ROOT_ID.getId()).get(0);
+        assertEquals(Arrays.asList(new String[] { ID.objectID("pid:0").getId(), ID.objectID("pid:1").getId() }), o.getChildrenForId(leaf));
+        verify(smallRepo, never()).getObjectPids(0, 2);
+    }
+
     @Test
     public void testGetParentForId() {
         GroupingOrganizer o = new GroupingOrganizer();
@@ -123,15 +183,11 @@ public class GroupingOrganizerTest {
         o.setMaxContainerSize(2);
         assertNull("Root should have no parent.", o.getParentForId(ID.ROOT_ID.getId()));
 
-        String group1 = null;
-        try {
-            group1 = o.getParentForId(ID.objectID("pid:0").getId());
-            fail("Lazy loading should result in no value being found yet.");
-        } catch (IllegalStateException ex) {
-        }
+        String group1 = o.getParentForId(ID.objectID("pid:0").getId());
+        assertNotNull("Objects should be resolved before their groups are loaded.", group1);
         assertNotNull(o.getChildrenForId(ID.ROOT_ID.getId())); // force node load
-        group1 = o.getParentForId(ID.objectID("pid:0").getId());
-        assertNotNull("Forced load should result in a non-null return.", group1);
+        assertEquals("Loading should preserve the resolved group.", group1, o.getParentForId(ID.objectID("pid:0").getId()));
+        assertNull("Missing objects have no parent.", o.getParentForId(ID.objectID("pid:9").getId()));
 
         String group2 = o.getParentForId(ID.objectID("pid:2").getId());
         assertEquals("pid:0 should be in the first group.", o.getChildrenForId(ID.ROOT_ID.getId()).get(0), group1);
@@ -150,6 +206,64 @@ public class GroupingOrganizerTest {
         assertFalse("Object id is not an organizational node.", o.isOrganizationalNode(ID.objectID("pid:0").getId()));
     }
 
+    @Test
+    public void testGroupLookup() {
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(10);
+        List<String> level1 = o.getChildrenForId(ID.ROOT_ID.getId());
+        for (String group : level1) {
+            assertEquals("Groups should know their parent.", ID.ROOT_ID.getId(), o.getParentForId(group));
+            for (String child : o.getChildrenForId(group)) {
+                assertTrue(o.isOrganizationalNode(child));
+                assertEquals("Groups should know their parent.", group, o.getParentForId(child));
+            }
+        }
+        String group = o.getChildrenForId(level1.get(3)).get(7);
+        assertEquals("3700000-3800000 " + ID.objectID("pid:03700000").getId(), group);
+        assertFalse("Ranges that aren't groups are rejected.", o.isOrganizationalNode("3700000-3800001 " + ID.objectID("pid:03700000").getId()));
+        assertFalse("Unaligned ranges are rejected.", o.isOrganizationalNode("3700001-3800001 " + ID.objectID("pid:03700001").getId()));
+        assertFalse("Ids must match a loaded group.", o.isOrganizationalNode("3700000-3800000 " + ID.objectID("pid:1").getId()));
+        assertFalse("Unloaded groups aren't found.", o.isOrganizationalNode("3700000-3710000 " + ID.objectID("pid:03700000").getId()));
+    }
+
+    @Test
+    public void testConcurrentLoading() throws Exception {
+        final AtomicInteger queries = new AtomicInteger();
+        final Fedora3DataInterface huge = createHugeRepo(10000000);
+        Fedora3DataInterface counting = mock(Fedora3DataInterface.class);
+        when(counting.getSize()).thenReturn(huge.getSize());
+        when(counting.getObjectPidsAt(any(long[].class))).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) throws Exception {
+                queries.incrementAndGet();
+                Thread.sleep(1);
+                return huge.getObjectPidsAt((long[]) invocation.getArguments()[0]);
+            }
+        });
+        final GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(counting);
+        o.setMaxContainerSize(10);
+        queries.set(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        for (int i = 0; i < 32; i ++) {
+            results.add(executor.submit(new Callable<List<String>>() {
+                public List<String> call() {
+                    String first = o.getChildrenForId(ID.ROOT_ID.getId()).get(0);
+                    return o.getChildrenForId(first);
+                }
+            }));
+        }
+        executor.shutdown();
+        List<String> expected = results.get(0).get();
+        assertEquals(10, expected.size());
+        for (Future<List<String>> f : results) {
+            assertEquals("Every thread should see the complete list.", expected, f.get());
+        }
+        assertEquals("Each level should be built exactly once (with one query each).", 2, queries.get());
+    }
+
     @Test
     public void testIDPattern() {
         assertTrue(GroupingOrganizer.ID_PATTERN.matcher("1-2 " + ID.objectID("pid:0").getId()).matches());
@@ -166,11 +280,224 @@ public class GroupingOrganizerTest {
         ID objectId = new ID(firstObjectIdStr);
         String dsIdStr = ID.datastreamID(objectId.getPid(), "DC").getId();
         assertEquals(o.getParentForId(objectId.getId()), o.getParentForId(dsIdStr));
+        assertEquals("Objects in unloaded groups should be resolved.", "100-110 " + ID.objectID("pid:00000100").getId(), o.getParentForId(ID.objectID("pid:00000100").getId()));
+    }
+
+    @Test
+    public void testColdDeepLink() {
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(10);
+        String group = o.getParentForId(ID.objectID("pid:05555555").getId());
+        assertEquals("5555550-5555560 " + ID.objectID("pid:05555550").getId(), group);
+        int depth = 0;
+        while (!group.equals(ID.ROOT_ID.getId())) {
+            assertTrue("Groups on the path should be loaded.", o.isOrganizationalNode(group));
+            group = o.getParentForId(group);
+            depth ++;
+        }
+        assertEquals(6, depth);
+        assertFalse("Groups off the path shouldn't be loaded.", o.isOrganizationalNode("5555560-5555570 " + ID.objectID("pid:05555560").getId()));
+        assertEquals("Partially loaded groups should list every child.", 10, o.getChildrenForId("5555500-5555600 " + ID.objectID("pid:05555500").getId()).size());
+        assertTrue(o.isOrganizationalNode("5555560-5555570 " + ID.objectID("pid:05555560").getId()));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        File snapshot = new File(folder.getRoot(), "groups.snapshot");
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(10);
+        String group = o.getParentForId(ID.objectID("pid:05555555").getId());
+        List<String> children = o.getChildrenForId("5555500-5555600 " + ID.objectID("pid:05555500").getId());
+        o.saveSnapshot();
+        assertTrue(snapshot.exists());
+
+        final Fedora3DataInterface huge = createHugeRepo(10000000);
+        Fedora3DataInterface f3 = mock(Fedora3DataInterface.class);
+        when(f3.getSize()).thenReturn(huge.getSize());
+        when(f3.getLastModifiedDate()).thenReturn(huge.getLastModifiedDate());
+        o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(f3);
+        o.setMaxContainerSize(10);
+        assertTrue("Restored groups should be found.", o.isOrganizationalNode(group));
+        assertEquals("Restored groups should keep their children.", children, o.getChildrenForId("5555500-5555600 " + ID.objectID("pid:05555500").getId()));
+        assertEquals("5555500-5555600 " + ID.objectID("pid:05555500").getId(), o.getParentForId(group));
+        verify(f3, never()).getObjectPidsAt(any(long[].class));
+        verify(f3, never()).getObjectPosition(any(String.class));
+    }
+
+    @Test
+    public void testStaleSnapshotIsRebuilt() throws Exception {
+        File snapshot = new File(folder.getRoot(), "groups.snapshot");
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(10);
+        String group = o.getParentForId(ID.objectID("pid:05555555").getId());
+        o.saveSnapshot();
+
+        o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(createHugeRepo(10000001));
+        o.setMaxContainerSize(10);
+        o.awaitRebuild();
+        assertTrue("Unaffected groups from a stale snapshot should be kept.", o.isOrganizationalNode(group));
+        assertEquals("The tree should be rebuilt for the new size.", 2, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+
+        o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(100);
+        assertFalse("Snapshots of other group sizes shouldn't be restored.", o.isOrganizationalNode(group));
+    }
+
+    @Test
+    public void testCorruptSnapshotIsRebuilt() throws Exception {
+        File snapshot = new File(folder.getRoot(), "groups.snapshot");
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(10);
+        String group = o.getParentForId(ID.objectID("pid:05555555").getId());
+        o.saveSnapshot();
+
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
         try {
-            o.getParentForId(ID.objectID("pid:00000100").getId());
-            fail("Second page shouldn't be loaded.");
-        } catch (IllegalStateException ex) {
+            // the group count follows the magic, version, group size,
+            // repository size and modification date
+            raf.seek(4 + 4 + 4 + 8 + 8);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        o = new GroupingOrganizer();
+        o.setSnapshotFile(snapshot.getPath());
+        o.initialize(createHugeRepo(10000000));
+        o.setMaxContainerSize(10);
+        assertEquals("The tree should be rebuilt from the root.", 10, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        assertEquals(group, o.getParentForId(ID.objectID("pid:05555555").getId()));
+    }
+
+    @Test
+    public void testGrowthAtTheEnd() throws InterruptedException {
+        AtomicLong size = new AtomicLong(250);
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(createHugeRepo(size));
+        o.setMaxContainerSize(4);
+        String kept = o.getParentForId(ID.objectID("pid:133").getId());
+        assertEquals("132-136 " + ID.objectID("pid:132").getId(), kept);
+        assertEquals("248-250 " + ID.objectID("pid:248").getId(), o.getParentForId(ID.objectID("pid:249").getId()));
+        assertEquals(4, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        long generation = o.getGeneration();
+
+        size.set(260);
+        o.getGeneration();
+        o.awaitRebuild();
+        assertTrue("A rebuild should change the generation.", o.getGeneration() != generation);
+        assertTrue("Groups before the new objects should be kept.", o.isOrganizationalNode(kept));
+        assertEquals("128-144 " + ID.objectID("pid:128").getId(), o.getParentForId(kept));
+        assertEquals("The old root should become the first child of the new root.", Arrays.asList(new String[] { "0-256 " + ID.objectID("pid:000").getId(), "256-260 " + ID.objectID("pid:256").getId() }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        assertEquals("0-256 " + ID.objectID("pid:000").getId(), o.getParentForId("128-192 " + ID.objectID("pid:128").getId()));
+        assertFalse("The group that grew should have a new id.", o.isOrganizationalNode("248-250 " + ID.objectID("pid:248").getId()));
+        assertEquals("248-252 " + ID.objectID("pid:248").getId(), o.getParentForId(ID.objectID("pid:249").getId()));
+        assertEquals("256-260 " + ID.objectID("pid:256").getId(), o.getParentForId(ID.objectID("pid:259").getId()));
+    }
+
+    @Test
+    public void testInsertionInTheMiddle() throws InterruptedException {
+        List<String> pids = new ArrayList<String>();
+        for (int i = 0; i < 100; i ++) {
+            pids.add(String.format("a:%02d", i));
         }
+        Fedora3DataInterface f3 = createListRepo(pids);
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(f3);
+        o.setMaxContainerSize(10);
+        assertEquals(10, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+
+        pids.add(46, "a:455");
+        o.getGeneration();
+        o.awaitRebuild();
+        assertTrue("Groups before the new object should be kept.", o.isOrganizationalNode("30-40 " + ID.objectID("a:30").getId()));
+        assertTrue("The group with the new object keeps its id.", o.isOrganizationalNode("40-50 " + ID.objectID("a:40").getId()));
+        assertTrue(o.getChildrenForId("40-50 " + ID.objectID("a:40").getId()).contains(ID.objectID("a:455").getId()));
+        assertFalse("Groups after the new object have shifted.", o.isOrganizationalNode("50-60 " + ID.objectID("a:50").getId()));
+        assertEquals("50-60 " + ID.objectID("a:49").getId(), o.getParentForId(ID.objectID("a:50").getId()));
+        assertEquals("100-101 " + ID.objectID("a:99").getId(), o.getParentForId(ID.objectID("a:99").getId()));
+    }
+
+    @Test
+    public void testOldTreeIsServedDuringRebuild() throws InterruptedException {
+        final List<String> pids = new ArrayList<String>();
+        for (int i = 0; i < 100; i ++) {
+            pids.add(String.format("a:%02d", i));
+        }
+        Fedora3DataInterface f3 = createListRepo(pids);
+        GroupingOrganizer o = new GroupingOrganizer();
+        o.initialize(f3);
+        o.setMaxContainerSize(10);
+        assertEquals(10, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        long generation = o.getGeneration();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) throws InterruptedException {
+                if (Thread.currentThread().getName().equals("fedora3-group-rebuilder")) {
+                    release.await();
+                }
+                List<String> result = new ArrayList<String>();
+                for (long position : (long[]) invocation.getArguments()[0]) {
+                    result.add(pids.get((int) position));
+                }
+                return result;
+            }
+        }).when(f3).getObjectPidsAt(any(long[].class));
+        pids.add("a:99x");
+        assertEquals("The old tree is served during the rebuild.", generation, o.getGeneration());
+        assertEquals(10, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        release.countDown();
+        o.awaitRebuild();
+        assertTrue(o.getGeneration() != generation);
+        assertEquals("The tree is one level deeper.", 2, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+    }
+
+    /**
+     * Creates a mock repository containing the given sorted list of pids,
+     * which may be changed.
+     */
+    private static Fedora3DataInterface createListRepo(final List<String> pids) {
+        Fedora3DataInterface f3 = mock(Fedora3DataInterface.class);
+        when(f3.getSize()).thenAnswer(new Answer<Long>() {
+            public Long answer(InvocationOnMock invocation) {
+                return (long) pids.size();
+            }
+        });
+        when(f3.getObjectPidsAt(any(long[].class))).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                List<String> result = new ArrayList<String>();
+                for (long position : (long[]) invocation.getArguments()[0]) {
+                    result.add(pids.get((int) position));
+                }
+                return result;
+            }
+        });
+        when(f3.getObjectPosition(any(String.class))).thenAnswer(new Answer<Long>() {
+            public Long answer(InvocationOnMock invocation) {
+                int position = Collections.binarySearch(pids, (String) invocation.getArguments()[0]);
+                return position < 0 ? -1L : position;
+            }
+        });
+        when(f3.getObjectPidsAfter(any(String.class), anyInt())).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                int position = Collections.binarySearch(pids, (String) invocation.getArguments()[0]) + 1;
+                int count = (Integer) invocation.getArguments()[1];
+                return new ArrayList<String>(pids.subList(position, Math.min(pids.size(), position + count)));
+            }
+        });
+        return f3;
     }
 
     private String getNthObject(GroupingOrganizer o, String parent, int choice) {
@@ -182,8 +509,16 @@ public class GroupingOrganizerTest {
         }
     }
 
-    protected Fedora3DataInterface createHugeRepo(final long size) {
+    protected Fedora3DataInterface createHugeRepo(long size) {
+        return createHugeRepo(new AtomicLong(size));
+    }
 
+    /**
+     * Creates a repository of pids "pid:0...0" through "pid:[size - 1]" whose
+     * size may be changed.
+     */
+    protected Fedora3DataInterface createHugeRepo(final AtomicLong size) {
+        final String pattern = String.valueOf(size.get()).replaceAll(".", "0");
         return new Fedora3DataInterface() {
             @Override
             public FedoraObjectRecord getObjectByPid(String pid) {
@@ -197,8 +532,7 @@ public class GroupingOrganizerTest {
 
             @Override
             public List<String> getObjectPids(long offset, int pageSize) {
-                DecimalFormat f = new DecimalFormat(
-                        String.valueOf(size).replaceAll(".", "0"));
+                DecimalFormat f = new DecimalFormat(pattern);
                 List<String> result = new ArrayList<String>();
                 for (long i = offset; i < offset + pageSize; i ++) {
                     result.add("pid:" + f.format(i));
@@ -206,9 +540,75 @@ public class GroupingOrganizerTest {
                 return result;
             }
 
+            @Override
+            public List<String> getObjectPidsAfter(String lastPid, int pageSize) {
+                long offset = lastPid == null ? 0 : Long.parseLong(lastPid.substring("pid:".length())) + 1;
+                return getObjectPids(offset, (int) Math.min(pageSize, size.get() - offset));
+            }
+
+            @Override
+            public long getObjectPosition(String pid) {
+                long position = Long.parseLong(pid.substring("pid:".length()));
+                return position < size.get() ? position : -1;
+            }
+
+            @Override
+            public List<String> getObjectPidsAt(long[] positions) {
+                List<String> result = new ArrayList<String>();
+                for (long position : positions) {
+                    result.addAll(getObjectPids(position, 1));
+                }
+                return result;
+            }
+
+            @Override
+            public List<String> getContentModels(String pid) {
+                return null;
+            }
+
+            @Override
+            public Map<String, Long> getContentModelCounts() {
+                return null;
+            }
+
+            @Override
+            public List<String> getObjectPidsWithModelAfter(String model, String lastPid, int pageSize) {
+                return null;
+            }
+
+            @Override
+            public PidIterator iterateObjectPids() {
+                return null;
+            }
+
             @Override
             public long getSize() {
-                return size;
+                return size.get();
+            }
+
+            @Override
+            public Date getLastModifiedDate() {
+                return new Date(size.get());
+            }
+
+            @Override
+            public Date getFirstModifiedDate() {
+                return new Date(0);
+            }
+
+            @Override
+            public Date getObjectModifiedDate(String pid) {
+                return new Date(0);
+            }
+
+            @Override
+            public List<String> getObjectPidsModifiedBetween(Date start, Date end) {
+                return null;
+            }
+
+            @Override
+            public RelationshipIterator iterateRelationships(String predicate, Date modifiedSince) {
+                return null;
             }
 
             @Override
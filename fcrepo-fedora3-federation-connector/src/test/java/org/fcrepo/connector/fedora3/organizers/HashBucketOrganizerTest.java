@@ -0,0 +1,198 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class HashBucketOrganizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    Fedora3DataInterface f3;
+
+    private List<String> pids;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        pids = new ArrayList<String>();
+        for (int i = 0; i < 2000; i ++) {
+            pids.add("demo:" + i);
+        }
+        when(f3.getSize()).thenReturn((long) pids.size());
+        when(f3.iterateObjectPids()).thenAnswer(new Answer<PidIterator>() {
+            public PidIterator answer(InvocationOnMock invocation) {
+                return iterator(pids);
+            }
+        });
+    }
+
+    @Test
+    public void testPureResolution() {
+        HashBucketOrganizer o = new HashBucketOrganizer();
+        o.initialize(f3);
+        String leaf = o.getParentForId(ID.objectID("demo:1").getId());
+        assertTrue(leaf.matches("bucket-[0-9a-f]{2}-[0-9a-f]{2}"));
+        assertEquals("Datastreams resolve to the bucket of their object.", leaf, o.getParentForId(ID.datastreamID("demo:1", "DC").getId()));
+        assertEquals(leaf.substring(0, 9), o.getParentForId(leaf));
+        assertEquals(ID.ROOT_ID.getId(), o.getParentForId(leaf.substring(0, 9)));
+        assertNull(o.getParentForId(ID.ROOT_ID.getId()));
+        assertTrue(o.isOrganizationalNode(ID.ROOT_ID.getId()));
+        assertTrue(o.isOrganizationalNode(leaf));
+        assertFalse(o.isOrganizationalNode(ID.objectID("demo:1").getId()));
+        assertFalse("Buckets are lower case.", o.isOrganizationalNode(leaf.toUpperCase()));
+        assertFalse("Buckets can't be deeper than the levels.", o.isOrganizationalNode(leaf + "-00"));
+        assertFalse(o.isOrganizationalNode("bucket-0g"));
+        assertFalse(o.isOrganizationalNode("bucket"));
+        assertEquals(256, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        assertEquals(leaf.substring(0, 9) + "-00", o.getChildrenForId(leaf.substring(0, 9)).get(0));
+        verifyZeroInteractions(f3);
+    }
+
+    @Test
+    public void testSpread() {
+        HashBucketOrganizer o = new HashBucketOrganizer();
+        o.setLevels(1);
+        o.initialize(f3);
+        Set<String> buckets = new HashSet<String>();
+        for (String pid : pids) {
+            buckets.add(o.getParentForId(ID.objectID(pid).getId()));
+        }
+        assertTrue("Sequential pids should be spread over the buckets.", buckets.size() > 240);
+    }
+
+    @Test
+    public void testListingWithoutIndex() throws InterruptedException {
+        HashBucketOrganizer o = new HashBucketOrganizer();
+        o.initialize(f3);
+        String leaf = o.getParentForId(ID.objectID("demo:7").getId());
+        List<String> children = o.getChildrenForId(leaf);
+        assertTrue(children.contains(ID.objectID("demo:7").getId()));
+        for (String child : children) {
+            assertEquals("Every child should resolve to its bucket.", leaf, o.getParentForId(child));
+        }
+        verify(f3, times(1)).iterateObjectPids();
+
+        for (String other : o.getChildrenForId(leaf.substring(0, 9))) {
+            o.getChildrenForId(other);
+        }
+        verify(f3, times(1)).iterateObjectPids();
+        pids.add("demo:x");
+        when(f3.getSize()).thenReturn((long) pids.size());
+        leaf = o.getParentForId(ID.objectID("demo:x").getId());
+        o.getChildrenForId(leaf);
+        o.awaitRebuild();
+        assertTrue(o.getChildrenForId(leaf).contains(ID.objectID("demo:x").getId()));
+        verify(f3, times(2)).iterateObjectPids();
+    }
+
+    @Test
+    public void testListingWithIndex() throws InterruptedException {
+        File file = new File(folder.getRoot(), "buckets.idx");
+        HashBucketOrganizer o = new HashBucketOrganizer();
+        o.setIndexFile(file.getPath());
+        o.initialize(f3);
+        int listed = 0;
+        for (String level1 : o.getChildrenForId(ID.ROOT_ID.getId())) {
+            for (String leaf : o.getChildrenForId(level1)) {
+                for (String child : o.getChildrenForId(leaf)) {
+                    assertEquals(leaf, o.getParentForId(child));
+                    listed ++;
+                }
+            }
+        }
+        assertEquals("Every object should be listed once.", pids.size(), listed);
+        verify(f3, times(1)).iterateObjectPids();
+
+        o = new HashBucketOrganizer();
+        o.setIndexFile(file.getPath());
+        o.initialize(f3);
+        o.getChildrenForId(o.getParentForId(ID.objectID("demo:1").getId()));
+        verify(f3, times(1)).iterateObjectPids();
+
+        pids.add("demo:x");
+        when(f3.getSize()).thenReturn((long) pids.size());
+        String leaf = o.getParentForId(ID.objectID("demo:x").getId());
+        o.getChildrenForId(leaf);
+        o.awaitRebuild();
+        assertTrue("The index should be rebuilt when objects are added.", o.getChildrenForId(leaf).contains(ID.objectID("demo:x").getId()));
+        verify(f3, times(2)).iterateObjectPids();
+    }
+
+    @Test
+    public void testConfiguration() {
+        HashBucketOrganizer o = new HashBucketOrganizer();
+        try {
+            o.setLevels(4);
+            fail("More than 3 levels should be rejected.");
+        } catch (IllegalArgumentException ex) {
+        }
+        o.initialize(f3);
+        try {
+            o.setLevels(1);
+            fail("Levels should be immutable after initialization.");
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    private static PidIterator iterator(List<String> pids) {
+        final Iterator<String> it = new ArrayList<String>(pids).iterator();
+        return new PidIterator() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException {
+            }
+        };
+    }
+}
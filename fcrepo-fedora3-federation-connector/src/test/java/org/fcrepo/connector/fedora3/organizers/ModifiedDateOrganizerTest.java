@@ -0,0 +1,204 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ModifiedDateOrganizerTest {
+
+    @Mock
+    Fedora3DataInterface f3;
+
+    private Map<String, Date> modified;
+
+    private ModifiedDateOrganizer o;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        modified = new TreeMap<String, Date>();
+        modified.put("a:1", date(2012, 12, 31, 23));
+        modified.put("a:2", date(2013, 1, 15, 0));
+        modified.put("a:3", date(2013, 3, 2, 10));
+        modified.put("a:4", date(2013, 3, 2, 11));
+        modified.put("a:5", date(2013, 3, 5, 8));
+        when(f3.getFirstModifiedDate()).thenAnswer(new Answer<Date>() {
+            public Date answer(InvocationOnMock invocation) {
+                return Collections.min(modified.values());
+            }
+        });
+        when(f3.getLastModifiedDate()).thenAnswer(new Answer<Date>() {
+            public Date answer(InvocationOnMock invocation) {
+                return Collections.max(modified.values());
+            }
+        });
+        when(f3.getObjectPidsModifiedBetween(any(Date.class), any(Date.class))).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                Date start = (Date) invocation.getArguments()[0];
+                Date end = (Date) invocation.getArguments()[1];
+                List<String> pids = new ArrayList<String>();
+                for (Map.Entry<String, Date> e : modified.entrySet()) {
+                    if (!e.getValue().before(start) && e.getValue().before(end)) {
+                        pids.add(e.getKey());
+                    }
+                }
+                return pids;
+            }
+        });
+        when(f3.getObjectModifiedDate(anyString())).thenAnswer(new Answer<Date>() {
+            public Date answer(InvocationOnMock invocation) {
+                return modified.get(invocation.getArguments()[0]);
+            }
+        });
+        o = new ModifiedDateOrganizer();
+        o.setRefreshSeconds(0);
+        o.initialize(f3);
+    }
+
+    @Test
+    public void testPeriods() {
+        assertEquals(Arrays.asList(new String[] { "modified 2012", "modified 2013" }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        assertEquals(Arrays.asList(new String[] { "modified 2012-12" }), o.getChildrenForId("modified 2012"));
+        assertEquals(Arrays.asList(new String[] { "modified 2013-01", "modified 2013-02", "modified 2013-03" }), o.getChildrenForId("modified 2013"));
+        assertEquals(5, o.getChildrenForId("modified 2013-03").size());
+        assertEquals(Arrays.asList(new String[] { ID.objectID("a:3").getId(), ID.objectID("a:4").getId() }), o.getChildrenForId("modified 2013-03-02"));
+        assertEquals("modified 2013-03-02", o.getParentForId(ID.objectID("a:3").getId()));
+        assertEquals("modified 2013-03", o.getParentForId("modified 2013-03-02"));
+        assertEquals("modified 2013", o.getParentForId("modified 2013-03"));
+        assertEquals(ID.ROOT_ID.getId(), o.getParentForId("modified 2013"));
+        assertTrue(o.isOrganizationalNode("modified 2013-03-05"));
+        assertFalse("Days after the last modification aren't listed.", o.isOrganizationalNode("modified 2013-03-06"));
+        assertFalse(o.isOrganizationalNode("modified 2013-02-30"));
+        assertFalse(o.isOrganizationalNode("modified 13"));
+        assertFalse(o.isOrganizationalNode(ID.objectID("a:3").getId()));
+        verify(f3, never()).getObjectByPid(anyString());
+    }
+
+    @Test
+    public void testClosedDaysAreCached() {
+        Date start = date(2013, 3, 2, 0);
+        Date end = date(2013, 3, 3, 0);
+        o.getChildrenForId("modified 2013-03-02");
+        o.getChildrenForId("modified 2013-03-02");
+        verify(f3, times(1)).getObjectPidsModifiedBetween(eq(start), eq(end));
+
+        o.getChildrenForId("modified 2013-03-05");
+        o.getChildrenForId("modified 2013-03-05");
+        verify(f3, times(2)).getObjectPidsModifiedBetween(eq(date(2013, 3, 5, 0)), eq(date(2013, 3, 6, 0)));
+    }
+
+    @Test
+    public void testModifiedObjectsLeaveCachedDays() throws InterruptedException {
+        assertEquals(2, o.getChildrenForId("modified 2013-03-02").size());
+        o.awaitRefresh();
+        modified.put("a:3", date(2013, 3, 6, 12));
+        o.getGeneration();
+        o.awaitRefresh();
+        assertEquals(Arrays.asList(new String[] { ID.objectID("a:4").getId() }), o.getChildrenForId("modified 2013-03-02"));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("a:5").getId() }), o.getChildrenForId("modified 2013-03-05"));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("a:3").getId() }), o.getChildrenForId("modified 2013-03-06"));
+        assertEquals("modified 2013-03-06", o.getParentForId(ID.objectID("a:3").getId()));
+        verify(f3, times(1)).getObjectPidsModifiedBetween(eq(date(2013, 3, 2, 0)), eq(date(2013, 3, 3, 0)));
+    }
+
+    @Test
+    public void testLargeDaysArePaged() {
+        modified.put("a:6", date(2013, 3, 2, 12));
+        modified.put("a:7", date(2013, 3, 2, 13));
+        modified.put("a:8", date(2013, 3, 2, 14));
+        o.setMaxContainerSize(2);
+        String page = "modified 2013-03-02 from " + ID.objectID("a:6").getId();
+        assertEquals(Arrays.asList(new String[] { "modified 2013-03-02 from " + ID.objectID("a:3").getId(), page, "modified 2013-03-02 from " + ID.objectID("a:8").getId() }), o.getChildrenForId("modified 2013-03-02"));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("a:6").getId(), ID.objectID("a:7").getId() }), o.getChildrenForId(page));
+        assertEquals(page, o.getParentForId(ID.objectID("a:7").getId()));
+        assertEquals("modified 2013-03-02", o.getParentForId(page));
+        assertTrue(o.isOrganizationalNode(page));
+        assertFalse("Only the first pid of a page identifies it.", o.isOrganizationalNode("modified 2013-03-02 from " + ID.objectID("a:7").getId()));
+        assertFalse("Small days have no pages.", o.isOrganizationalNode("modified 2013-03-05 from " + ID.objectID("a:5").getId()));
+        assertEquals("modified 2013-03-05", o.getParentForId(ID.objectID("a:5").getId()));
+        verify(f3, times(1)).getObjectPidsModifiedBetween(eq(date(2013, 3, 2, 0)), eq(date(2013, 3, 3, 0)));
+    }
+
+    @Test
+    public void testOpenDayIsCachedUntilRefresh() {
+        o = new ModifiedDateOrganizer();
+        o.setRefreshSeconds(60);
+        o.initialize(f3);
+        assertEquals(1, o.getChildrenForId("modified 2013-03-05").size());
+        assertEquals("modified 2013-03-05", o.getParentForId(ID.objectID("a:5").getId()));
+        assertEquals(1, o.getChildrenForId("modified 2013-03-05").size());
+        verify(f3, times(1)).getObjectPidsModifiedBetween(eq(date(2013, 3, 5, 0)), eq(date(2013, 3, 6, 0)));
+    }
+
+    @Test
+    public void testRefreshDoesNotBlockRequests() throws InterruptedException {
+        assertEquals(2, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        o.awaitRefresh();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Date latest = date(2014, 1, 1, 0);
+        doAnswer(new Answer<Date>() {
+            public Date answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return latest;
+            }
+        }).when(f3).getLastModifiedDate();
+        long generation = o.getGeneration();
+        assertEquals("The previous range is served during a refresh.", 2, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        assertEquals(generation, o.getGeneration());
+        modified.put("a:6", latest);
+        release.countDown();
+        o.awaitRefresh();
+        assertTrue(o.getGeneration() != generation);
+        assertEquals(3, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+    }
+
+    private static Date date(int year, int month, int day, int hour) {
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.clear();
+        c.set(year, month - 1, day, hour, 0);
+        return c.getTime();
+    }
+}
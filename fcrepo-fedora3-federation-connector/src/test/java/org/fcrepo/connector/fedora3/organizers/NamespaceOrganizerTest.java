@@ -0,0 +1,207 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.connector.fedora3.organizers;
+
+import org.fcrepo.connector.fedora3.Fedora3DataInterface;
+import org.fcrepo.connector.fedora3.ID;
+import org.fcrepo.connector.fedora3.PidIterator;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NamespaceOrganizerTest {
+
+    @Mock
+    Fedora3DataInterface f3;
+
+    private List<String> pids;
+
+    private NamespaceOrganizer o;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        pids = new ArrayList<String>();
+        for (int i = 0; i < 25; i ++) {
+            pids.add("big:" + (i < 10 ? "0" : "") + i);
+        }
+        pids.addAll(Arrays.asList(new String[] { "demo:1", "demo:2", "demo:3", "small:a" }));
+        when(f3.getSize()).thenAnswer(new Answer<Long>() {
+            public Long answer(InvocationOnMock invocation) {
+                return (long) pids.size();
+            }
+        });
+        when(f3.iterateObjectPids()).thenAnswer(new Answer<PidIterator>() {
+            public PidIterator answer(InvocationOnMock invocation) {
+                return iterator(pids);
+            }
+        });
+        when(f3.getObjectPidsAfter(any(String.class), anyInt())).thenAnswer(new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                int position = Collections.binarySearch(pids, (String) invocation.getArguments()[0]);
+                position = position < 0 ? -(position + 1) : position + 1;
+                int count = (Integer) invocation.getArguments()[1];
+                return new ArrayList<String>(pids.subList(position, Math.min(pids.size(), position + count)));
+            }
+        });
+        o = new NamespaceOrganizer();
+        o.setMaxContainerSize(10);
+        o.initialize(f3);
+    }
+
+    @Test
+    public void testNamespaces() {
+        assertEquals(Arrays.asList(new String[] { "namespace big", "namespace demo", "namespace small" }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("demo:1").getId(), ID.objectID("demo:2").getId(), ID.objectID("demo:3").getId() }), o.getChildrenForId("namespace demo"));
+        assertEquals(Arrays.asList(new String[] { ID.objectID("small:a").getId() }), o.getChildrenForId("namespace small"));
+        assertEquals("namespace demo", o.getParentForId(ID.objectID("demo:2").getId()));
+        assertEquals(ID.ROOT_ID.getId(), o.getParentForId("namespace demo"));
+        assertTrue(o.isOrganizationalNode("namespace demo"));
+        assertFalse(o.isOrganizationalNode("namespace other"));
+        assertFalse(o.isOrganizationalNode(ID.objectID("demo:1").getId()));
+        verify(f3, times(1)).iterateObjectPids();
+    }
+
+    @Test
+    public void testPages() {
+        String page = "namespace big from " + ID.objectID("big:10").getId();
+        assertEquals(Arrays.asList(new String[] { "namespace big from " + ID.objectID("big:00").getId(), page, "namespace big from " + ID.objectID("big:20").getId() }), o.getChildrenForId("namespace big"));
+        List<String> children = o.getChildrenForId(page);
+        assertEquals(10, children.size());
+        assertEquals(ID.objectID("big:10").getId(), children.get(0));
+        assertEquals(ID.objectID("big:19").getId(), children.get(9));
+        assertEquals("The last page stops at the end of the namespace.", 5, o.getChildrenForId("namespace big from " + ID.objectID("big:20").getId()).size());
+        assertEquals(page, o.getParentForId(ID.objectID("big:15").getId()));
+        assertEquals(page, o.getParentForId(ID.objectID("big:10").getId()));
+        assertEquals("namespace big", o.getParentForId(page));
+        assertTrue(o.isOrganizationalNode(page));
+        assertFalse("Only the first pid of a page identifies it.", o.isOrganizationalNode("namespace big from " + ID.objectID("big:11").getId()));
+        assertFalse("Small namespaces have no pages.", o.isOrganizationalNode("namespace demo from " + ID.objectID("demo:1").getId()));
+        verify(f3).getObjectPidsAfter(eq("big:"), anyInt());
+    }
+
+    @Test
+    public void testNamespacesAreReloadedWhenRepositoryGrows() throws InterruptedException {
+        assertEquals(3, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        long generation = o.getGeneration();
+        assertEquals(generation, o.getGeneration());
+        pids.add("new:1");
+        o.getGeneration();
+        o.awaitReload();
+        assertTrue(o.getGeneration() != generation);
+        assertEquals(4, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        assertEquals("namespace new", o.getParentForId(ID.objectID("new:1").getId()));
+        verify(f3, times(2)).iterateObjectPids();
+    }
+
+    @Test
+    public void testPreviousPagesAreServedDuringReload() throws InterruptedException {
+        String page = "namespace big from " + ID.objectID("big:10").getId();
+        assertEquals(page, o.getParentForId(ID.objectID("big:15").getId()));
+        final CountDownLatch release = new CountDownLatch(1);
+        when(f3.iterateObjectPids()).thenAnswer(new Answer<PidIterator>() {
+            public PidIterator answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return iterator(pids);
+            }
+        });
+        pids.add("new:1");
+        assertEquals(page, o.getParentForId(ID.objectID("big:15").getId()));
+        assertEquals(3, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        release.countDown();
+        o.awaitReload();
+        verify(f3, times(2)).getObjectPidsAfter(eq("big:"), anyInt());
+        assertEquals(4, o.getChildrenForId(ID.ROOT_ID.getId()).size());
+        assertEquals(page, o.getParentForId(ID.objectID("big:15").getId()));
+        verify(f3, times(2)).getObjectPidsAfter(eq("big:"), anyInt());
+    }
+
+    @Test
+    public void testNamespacesOutOfOrderAreAddedUp() {
+        pids.clear();
+        pids.addAll(Arrays.asList(new String[] { "demo:1", "small:a", "demo:2" }));
+        when(f3.iterateObjectPids()).thenReturn(iterator(pids));
+        assertEquals(Arrays.asList(new String[] { "namespace demo", "namespace small" }), o.getChildrenForId(ID.ROOT_ID.getId()));
+        assertTrue(o.isOrganizationalNode("namespace demo"));
+        assertEquals("namespace demo", o.getParentForId(ID.objectID("demo:2").getId()));
+    }
+
+    @Test
+    public void testConcurrentPaging() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < 8; i ++) {
+                results.add(executor.submit(new Callable<List<String>>() {
+                    public List<String> call() {
+                        return o.getChildrenForId("namespace big");
+                    }
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                assertEquals(3, result.get().size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        verify(f3, times(1)).getObjectPidsAfter(eq("big:"), anyInt());
+    }
+
+    private static PidIterator iterator(List<String> pids) {
+        final Iterator<String> it = new ArrayList<String>(pids).iterator();
+        return new PidIterator() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException {
+            }
+        };
+    }
+}
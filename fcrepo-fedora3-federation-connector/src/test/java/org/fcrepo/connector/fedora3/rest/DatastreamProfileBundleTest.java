@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraObjectRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.fcrepo.connector.fedora3.rest.ObjectProfileObjectRecordImplTest.parseListDatastreamsResponse;
+import static org.fcrepo.connector.fedora3.rest.ObjectProfileObjectRecordImplTest.parseObjectProfile;
+
+public class DatastreamProfileBundleTest {
+
+    @Test
+    public void testBundleWithProfiles() throws Exception {
+        DatastreamProfileBundle b = new DatastreamProfileBundle("test:1",
+                parseListDatastreamsResponse("mocked-responses/test_1/list-datastreams-profiles.xml"));
+        Assert.assertTrue("Profiles should be parsed.", b.hasProfiles());
+        Assert.assertEquals("Datastream id list should be parsed properly.", Arrays.asList(new String[]{"DC", "RELS-EXT"}), b.listDatastreamIds());
+        Assert.assertEquals("DC1.0", b.getProfile("DC").getDsVersionID());
+        Assert.assertNull("Missing datastreams have no profile.", b.getProfile("THUMBNAIL"));
+
+        FedoraObjectRecord o = new ObjectProfileObjectRecordImpl(parseObjectProfile("mocked-responses/test_1/object-profile.xml"), b);
+        Assert.assertEquals("Datastream id list should come from the bundle.", Arrays.asList(new String[]{"DC", "RELS-EXT"}), o.listDatastreamIds());
+    }
+
+    @Test
+    public void testBundleWithoutProfiles() throws Exception {
+        DatastreamProfileBundle b = new DatastreamProfileBundle("test:1",
+                parseListDatastreamsResponse("mocked-responses/test_1/list-datastreams.xml"));
+        Assert.assertFalse("Older servers return no profiles.", b.hasProfiles());
+        Assert.assertEquals("Datastream id list should be parsed properly.", Arrays.asList(new String[]{"DC", "RELS-EXT"}), b.listDatastreamIds());
+    }
+
+    @Test
+    public void testRecordFromBundle() throws Exception {
+        DatastreamProfileBundle b = new DatastreamProfileBundle("test:1",
+                parseListDatastreamsResponse("mocked-responses/test_1/list-datastreams-profiles.xml"));
+        FedoraDatastreamRecord dc = new RESTFedoraDatastreamRecordImpl(null, b.getProfile("DC"));
+        Assert.assertEquals("test:1", dc.getPid());
+        Assert.assertEquals("DC", dc.getId());
+        Assert.assertEquals("DC1.0", dc.getCurrentVersion().getVersionId());
+        Assert.assertEquals("Created Date is preserved.", new Date(1304029580911L), dc.getCurrentVersion().getCreatedDate());
+        Assert.assertEquals("The original version is the only version.", 1, dc.getHistory().size());
+
+        FedoraDatastreamRecord relsExt = new RESTFedoraDatastreamRecordImpl(null, b.getProfile("RELS-EXT"));
+        Assert.assertEquals("RELS-EXT.2", relsExt.getCurrentVersion().getVersionId());
+        try {
+            relsExt.getHistory();
+            Assert.fail("History of a revised datastream must be fetched (and can't be with this mock object).");
+        } catch (NullPointerException ex) {
+        }
+    }
+}
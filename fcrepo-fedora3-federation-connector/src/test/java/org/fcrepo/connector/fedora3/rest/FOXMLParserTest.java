@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import org.fcrepo.connector.fedora3.FedoraDatastreamRecord;
+import org.fcrepo.connector.fedora3.FedoraDatastreamVersionRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.SecureHash;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+public class FOXMLParserTest {
+
+    private FOXMLObjectRecordImpl o;
+
+    @Before
+    public void parseFoxml() throws Exception {
+        InputStream foxml = getClass().getClassLoader()
+                .getResourceAsStream("foxml/it_1.xml");
+        try {
+            o = new FOXMLParser(null).parse(foxml);
+        } finally {
+            foxml.close();
+        }
+    }
+
+    @Test
+    public void testObjectProperties() {
+        Assert.assertEquals("PID should be parsed properly.", "it:1", o.getPid());
+        Assert.assertEquals("State should be parsed properly.", "A", o.getState());
+        Assert.assertEquals("Label should be parsed properly.", "Integration Test Example 1", o.getLabel());
+        Assert.assertEquals("OwnerIDs should be parsed properly.", 2, o.getOwnerIds().size());
+        Assert.assertEquals("fedoraAdmin", o.getOwnerIds().get(0));
+        Assert.assertEquals("Creation date should be parsed properly.", new Date(1379971535350L), o.getCreatedDate());
+        Assert.assertEquals("Modification date should be parsed properly.", new Date(1380651157126L), o.getModificationDate());
+        Assert.assertEquals("Datastream id list should be parsed properly.", Arrays.asList(new String[]{"AUDIT", "DC", "SIMPLE_TEXT"}), o.listDatastreamIds());
+    }
+
+    @Test
+    public void testInlineDatastream() throws Exception {
+        FedoraDatastreamRecord dc = o.getDatastream("DC");
+        Assert.assertEquals("it:1", dc.getPid());
+        Assert.assertEquals("X", dc.getControlGroup());
+        Assert.assertEquals("A", dc.getState());
+        Assert.assertTrue(dc.getVersionable());
+        Assert.assertEquals(1, dc.getHistory().size());
+        FedoraDatastreamVersionRecord v = dc.getCurrentVersion();
+        Assert.assertEquals("DC1.0", v.getVersionId());
+        Assert.assertEquals("Dublin Core Record for this object", v.getLabel());
+        Assert.assertEquals("text/xml", v.getMimeType());
+        Assert.assertEquals(Collections.emptyList(), v.getAltIDs());
+        Assert.assertNull(v.getContentDigest());
+        Assert.assertEquals("Length is that recorded by fedora 3 rather than that of the re-serialized content.", 383, v.getContentLength());
+    }
+
+    @Test
+    public void testManagedDatastreamVersions() throws Exception {
+        FedoraDatastreamRecord text = o.getDatastream("SIMPLE_TEXT");
+        Assert.assertEquals("M", text.getControlGroup());
+        Assert.assertFalse(text.getVersionable());
+        Assert.assertEquals(2, text.getHistory().size());
+        Assert.assertEquals("The most recent version is first.", "SIMPLE_TEXT.1", text.getHistory().get(0).getVersionId());
+        Assert.assertEquals("SIMPLE_TEXT.0", text.getHistory().get(1).getVersionId());
+
+        FedoraDatastreamVersionRecord v = text.getCurrentVersion();
+        Assert.assertEquals("SIMPLE_TEXT.1", v.getVersionId());
+        Assert.assertEquals("The text \"simple text\"", v.getLabel());
+        Assert.assertEquals(new Date(1380651157126L), v.getCreatedDate());
+        Assert.assertEquals("info:fedora/example-format-uri", v.getFormatURI());
+        Assert.assertEquals(Arrays.asList(new String[]{"test", "simpletext"}), v.getAltIDs());
+        Assert.assertEquals(12, v.getContentLength());
+        Assert.assertEquals("SHA-1", v.getContentDigestType());
+        Assert.assertEquals("02b08743a6de9b368d95e4677ca53a2111cf87ff", v.getContentDigest());
+        Assert.assertEquals("SHA-1 is taken from the content digest.", "02b08743a6de9b368d95e4677ca53a2111cf87ff", SecureHash.asHexString(v.getSha1()));
+
+        Assert.assertNull("Missing datastreams have no record.", o.getDatastream("THUMBNAIL"));
+    }
+}
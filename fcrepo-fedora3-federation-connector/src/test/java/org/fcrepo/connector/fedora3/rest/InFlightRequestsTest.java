@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InFlightRequestsTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        final InFlightRequests r = new InFlightRequests();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> fetch = new Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        };
+        List<Future<String>> results = runConcurrently(
+                new Callable<String>() {
+                    public String call() {
+                        return r.execute("op", "pid:1", "DC", fetch);
+                    }
+                });
+        // wait for the first caller to start the fetch and the rest to join
+        while (calls.get() == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<String> f : results) {
+            Assert.assertEquals("result", f.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals("Only one fetch should have been issued.", 1,
+                calls.get());
+        Assert.assertEquals("Completed requests are removed.", 0, r.size());
+    }
+
+    @Test
+    public void testExceptionsAreShared() throws Exception {
+        final InFlightRequests r = new InFlightRequests();
+        try {
+            r.execute("op", "pid:1", null, new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            Assert.fail("Runtime exceptions should be rethrown.");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("failed", ex.getMessage());
+        }
+        try {
+            r.execute("op", "pid:1", null, new Callable<String>() {
+                public String call() throws Exception {
+                    throw new Exception("checked");
+                }
+            });
+            Assert.fail("Checked exceptions should be wrapped.");
+        } catch (RuntimeException ex) {
+            Assert.assertEquals("checked", ex.getCause().getMessage());
+        }
+        Assert.assertEquals("Failed requests are removed.", 0, r.size());
+    }
+
+    @Test
+    public void testDistinctRequestsAreNotCoalesced() {
+        InFlightRequests r = new InFlightRequests();
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<Integer> fetch = new Callable<Integer>() {
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        };
+        Assert.assertEquals(Integer.valueOf(1),
+                r.execute("op", "pid:1", "DC", fetch));
+        Assert.assertEquals(Integer.valueOf(2),
+                r.execute("op", "pid:1", "RELS-EXT", fetch));
+        Assert.assertEquals(Integer.valueOf(3),
+                r.execute("op", "pid:1", "DC", fetch));
+    }
+
+    private List<Future<String>> runConcurrently(Callable<String> c) {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < THREADS; i ++) {
+            results.add(executor.submit(c));
+        }
+        executor.shutdown();
+        return results;
+    }
+}
@@ -16,12 +16,249 @@
 
 package org.fcrepo.connector.fedora3.rest;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
 /**
  * Because the RESTFedoraDataImpl class is a quick and dirty implementation
- * that does nothing but wrap fedora 3 REST API calls, there are no unit
- * tests at this time.  Future integration tests will cover the code.
+ * that does nothing but wrap fedora 3 REST API calls, most of it is left to
+ * future integration tests.  What is tested here are the assumptions its
+ * queries make about ordering.
  *
  * @author Michael Durbin
  */
 public class RESTFedora3DataImplTest {
+
+    /**
+     * Pids exercising every class of character the pid syntax allows, in
+     * no particular order.
+     */
+    private static final String[] PIDS = new String[] {
+        "demo:10", "demo:2", "demo:1", "demo:A", "demo:a", "demo:Z",
+        "demo:z", "demo:-", "demo:.", "demo:~", "demo:_", "demo:%20",
+        "demo:%7E", "demo-x:1", "demo.x:1", "demox:1", "dem:1", "Demo:1",
+        "1demo:1", "demo:1.1", "demo:1-1", "demo:1~1", "demo:1_1" };
+
+    /**
+     * SPARQL compares the str() of a URI by code point, as does the
+     * resource index when ordering by a URI in either query language.
+     */
+    private static final Comparator<String> CODE_POINT_ORDER
+            = new Comparator<String>() {
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int ca = a.codePointAt(i);
+                int cb = b.codePointAt(j);
+                if (ca != cb) {
+                    return ca < cb ? -1 : 1;
+                }
+                i += Character.charCount(ca);
+                j += Character.charCount(cb);
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+    };
+
+    /**
+     * Ensures that ordering the object URIs as the resource index does
+     * (used both by the "order by $object" of getObjectPids() and by the
+     * str() filter of getObjectPidsWithModelAfter()) puts pids in the same
+     * order as String.compareTo(), which callers use to binary-search page
+     * boundaries.
+     */
+    @Test
+    public void testUriOrderAgreesWithCompareTo() {
+        List<String> uris = new ArrayList<String>();
+        for (String pid : PIDS) {
+            uris.add("info:fedora/" + pid);
+        }
+        Collections.sort(uris, CODE_POINT_ORDER);
+        List<String> pids = new ArrayList<String>(Arrays.asList(PIDS));
+        Collections.sort(pids);
+        for (int i = 0; i < pids.size(); i ++) {
+            assertEquals(uris.get(i), "info:fedora/" + pids.get(i));
+        }
+    }
+
+    /**
+     * Ensures that walking the objects a page at a time with the filter of
+     * getObjectPidsWithModelAfter() visits them in the same order as
+     * reading them by offset with getObjectPids().
+     */
+    @Test
+    public void testKeysetPagesAgreeWithOffsetPages() {
+        List<String> sorted = new ArrayList<String>(Arrays.asList(PIDS));
+        Collections.sort(sorted);
+        for (int pageSize = 1; pageSize <= 5; pageSize ++) {
+            List<String> walked = new ArrayList<String>();
+            String lastPid = null;
+            List<String> page;
+            do {
+                page = keysetPage(lastPid, pageSize);
+                walked.addAll(page);
+                if (!page.isEmpty()) {
+                    lastPid = page.get(page.size() - 1);
+                }
+            } while (page.size() == pageSize);
+            assertEquals(sorted, walked);
+        }
+    }
+
+    @Test
+    public void testValidPidsAreAccepted() {
+        for (String pid : PIDS) {
+            RESTFedora3DataImpl.checkPid(pid);
+        }
+        RESTFedora3DataImpl.checkPid("fedora-system:FedoraObject-3.0");
+    }
+
+    @Test
+    public void testInvalidPidsAreRejected() {
+        String[] invalid = new String[] { null, "", "demo", ":1", "demo:",
+            "demo:1> <x", "demo:1\")", "demo:1 ", "de mo:1", "demo:1:2",
+            "demo:%2", "demo:%G0", "demo:\u00e9", "demo_x:1",
+            "demo:" + new String(new char[60]).replace('\0', 'x') };
+        for (String pid : invalid) {
+            try {
+                RESTFedora3DataImpl.checkPid(pid);
+                fail("\"" + pid + "\" should be rejected!");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testUris() {
+        RESTFedora3DataImpl.checkUri(
+                "info:fedora/fedora-system:def/relations-external#isMemberOf");
+        RESTFedora3DataImpl.checkUri("http://example.org/ns#rel");
+        String[] invalid = new String[] { null, "", "isMemberOf",
+            "info:fedora/x> ?a ?b", "http://example.org/a b",
+            "info:fedora/x\"" };
+        for (String uri : invalid) {
+            try {
+                RESTFedora3DataImpl.checkUri(uri);
+                fail("\"" + uri + "\" should be rejected!");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Ensures that a namespace prefix, which organizers pass to start a
+     * walk at the beginning of a namespace, is placed in the query as a
+     * keyset bound while anything that could escape the literal is not.
+     */
+    @Test
+    public void testNamespacePrefixIsAcceptedAsBound() {
+        RESTFedora3DataImpl f3 = mock(RESTFedora3DataImpl.class);
+        when(f3.getObjectPidsAfter(anyString(), anyInt())).thenCallRealMethod();
+        when(f3.getObjectPidsWithModelAfter(anyString(), anyString(),
+                anyInt())).thenCallRealMethod();
+        when(f3.queryForPids(anyString(), anyString())).thenReturn(
+                Arrays.asList(new String[] { "ns:1" }));
+        assertEquals(Arrays.asList(new String[] { "ns:1" }),
+                f3.getObjectPidsAfter("ns:", 10));
+        verify(f3).queryForPids(contains(
+                "filter (str(?object) > \"info:fedora/ns:\")"), eq("sparql"));
+        String[] invalid = new String[] { "ns:\") . ?a ?b ?c", "ns:\\",
+            "ns:\n" };
+        for (String bound : invalid) {
+            try {
+                f3.getObjectPidsAfter(bound, 10);
+                fail("\"" + bound + "\" should be rejected!");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        verify(f3, times(1)).queryForPids(anyString(), anyString());
+    }
+
+    /**
+     * Ensures that positions spanning more than the boundary scan limit are
+     * read in windows that follow one another by pid, with only the first
+     * window read by offset and never a query per pid.
+     */
+    @Test
+    public void testObjectPidsAtSpanningSeveralWindows() {
+        final List<String> all = new ArrayList<String>();
+        for (int i = 0; i < 1000; i ++) {
+            all.add(String.format("demo:%04d", i));
+        }
+        RESTFedora3DataImpl f3 = mock(RESTFedora3DataImpl.class);
+        doCallRealMethod().when(f3).setBoundaryScanLimit(anyLong());
+        when(f3.getObjectPidsAt(new long[] { 5, 120, 121, 999 }))
+                .thenCallRealMethod();
+        when(f3.getObjectPids(anyLong(), anyInt())).thenAnswer(
+                new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                int offset = ((Long) invocation.getArguments()[0]).intValue();
+                int limit = (Integer) invocation.getArguments()[1];
+                return new ArrayList<String>(all.subList(offset,
+                        Math.min(all.size(), offset + limit)));
+            }
+        });
+        when(f3.getObjectPidsAfter(anyString(), anyInt())).thenAnswer(
+                new Answer<List<String>>() {
+            public List<String> answer(InvocationOnMock invocation) {
+                int offset = all.indexOf(invocation.getArguments()[0]) + 1;
+                int limit = (Integer) invocation.getArguments()[1];
+                return new ArrayList<String>(all.subList(offset,
+                        Math.min(all.size(), offset + limit)));
+            }
+        });
+        f3.setBoundaryScanLimit(100);
+        assertEquals(Arrays.asList("demo:0005", "demo:0120", "demo:0121",
+                "demo:0999"), f3.getObjectPidsAt(new long[] { 5, 120, 121,
+                        999 }));
+        verify(f3, times(1)).getObjectPids(anyLong(), anyInt());
+        verify(f3, times(9)).getObjectPidsAfter(anyString(), anyInt());
+        verify(f3, never()).getObjectPids(anyLong(), eq(1));
+    }
+
+    /**
+     * Evaluates the query of getObjectPidsWithModelAfter() over PIDS the
+     * way the resource index does.
+     */
+    private List<String> keysetPage(String lastPid, int pageSize) {
+        List<String> uris = new ArrayList<String>();
+        for (String pid : PIDS) {
+            String uri = "info:fedora/" + pid;
+            if (lastPid == null || CODE_POINT_ORDER.compare(uri,
+                    "info:fedora/" + lastPid) > 0) {
+                uris.add(uri);
+            }
+        }
+        Collections.sort(uris, CODE_POINT_ORDER);
+        List<String> page = new ArrayList<String>();
+        for (String uri : uris.subList(0, Math.min(pageSize, uris.size()))) {
+            page.add(uri.substring("info:fedora/".length()));
+        }
+        return page;
+    }
 }
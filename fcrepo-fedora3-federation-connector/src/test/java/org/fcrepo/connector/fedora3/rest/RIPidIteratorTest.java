@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.connector.fedora3.rest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class RIPidIteratorTest {
+
+    private static final String CSV = "\"object\"\ninfo:fedora/pid:1\ninfo:fedora/pid:2\ninfo:fedora/pid:3\n";
+
+    @Test
+    public void testIteration() throws Exception {
+        CloseTrackingStream s = new CloseTrackingStream(CSV);
+        RIPidIterator it = new RIPidIterator(s);
+        List<String> pids = new ArrayList<String>();
+        while (it.hasNext()) {
+            pids.add(it.next());
+        }
+        Assert.assertEquals(Arrays.asList(new String[] { "pid:1", "pid:2", "pid:3" }), pids);
+        Assert.assertTrue("The response should be closed once consumed.", s.closed);
+        try {
+            it.next();
+            Assert.fail("Reading past the end should fail.");
+        } catch (NoSuchElementException ex) {
+        }
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        CloseTrackingStream s = new CloseTrackingStream(CSV);
+        RIPidIterator it = new RIPidIterator(s);
+        Assert.assertEquals("pid:1", it.next());
+        it.close();
+        Assert.assertTrue("The response should be closed.", s.closed);
+        Assert.assertFalse(it.hasNext());
+        it.close();
+    }
+
+    @Test
+    public void testEmptyResponse() throws Exception {
+        RIPidIterator it = new RIPidIterator(new CloseTrackingStream("\"object\"\n"));
+        Assert.assertFalse(it.hasNext());
+    }
+
+    private static class CloseTrackingStream extends ByteArrayInputStream {
+
+        private boolean closed;
+
+        public CloseTrackingStream(String content) {
+            super(content.getBytes());
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}